@@ -0,0 +1,94 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.minivision.faceclient.protocol.CodecRegistry;
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.PacketUtil;
+
+/**
+ * 响应报文体(FaceFeatures)的编解码, 包括完整解码和延迟解码({@link FaceFeatures#wrap(ByteBuffer)})
+ *
+ * <p>*AndRead 在解码后读取所有人脸的特征向量, 比较两种方式在调用方实际使用结果时的总开销
+ *
+ * @author PanXinmiao
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FaceFeaturesCodecBenchmark {
+
+  @Param({"1", "8", "32"})
+  private int faceNum;
+
+  @Param({"128", "512"})
+  private int featureLen;
+
+  private ByteBuffer encoded;
+  private FaceFeatures features;
+  private ByteBuffer out;
+  private float[] feature;
+
+  @Setup
+  public void setup() {
+    encoded = Fixtures.featuresBody(faceNum, featureLen);
+    features = PacketUtil.decode(encoded.duplicate(), FaceFeatures.class);
+    out = ByteBuffer.allocate(encoded.remaining());
+    feature = new float[featureLen];
+  }
+
+  @Benchmark
+  public ByteBuffer encode() {
+    out.clear();
+    features.encodeTo(out);
+    return out;
+  }
+
+  @Benchmark
+  public FaceFeatures decode() {
+    return PacketUtil.decode(encoded.duplicate(), FaceFeatures.class);
+  }
+
+  @Benchmark
+  public FaceFeatures decodeLazy() {
+    return CodecRegistry.LAZY_FACE_FEATURES.decode(encoded.duplicate());
+  }
+
+  @Benchmark
+  public void decodeAndRead(Blackhole bh) {
+    FaceFeatures ff = PacketUtil.decode(encoded.duplicate(), FaceFeatures.class);
+    List<FaceFeature> list = ff.getFeatures();
+    for (int i = 0; i < list.size(); i++) {
+      bh.consume(list.get(i).getFeature());
+    }
+  }
+
+  @Benchmark
+  public void decodeLazyAndRead(Blackhole bh) {
+    FaceFeatures ff = CodecRegistry.LAZY_FACE_FEATURES.decode(encoded.duplicate());
+    for (int i = 0; i < ff.getFaceNum(); i++) {
+      ff.getFace(i).copyFeature(feature);
+      bh.consume(feature);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+
+/**
+ * 基准测试使用的报文数据
+ *
+ * @author PanXinmiao
+ *
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  /**
+   * @return 随机内容的图片数据, 大小与实际的JPEG相当时才有意义
+   */
+  static byte[] image(int size) {
+    byte[] img = new byte[size];
+    new Random(size).nextBytes(img);
+    return img;
+  }
+
+  static FaceFeature face(Random r, int featureLen) {
+    FaceFeature f = new FaceFeature();
+    f.setFaceRectLeft((short) r.nextInt(1000));
+    f.setFaceRectTop((short) r.nextInt(1000));
+    f.setFaceRectWidth((short) (64 + r.nextInt(200)));
+    f.setFaceRectHeight((short) (64 + r.nextInt(200)));
+    f.setAge((short) (18 + r.nextInt(60)));
+    f.setGender((byte) r.nextInt(2));
+    f.setConfidenceAge(r.nextFloat());
+    f.setConfidenceGender(r.nextFloat());
+    float[] feature = new float[featureLen];
+    for (int i = 0; i < featureLen; i++) {
+      feature[i] = (float) r.nextGaussian();
+    }
+    f.setFeatureLen((short) featureLen);
+    f.setFeature(feature);
+    return f;
+  }
+
+  /**
+   * @return GET_FEATURE_ACK的报文体(已flip), 包含faceNum个人脸
+   */
+  static ByteBuffer featuresBody(int faceNum, int featureLen) {
+    Random r = new Random(faceNum * 31 + featureLen);
+    ByteBuffer body = ByteBuffer.allocate(2 + faceNum * (23 + 4 * featureLen));
+    body.putShort((short) faceNum);
+    for (int i = 0; i < faceNum; i++) {
+      face(r, featureLen).encodeTo(body);
+    }
+    body.flip();
+    return body;
+  }
+}
@@ -0,0 +1,102 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.minivision.faceclient.Config;
+import com.minivision.faceclient.core.MessageContext;
+import com.minivision.faceclient.core.RequestFuture;
+import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.Packet.Head;
+import com.minivision.faceclient.protocol.Packet.Head.CmdCode;
+
+/**
+ * 未完成请求表: 已有inflight个未完成请求时, 添加并移除(即收到响应)一个请求的开销, 以及兜底的超时扫描
+ *
+ * <p>不限制并发数(槽位数固定), 超时设为1小时, 预先放入的请求在测试期间不会超时
+ *
+ * @author PanXinmiao
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageContextBenchmark {
+
+  @Param({"0", "100", "1000", "10000"})
+  private int inflight;
+
+  private MessageContext context;
+
+  @Setup
+  public void setup() {
+    Config config = new Config();
+    config.setMaxConcurrent(0);
+    config.setResponseTimeout((int) TimeUnit.HOURS.toSeconds(1));
+    context = new MessageContext(config);
+    for (int i = 0; i < inflight; i++) {
+      RequestFuture<FaceFeatures> req = newRequest();
+      if (!context.add(req)) {
+        throw new IllegalStateException("Failed to add request " + i);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.failAll(new FaceException("Benchmark finished"));
+  }
+
+  private static RequestFuture<FaceFeatures> newRequest() {
+    return new RequestFuture<>(new Packet<>(new Head(CmdCode.GET_FEATURE)), FaceFeatures.class);
+  }
+
+  /**
+   * 每个线程反复添加和移除同一个请求, 只测量请求表本身
+   */
+  @State(Scope.Thread)
+  public static class Request {
+    private final RequestFuture<FaceFeatures> future = newRequest();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public RequestFuture<?> addRemove(Request request) {
+    return addRemove(request.future);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public RequestFuture<?> addRemoveContended(Request request) {
+    return addRemove(request.future);
+  }
+
+  private RequestFuture<?> addRemove(RequestFuture<FaceFeatures> future) {
+    context.add(future);
+    return context.remove(future.getSerialNum());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void checkExpire() {
+    context.checkExpire();
+  }
+}
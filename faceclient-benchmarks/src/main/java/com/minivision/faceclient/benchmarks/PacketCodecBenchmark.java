@@ -0,0 +1,104 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.buffer.PooledBuffer;
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.Head;
+import com.minivision.faceclient.protocol.Packet.Head.CmdCode;
+import com.minivision.faceclient.protocol.Packet.ImageData;
+import com.minivision.faceclient.protocol.PacketUtil;
+
+/**
+ * 请求报文(Head + ImageData)的编解码
+ *
+ * <p>encodeCopy是把整个报文拷贝到一个数组的旧方式, encodeInline是发送时实际使用的方式:
+ * 只编码报文头和图片头, 图片数据作为单独的ByteBuffer写出
+ *
+ * @author PanXinmiao
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+  /**
+   * 图片字节数, 常见的人脸抓拍图在几十KB到几百KB之间
+   */
+  @Param({"16384", "131072", "524288"})
+  private int imgSize;
+
+  private Head head;
+  private Packet<ImageData> packet;
+  private ByteBuffer headBuffer;
+  private ByteBuffer encodedHead;
+  private ByteBuffer encodedBody;
+  private BufferPool pool;
+
+  @Setup
+  public void setup() {
+    ImageData data = new ImageData();
+    data.setUseAge(true);
+    data.setUseGender(true);
+    data.setImgData(Fixtures.image(imgSize));
+    data.setImgSize(imgSize);
+    head = new Head(CmdCode.GET_FEATURE);
+    head.setSerialNum(12345);
+    head.setDataLen(data.getSize());
+    packet = new Packet<>(head, data);
+
+    headBuffer = ByteBuffer.allocate(head.getSize());
+    encodedHead = ByteBuffer.wrap(head.encode());
+    encodedBody = ByteBuffer.wrap(data.encode());
+    pool = new BufferPool(false, false);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeHead() {
+    headBuffer.clear();
+    head.encodeTo(headBuffer);
+    return headBuffer;
+  }
+
+  @Benchmark
+  public Head decodeHead() {
+    return new Head().decode(encodedHead.duplicate());
+  }
+
+  @Benchmark
+  public byte[] encodeCopy() {
+    return PacketUtil.encode(packet);
+  }
+
+  @Benchmark
+  public void encodeInline(Blackhole bh) {
+    PooledBuffer inline = PacketUtil.encodeInline(head, packet.getBody(), pool);
+    bh.consume(inline.buffer());
+    bh.consume(packet.getBody().getPayload());
+    inline.release();
+  }
+
+  @Benchmark
+  public ImageData decodeImage() {
+    return PacketUtil.decode(encodedBody.duplicate(), ImageData.class);
+  }
+}
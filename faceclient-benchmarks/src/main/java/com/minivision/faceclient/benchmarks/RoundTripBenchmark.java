@@ -0,0 +1,115 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.minivision.faceclient.Client;
+import com.minivision.faceclient.Config;
+import com.minivision.faceclient.core.RequestFuture;
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.mock.MockServerConfig;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 通过 {@link Client#getFeatures(byte[], boolean, boolean, boolean)} 完成一次请求的开销,
+ * 服务端为本机回环的 {@link MockFaceServer}, 不模拟处理时间, 测量的是客户端和回环网络
+ *
+ * <p>roundTrip为单线程的同步请求(延迟), concurrent为多线程同步请求, pipelined为单线程一次发出
+ * {@link #PIPELINE_DEPTH} 个请求再等待全部完成
+ *
+ * @author PanXinmiao
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+
+  private static final int PIPELINE_DEPTH = 64;
+
+  @Param({"65536"})
+  private int imgSize;
+
+  @Param({"1", "8"})
+  private int faceNum;
+
+  @Param({"512"})
+  private int featureLen;
+
+  @Param({"false", "true"})
+  private boolean lazyDecode;
+
+  private MockFaceServer server;
+  private Client client;
+  private byte[] img;
+
+  @Setup
+  public void setup() throws IOException {
+    MockServerConfig serverConfig = new MockServerConfig();
+    serverConfig.setFaceNum(faceNum);
+    serverConfig.setFeatureLen(featureLen);
+    serverConfig.setWorkers(1);
+    server = new MockFaceServer(serverConfig).start();
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    config.setMaxConcurrent(0);
+    config.setLazyDecode(lazyDecode);
+    client = new Client(config);
+    img = Fixtures.image(imgSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Threads(1)
+  public FaceFeatures roundTrip() {
+    return client.getFeatures(img, true, true, true).get();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public FaceFeatures concurrent() {
+    return client.getFeatures(img, true, true, true).get();
+  }
+
+  @Benchmark
+  @Threads(1)
+  @OperationsPerInvocation(PIPELINE_DEPTH)
+  public FaceFeatures pipelined() {
+    List<RequestFuture<FaceFeatures>> futures = new ArrayList<>(PIPELINE_DEPTH);
+    for (int i = 0; i < PIPELINE_DEPTH; i++) {
+      futures.add(client.getFeatures(img, true, true, true));
+    }
+    FaceFeatures last = null;
+    for (RequestFuture<FaceFeatures> f : futures) {
+      last = f.get();
+    }
+    return last;
+  }
+}
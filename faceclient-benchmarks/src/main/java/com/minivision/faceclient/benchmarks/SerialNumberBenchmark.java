@@ -0,0 +1,60 @@
+package com.minivision.faceclient.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.minivision.faceclient.core.MessageContext;
+import com.minivision.faceclient.protocol.PacketUtil;
+
+/**
+ * 序列号分配: 全局共享的 {@link PacketUtil#getNextId()} 在多线程下的争用,
+ * 对比每个连接各自分配的 {@link MessageContext#nextSerial()}
+ *
+ * @author PanXinmiao
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialNumberBenchmark {
+
+  /**
+   * 每个线程一个连接
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    private final MessageContext context = new MessageContext();
+  }
+
+  @SuppressWarnings("deprecation")
+  @Benchmark
+  @Threads(1)
+  public int getNextId() {
+    return PacketUtil.getNextId();
+  }
+
+  @SuppressWarnings("deprecation")
+  @Benchmark
+  @Threads(Threads.MAX)
+  public int getNextIdContended() {
+    return PacketUtil.getNextId();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public int nextSerialPerConnection(Connection connection) {
+    return connection.context.nextSerial();
+  }
+}
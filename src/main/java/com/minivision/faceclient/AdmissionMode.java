@@ -0,0 +1,27 @@
+package com.minivision.faceclient;
+
+/**
+ * 一个连接上未完成的请求达到 {@link Config#getMaxConcurrent()} 时, 新请求的处理方式.
+ * 无论哪种方式, 未获准的请求都不会写出
+ * 
+ * @author PanXinmiao
+ *
+ */
+public enum AdmissionMode {
+
+  /**
+   * 立即失败
+   */
+  REJECT,
+
+  /**
+   * 阻塞调用线程, 直到有请求完成
+   */
+  BLOCK,
+
+  /**
+   * 最多 {@link Config#getAdmissionQueueDepth()} 个请求排队等待,
+   * 每个最多等待 {@link Config#getAdmissionWaitMillis()} 毫秒, 队列已满或等待超时则失败
+   */
+  QUEUE
+}
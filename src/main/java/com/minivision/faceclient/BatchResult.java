@@ -0,0 +1,67 @@
+package com.minivision.faceclient;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 批量请求的结果, 与输入的图片顺序一致. 每张图片单独成功或失败
+ * 
+ * @author PanXinmiao
+ *
+ */
+public class BatchResult {
+
+  private final FaceFeatures[] features;
+  private final Throwable[] errors;
+
+  BatchResult(int size) {
+    this.features = new FaceFeatures[size];
+    this.errors = new Throwable[size];
+  }
+
+  void set(int index, FaceFeatures result, Throwable error) {
+    features[index] = result;
+    errors[index] = error;
+  }
+
+  public int size() {
+    return features.length;
+  }
+
+  public boolean isSuccess(int index) {
+    return errors[index] == null;
+  }
+
+  /**
+   * @return 第index张图片的结果, 失败时为null
+   */
+  public FaceFeatures getFeatures(int index) {
+    return features[index];
+  }
+
+  /**
+   * @return 第index张图片失败的原因, 成功时为null
+   */
+  public Throwable getError(int index) {
+    return errors[index];
+  }
+
+  public int getFailedCount() {
+    int failed = 0;
+    for (Throwable t : errors) {
+      if (t != null) {
+        failed++;
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * @return 所有结果, 失败的位置为null
+   */
+  public List<FaceFeatures> getFeatures() {
+    return Arrays.asList(features);
+  }
+}
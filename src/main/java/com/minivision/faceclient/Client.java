@@ -1,58 +1,459 @@
 package com.minivision.faceclient;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.minivision.faceclient.cache.ImageKey;
+import com.minivision.faceclient.cache.RequestCoalescer;
+import com.minivision.faceclient.cache.ResultCache;
+import com.minivision.faceclient.core.FutureListenerAdapter;
+import com.minivision.faceclient.core.HashedWheelTimer;
 import com.minivision.faceclient.core.RequestFuture;
 import com.minivision.faceclient.core.Session;
+import com.minivision.faceclient.core.SessionPool;
 import com.minivision.faceclient.protocol.Packet;
 import com.minivision.faceclient.protocol.Packet.FaceFeatures;
 import com.minivision.faceclient.protocol.Packet.Head;
 import com.minivision.faceclient.protocol.Packet.ImageData;
+
+import lombok.extern.slf4j.Slf4j;
 /**
  * 
  * 人脸算法服务客户端
  * @author PanXinmiao
  * 
  */
+@Slf4j
 public class Client {
   
+  /**
+   * 为对冲请求选择连接时最多尝试的次数
+   */
+  private static final int HEDGE_SELECT_ATTEMPTS = 3;
+  
   private String ip;
   private int port;
-  private Session session;
+  private SessionPool sessionPool;
+  private volatile ResultCache resultCache;
+  private volatile RequestCoalescer coalescer;
+  private volatile HedgePolicy hedgePolicy;
   
   public Client(String ip, int port){
     Config defaultConfig = new Config();
     defaultConfig.setIp(ip);
     defaultConfig.setPort(port);
-    this.session = new Session(defaultConfig);
+    this.sessionPool = new SessionPool(defaultConfig);
   }
   
   public Client(Config config){
-    this.session = new Session(config);
+    this.sessionPool = new SessionPool(config);
+    this.resultCache = newResultCache(config);
+    this.coalescer = config.isCoalesceRequests() ? new RequestCoalescer() : null;
+    this.hedgePolicy = HedgePolicy.of(config);
+  }
+  
+  /**
+   * @return 按配置创建的结果缓存, 未启用时返回null
+   */
+  protected static ResultCache newResultCache(Config config){
+    if (config.getResultCacheBytes() <= 0) {
+      return null;
+    }
+    return new ResultCache(config.getResultCacheBytes(), config.getResultCacheTtlMillis());
+  }
+  
+  /**
+   * 供子类使用, 由子类负责选择连接
+   */
+  protected Client(){
   }
   
+  /**
+   * 选择本次请求使用的连接
+   */
+  protected Session selectSession() throws IOException {
+    return sessionPool.select();
+  }
+  
+  /**
+   * 启用结果缓存时, 相同的图片和参数命中缓存后返回已完成的future, 不发送请求.
+   * 启用请求合并时, 相同的请求未完成则等待它的结果, 不再发送
+   */
   public RequestFuture<FaceFeatures> getFeatures(byte[] img, boolean useFeature, boolean useAge, boolean useGender){
-    Head head = new Head(Packet.Head.CmdCode.GET_FEATURE);
+    ImageData data = newImageData(img, useFeature, useAge, useGender);
+    if (resultCache == null && coalescer == null) {
+      return getFeatures(data);
+    }
+    return getFeatures(data, ImageKey.of(img, useFeature, useAge, useGender));
+  }
+  
+  /**
+   * 图片数据为img中position到limit之间的部分, 发送时直接引用该buffer而不做拷贝,
+   * 使用direct buffer时写socket也无需额外拷贝. 请求完成前不要修改其中的数据
+   */
+  public RequestFuture<FaceFeatures> getFeatures(ByteBuffer img, boolean useFeature, boolean useAge, boolean useGender){
+    ImageData data = new ImageData();
+    data.setUseFeature(useFeature);
+    data.setUseAge(useAge);
+    data.setUseGender(useGender);
+    data.setImgSize(img.remaining());
+    data.setImgBuffer(img);
+    if (resultCache == null && coalescer == null) {
+      return getFeatures(data);
+    }
+    return getFeatures(data, ImageKey.of(img, useFeature, useAge, useGender));
+  }
+  
+  /**
+   * 发送图片文件, 文件内容由IO线程通过 {@link FileChannel#transferTo} 直接写入socket,
+   * 不读入Java堆. 文件在发送完成或请求失败后关闭, 请求完成前不要修改文件
+   *
+   * <p>计算缓存键需要读取整个文件, 因此这种方式不使用结果缓存和请求合并, 每次调用都会发送请求.
+   * 需要缓存时先把文件读入内存, 使用 {@link #getFeatures(byte[], boolean, boolean, boolean)}
+   */
+  public RequestFuture<FaceFeatures> getFeatures(Path img, boolean useFeature, boolean useAge, boolean useGender){
+    ImageData data = new ImageData();
+    data.setUseFeature(useFeature);
+    data.setUseAge(useAge);
+    data.setUseGender(useGender);
+    FileChannel file = null;
+    try {
+      file = FileChannel.open(img, StandardOpenOption.READ);
+      long size = file.size();
+      if (size > Integer.MAX_VALUE - data.getInlineSize()) {
+        throw new IOException("Image file too large: " + img + ", " + size + " bytes");
+      }
+      data.setImgSize((int) size);
+      data.setImgFile(file);
+    } catch (IOException e) {
+      closeQuietly(file);
+      RequestFuture<FaceFeatures> future = new RequestFuture<>(
+          new Packet<ImageData>(new Head(Packet.Head.CmdCode.GET_FEATURE), data), FaceFeatures.class);
+      future.fail(e);
+      return future;
+    }
+    return getFeatures(data);
+  }
+  
+  /**
+   * 异步获取人脸特征, 返回的future在IO线程中直接完成. 其上的同步回调(thenApply等)也在IO线程执行,
+   * 只适合不阻塞的轻量处理; 否则使用 {@link #getFeaturesAsync(byte[], boolean, boolean, boolean, Executor)}
+   */
+  public CompletableFuture<FaceFeatures> getFeaturesAsync(byte[] img, boolean useFeature, boolean useAge, boolean useGender){
+    return getFeatures(img, useFeature, useAge, useGender).toCompletableFuture();
+  }
+  
+  /**
+   * @param executor 完成及后续回调所在的线程池
+   */
+  public CompletableFuture<FaceFeatures> getFeaturesAsync(byte[] img, boolean useFeature, boolean useAge, boolean useGender, Executor executor){
+    return completeOn(getFeaturesAsync(img, useFeature, useAge, useGender), executor);
+  }
+  
+  /**
+   * 同 {@link #getFeatures(ByteBuffer, boolean, boolean, boolean)}, 返回在IO线程中完成的future
+   */
+  public CompletableFuture<FaceFeatures> getFeaturesAsync(ByteBuffer img, boolean useFeature, boolean useAge, boolean useGender){
+    return getFeatures(img, useFeature, useAge, useGender).toCompletableFuture();
+  }
+  
+  /**
+   * @param executor 完成及后续回调所在的线程池
+   */
+  public CompletableFuture<FaceFeatures> getFeaturesAsync(ByteBuffer img, boolean useFeature, boolean useAge, boolean useGender, Executor executor){
+    return completeOn(getFeaturesAsync(img, useFeature, useAge, useGender), executor);
+  }
+  
+  /**
+   * 批量获取人脸特征. 所有请求一起获取并发许可, 编码后作为一帧写出. 超过空闲的许可数时分段,
+   * 后续分段在之前的请求完成、归还许可后发送, 不阻塞调用线程.
+   * 返回的future在所有图片都完成后完成, 结果与imgs的顺序一致, 单张图片的失败记录在结果中.
+   * 启用结果缓存时只发送未命中的图片
+   */
+  public CompletableFuture<BatchResult> getFeaturesBatch(List<byte[]> imgs, boolean useFeature, boolean useAge, boolean useGender){
+    ResultCache cache = resultCache;
+    List<Packet<ImageData>> requests = new ArrayList<>(imgs.size());
+    List<RequestFuture<FaceFeatures>> pending = new ArrayList<>(imgs.size());
+    List<RequestFuture<FaceFeatures>> futures = new ArrayList<>(imgs.size());
+    for (byte[] img : imgs) {
+      Packet<ImageData> request = newRequest(newImageData(img, useFeature, useAge, useGender));
+      RequestFuture<FaceFeatures> future = new RequestFuture<>(request, FaceFeatures.class);
+      futures.add(future);
+      if (cache != null) {
+        ImageKey key = ImageKey.of(img, useFeature, useAge, useGender);
+        Packet<FaceFeatures> cached = cache.get(key);
+        if (cached != null) {
+          future.setResponse(cached);
+          continue;
+        }
+        cacheOnSuccess(future, cache, key);
+      }
+      requests.add(request);
+      pending.add(future);
+    }
     
+    BatchResult result = new BatchResult(imgs.size());
+    CompletableFuture<BatchResult> aggregate = new CompletableFuture<>();
+    if (imgs.isEmpty()) {
+      aggregate.complete(result);
+      return aggregate;
+    }
+    AtomicInteger remaining = new AtomicInteger(imgs.size());
+    for (int i = 0; i < futures.size(); i++) {
+      int index = i;
+      futures.get(i).whenComplete((r, t) -> {
+        result.set(index, r, t);
+        if (remaining.decrementAndGet() == 0) {
+          aggregate.complete(result);
+        }
+      });
+    }
+    
+    if (requests.isEmpty()) {
+      return aggregate;
+    }
+    Session session;
+    try {
+      session = selectSession();
+    } catch (IOException e) {
+      log.warn("No session for batch of {} requests: {}", pending.size(), e.getMessage());
+      for (RequestFuture<FaceFeatures> future : pending) {
+        future.fail(e);
+      }
+      return aggregate;
+    }
+    try {
+      session.send(requests, pending);
+    } catch (IOException e) {
+      // 已写出的请求照常等待响应, 未写出的请求已由send置为失败
+      log.warn("Batch send failed: {}", e.getMessage());
+    }
+    return aggregate;
+  }
+  
+  private static <T> CompletableFuture<T> completeOn(CompletableFuture<T> future, Executor executor) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    future.whenComplete((r, t) -> {
+      try {
+        executor.execute(() -> {
+          if (t != null) {
+            result.completeExceptionally(t);
+          } else {
+            result.complete(r);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+  
+  private static ImageData newImageData(byte[] img, boolean useFeature, boolean useAge, boolean useGender){
     ImageData data = new ImageData();
     data.setUseFeature(useFeature);
     data.setUseAge(useAge);
     data.setUseGender(useGender);
     data.setImgSize(img.length);
     data.setImgData(img);
+    return data;
+  }
+  
+  private static Packet<ImageData> newRequest(ImageData data){
+    Head head = new Head(Packet.Head.CmdCode.GET_FEATURE);
     head.setDataLen(data.getSize());
-    Packet<ImageData> request = new Packet<ImageData>(head, data);
+    return new Packet<ImageData>(head, data);
+  }
+  
+  private RequestFuture<FaceFeatures> getFeatures(ImageData data){
+    Packet<ImageData> request = newRequest(data);
     
     RequestFuture<FaceFeatures> future = new RequestFuture<>(request, FaceFeatures.class);
-    
+    send(data, request, future);
+    return future;
+  }
+  
+  private void send(ImageData data, Packet<ImageData> request, RequestFuture<FaceFeatures> future){
+    Session session;
     try {
+      session = selectSession();
       session.send(request, future);
     } catch (IOException e) {
       e.printStackTrace();
+      closeQuietly(data.getImgFile());
       future.fail(e);
+      return;
+    }
+    HedgePolicy policy = hedgePolicy;
+    // 图片文件发送后即关闭, 不能再次发送
+    if (policy != null && data.getImgFile() == null) {
+      scheduleHedge(data, future, session, policy);
+    }
+  }
+  
+  /**
+   * future超过对冲等待时间仍未完成时, 在另一个未饱和的连接上发送相同的请求, 先成功的一方完成future.
+   * 另一方仍占用所在连接的槽位和并发许可, 直到它的响应到达时才从缓存中移除并丢弃, 这样变慢的连接上
+   * 未完成请求数不会被低估, 不会因此分到更多请求. 对冲请求在时间轮线程中发送, 不等待并发许可,
+   * 未获准时归还对冲预算. 对冲请求失败时不影响原请求
+   */
+  private void scheduleHedge(ImageData data, RequestFuture<FaceFeatures> future, Session primary, HedgePolicy policy){
+    long start = System.nanoTime();
+    long delay = policy.onRequest();
+    HashedWheelTimer.Timeout timeout = delay < 0 ? null : HashedWheelTimer.getDefault().newTimeout(
+        () -> hedge(data, future, primary, policy), delay, TimeUnit.NANOSECONDS);
+    future.whenComplete((r, t) -> {
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      if (t == null) {
+        policy.record(System.nanoTime() - start);
+      }
+    });
+  }
+  
+  private void hedge(ImageData data, RequestFuture<FaceFeatures> future, Session primary, HedgePolicy policy){
+    if (future.isDone() || !policy.tryAcquire()) {
+      return;
+    }
+    Session session = null;
+    try {
+      for (int i = 0; i < HEDGE_SELECT_ATTEMPTS && session == null; i++) {
+        Session s = selectSession();
+        if (s != primary && !s.isSaturated()) {
+          session = s;
+        }
+      }
+    } catch (IOException e) {
+      // 没有其他可用的连接
+    }
+    if (session == null) {
+      policy.release();
+      return;
+    }
+    Packet<ImageData> request = newRequest(data);
+    RequestFuture<FaceFeatures> hedged = new RequestFuture<>(request, FaceFeatures.class);
+    hedged.whenComplete((r, t) -> {
+      Packet<FaceFeatures> response = hedged.getResponseNow();
+      if (response != null && !future.isDone()) {
+        future.setResponse(response);
+        if (future.getResponseNow() == response) {
+          policy.onHedgeWin();
+        }
+      }
+    });
+    // 在时间轮线程中执行, 不能等待许可
+    try {
+      if (!session.trySend(request, hedged)) {
+        policy.release();
+      }
+    } catch (IOException e) {
+      hedged.fail(e);
+      policy.release();
+    }
+  }
+  
+  /**
+   * 依次查找结果缓存和未完成的相同请求, 都没有时才发送
+   */
+  private RequestFuture<FaceFeatures> getFeatures(ImageData data, ImageKey key){
+    ResultCache cache = resultCache;
+    if (cache != null) {
+      Packet<FaceFeatures> cached = cache.get(key);
+      if (cached != null) {
+        RequestFuture<FaceFeatures> future = new RequestFuture<>(newRequest(data), FaceFeatures.class);
+        future.setResponse(cached);
+        return future;
+      }
     }
+    RequestCoalescer c = coalescer;
+    if (c == null) {
+      RequestFuture<FaceFeatures> future = getFeatures(data);
+      cacheOnSuccess(future, cache, key);
+      return future;
+    }
+    Packet<ImageData> request = newRequest(data);
+    RequestFuture<FaceFeatures> future = new RequestFuture<>(request, FaceFeatures.class);
+    RequestFuture<FaceFeatures> leader = new RequestFuture<>(request, FaceFeatures.class);
+    RequestFuture<FaceFeatures> existing = c.register(key, leader);
+    if (existing != null) {
+      RequestCoalescer.follow(existing, future);
+      return future;
+    }
+    cacheOnSuccess(leader, cache, key);
+    RequestCoalescer.follow(leader, future);
+    send(data, request, leader);
     return future;
   }
+  
+  private static void cacheOnSuccess(RequestFuture<FaceFeatures> future, ResultCache cache, ImageKey key){
+    if (cache == null) {
+      return;
+    }
+    future.addListener(new FutureListenerAdapter<FaceFeatures>() {
+      @Override
+      public void onComplete(RequestFuture<FaceFeatures> f) {
+        Packet<FaceFeatures> response = f.getResponseNow();
+        if (response != null) {
+          cache.put(key, response);
+        }
+      }
+    });
+  }
+  
+  public HedgePolicy getHedgePolicy() {
+    return hedgePolicy;
+  }
+  
+  /**
+   * 设置对冲策略, null表示不对冲
+   */
+  public void setHedgePolicy(HedgePolicy hedgePolicy) {
+    this.hedgePolicy = hedgePolicy;
+  }
+  
+  public RequestCoalescer getCoalescer() {
+    return coalescer;
+  }
+  
+  /**
+   * 设置请求合并, null表示不合并
+   */
+  public void setCoalescer(RequestCoalescer coalescer) {
+    this.coalescer = coalescer;
+  }
+  
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+  
+  /**
+   * 设置结果缓存, null表示不使用缓存
+   */
+  public void setResultCache(ResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+  
+  private static void closeQuietly(FileChannel file){
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException ignore) {
+      // 请求已经失败, 忽略关闭时的异常
+    }
+  }
 
   public String getIp() {
     return ip;
@@ -0,0 +1,149 @@
+package com.minivision.faceclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.minivision.faceclient.cache.RequestCoalescer;
+import com.minivision.faceclient.core.Session;
+import com.minivision.faceclient.core.SessionPool;
+
+/**
+ *
+ * 面向多台人脸算法服务的客户端, 请求分发到健康的服务端上
+ *
+ * <p>每次请求随机取两个可用的服务端, 选择 (未完成请求数 + 1) * 心跳RTT 较小的一个.
+ * 尚无心跳RTT的服务端(刚连接上)按所有服务端RTT的中位数计算, 避免它因RTT未知而分到大量请求.
+ * 心跳失败的服务端会断开并在后台重连, 在此期间不参与分发
+ *
+ * @author PanXinmiao
+ *
+ */
+public class ClusterClient extends Client {
+
+  private static final long MIN_RTT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final List<SessionPool> pools = new ArrayList<>();
+
+  /**
+   * 所有服务端在后台并行连接, 构造方法等待任意一个服务端连接成功后返回, 最多等待heartbeatTimeout秒.
+   * 超时后仍没有可用的服务端时直接返回, 此后的请求在连接成功前以IOException失败
+   *
+   * @param config 服务端地址由 {@link Config#getServers()} 指定, 其余配置对所有服务端生效
+   */
+  public ClusterClient(Config config) {
+    if (config.getServers() == null || config.getServers().isEmpty()) {
+      throw new IllegalArgumentException("No servers configured");
+    }
+    for (String server : config.getServers()) {
+      int idx = server.lastIndexOf(':');
+      if (idx <= 0) {
+        throw new IllegalArgumentException("Invalid server address, expect ip:port : " + server);
+      }
+      String ip = server.substring(0, idx).trim();
+      int port = Integer.parseInt(server.substring(idx + 1).trim());
+      pools.add(new SessionPool(config, ip, port, false));
+    }
+    setResultCache(newResultCache(config));
+    setCoalescer(config.isCoalesceRequests() ? new RequestCoalescer() : null);
+    setHedgePolicy(HedgePolicy.of(config));
+    awaitAvailable(TimeUnit.SECONDS.toNanos(config.getHeartbeatTimeout()));
+  }
+
+  private void awaitAvailable(long nanos) {
+    long deadline = System.nanoTime() + nanos;
+    while (System.nanoTime() - deadline < 0) {
+      for (SessionPool pool : pools) {
+        if (pool.isAvailable()) {
+          return;
+        }
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @Override
+  protected Session selectSession() throws IOException {
+    return selectPool().select();
+  }
+
+  private SessionPool selectPool() throws IOException {
+    int n = pools.size();
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    SessionPool a = pools.get(r.nextInt(n));
+    SessionPool b = pools.get(r.nextInt(n));
+    boolean aAvailable = a.isAvailable();
+    boolean bAvailable = b.isAvailable();
+    if (aAvailable && bAvailable) {
+      if (a == b) {
+        return a;
+      }
+      long unmeasured = a.getRttNanos() == 0 || b.getRttNanos() == 0 ? medianRtt() : 0;
+      return cost(a, unmeasured) <= cost(b, unmeasured) ? a : b;
+    }
+    if (aAvailable) {
+      return a;
+    }
+    if (bAvailable) {
+      return b;
+    }
+
+    // 随机选中的都不可用, 在剩余的服务端中选择代价最小的
+    SessionPool best = null;
+    double min = Double.MAX_VALUE;
+    long unmeasured = medianRtt();
+    for (SessionPool pool : pools) {
+      if (pool.isAvailable()) {
+        double c = cost(pool, unmeasured);
+        if (c < min) {
+          min = c;
+          best = pool;
+        }
+      }
+    }
+    if (best == null) {
+      throw new IOException("No available server in cluster");
+    }
+    return best;
+  }
+
+  /**
+   * @param unmeasured 尚无心跳RTT时使用的RTT
+   */
+  private static double cost(SessionPool pool, long unmeasured) {
+    long rtt = pool.getRttNanos();
+    return (pool.getPendingCount() + 1.0) * Math.max(rtt == 0 ? unmeasured : rtt, MIN_RTT_NANOS);
+  }
+
+  /**
+   * @return 已有心跳RTT的服务端RTT的中位数, 都没有时为0
+   */
+  private long medianRtt() {
+    long[] rtts = new long[pools.size()];
+    int n = 0;
+    for (SessionPool pool : pools) {
+      long rtt = pool.getRttNanos();
+      if (rtt > 0) {
+        rtts[n++] = rtt;
+      }
+    }
+    if (n == 0) {
+      return 0;
+    }
+    Arrays.sort(rtts, 0, n);
+    return rtts[n / 2];
+  }
+
+  public List<SessionPool> getPools() {
+    return Collections.unmodifiableList(pools);
+  }
+}
@@ -1,5 +1,8 @@
 package com.minivision.faceclient;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -17,11 +20,94 @@ public class Config {
   
   private String ip;
   private int port;
+  
+  /**
+   * 每个连接上未完成请求数的上限, 0表示不限制(此时仍受槽位数16384的限制)
+   */
   private int maxConcurrent = 200;
   private int heartbeatTimeout = 10;
   private int heartbeatPeriod = 5;
   private int responseTimeout = 10;
   
+  /**
+   * 响应超时的毫秒数, 大于0时代替responseTimeout(秒). 超时由时间轮按请求调度, 精度为10ms
+   */
+  private int responseTimeoutMillis = 0;
+  
+  /**
+   * 已不再使用: 超时由时间轮调度, 不再定时扫描
+   */
   private int checkTimeoutPeriod = responseTimeout / 2;
   private int reconnectPeriod = 5;
+  
+  /**
+   * 每个服务端建立的连接数, 请求分发到未完成请求最少的连接上
+   */
+  private int connectionsPerServer = 1;
+  
+  /**
+   * 集群模式({@link ClusterClient})下的服务端地址列表, 格式为 ip:port
+   */
+  private List<String> servers = new ArrayList<>();
+  
+  /**
+   * 合并写: IO线程每次最多把这么多字节的请求合并为一次写出, 0表示不合并
+   */
+  private int writeBatchBytes = 0;
+  
+  /**
+   * 合并写时, 第一个请求入队后最多等待的微秒数, 以积攒更多请求一起写出. 0表示不等待
+   */
+  private int writeLingerMicros = 0;
+  
+  /**
+   * 延迟解码: FaceFeatures只持有报文体, 人脸字段和特征向量在访问时才读取
+   */
+  private boolean lazyDecode = false;
+  
+  /**
+   * 未完成的请求达到maxConcurrent时新请求的处理方式, 见 {@link AdmissionMode}
+   */
+  private AdmissionMode admissionMode = AdmissionMode.REJECT;
+  
+  /**
+   * QUEUE方式下每个连接最多排队等待的请求数
+   */
+  private int admissionQueueDepth = 1024;
+  
+  /**
+   * QUEUE方式下每个请求最多等待的毫秒数
+   */
+  private int admissionWaitMillis = 1000;
+  
+  /**
+   * 结果缓存占用的字节数上限, 大于0时按图片内容和参数缓存成功的结果, 见 {@link com.minivision.faceclient.cache.ResultCache}
+   */
+  private long resultCacheBytes = 0;
+  
+  /**
+   * 缓存结果的有效期(毫秒), 0表示不过期
+   */
+  private long resultCacheTtlMillis = 10 * 60 * 1000;
+  
+  /**
+   * 合并并发的相同请求(图片内容和参数相同), 只发送第一个, 其余等待它的结果. 只对单张图片的请求生效
+   */
+  private boolean coalesceRequests = false;
+  
+  /**
+   * 对冲请求: 请求超过这么多毫秒未完成时在另一个连接上再发送一次, 0表示不对冲(除非设置了hedgePercentile).
+   * 设置了hedgePercentile时为等待时间的下限, 见 {@link HedgePolicy}
+   */
+  private long hedgeDelayMillis = 0;
+  
+  /**
+   * 大于0时按最近请求延迟的该百分位数(如95)决定对冲前的等待时间
+   */
+  private double hedgePercentile = 0;
+  
+  /**
+   * 对冲请求数占总请求数的上限(百分比)
+   */
+  private int hedgeBudgetPercent = 10;
 }
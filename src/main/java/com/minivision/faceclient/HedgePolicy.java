@@ -0,0 +1,206 @@
+package com.minivision.faceclient;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对冲请求的策略: 请求在一定时间内未完成时, 在另一个连接上再发送一次, 先到的响应作为结果
+ *
+ * <p>等待时间为固定值, 或最近请求延迟的百分位数(不小于固定值). 对冲的数量受预算限制:
+ * 每个请求积累budgetPercent%个对冲的额度, 最多积累 {@link #MAX_BURST} 个, 因此服务端变慢时对冲请求不超过总请求数的budgetPercent%
+ *
+ * @author PanXinmiao
+ *
+ */
+public class HedgePolicy {
+
+  /**
+   * 预算最多积累的对冲数
+   */
+  public static final int MAX_BURST = 10;
+
+  /**
+   * 计算百分位数的最近请求数
+   */
+  private static final int WINDOW = 1024;
+
+  /**
+   * 延迟样本达到此数量后才按百分位数计算等待时间
+   */
+  private static final int MIN_SAMPLES = 100;
+
+  /**
+   * 每记录这么多个样本重新计算一次百分位数
+   */
+  private static final int RECOMPUTE_INTERVAL = 128;
+
+  private static final int TOKENS_PER_HEDGE = 100;
+
+  private final long minDelayNanos;
+  private final double percentile;
+  private final int budgetPercent;
+
+  private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+  private final AtomicLong sampleCount = new AtomicLong();
+  private volatile long percentileNanos = -1;
+
+  private final AtomicInteger tokens;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder hedged = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder throttled = new LongAdder();
+
+  /**
+   * @param minDelayMillis 发送对冲请求前等待的毫秒数, percentile大于0时为等待时间的下限
+   * @param percentile 按最近请求延迟的该百分位数等待, 0表示只使用固定的等待时间
+   * @param budgetPercent 对冲请求数占总请求数的上限(百分比)
+   */
+  public HedgePolicy(long minDelayMillis, double percentile, int budgetPercent) {
+    if (minDelayMillis <= 0 && percentile <= 0) {
+      throw new IllegalArgumentException("Either minDelayMillis or percentile must be positive.");
+    }
+    if (percentile < 0 || percentile >= 100) {
+      throw new IllegalArgumentException("percentile must be in [0, 100): " + percentile);
+    }
+    if (budgetPercent < 0 || budgetPercent > 100) {
+      throw new IllegalArgumentException("budgetPercent must be in [0, 100]: " + budgetPercent);
+    }
+    this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelayMillis));
+    this.percentile = percentile;
+    this.budgetPercent = budgetPercent;
+    this.tokens = new AtomicInteger(TOKENS_PER_HEDGE * MAX_BURST * budgetPercent / 100);
+  }
+
+  /**
+   * @return 按配置创建的策略, 未启用对冲时返回null
+   */
+  static HedgePolicy of(Config config) {
+    if (config.getHedgeDelayMillis() <= 0 && config.getHedgePercentile() <= 0) {
+      return null;
+    }
+    return new HedgePolicy(config.getHedgeDelayMillis(), config.getHedgePercentile(),
+        config.getHedgeBudgetPercent());
+  }
+
+  /**
+   * 每个请求调用一次, 积累对冲预算
+   *
+   * @return 发送对冲请求前等待的纳秒数, 尚无足够的延迟样本时返回-1
+   */
+  long onRequest() {
+    requests.increment();
+    int max = TOKENS_PER_HEDGE * MAX_BURST;
+    for (;;) {
+      int t = tokens.get();
+      if (t >= max || tokens.compareAndSet(t, Math.min(max, t + budgetPercent))) {
+        break;
+      }
+    }
+    return delayNanos();
+  }
+
+  private long delayNanos() {
+    long p = percentileNanos;
+    if (percentile <= 0 || p < 0) {
+      return minDelayNanos > 0 ? minDelayNanos : -1;
+    }
+    return Math.max(minDelayNanos, p);
+  }
+
+  /**
+   * 从预算中扣除一个对冲请求
+   *
+   * @return 预算不足时返回false
+   */
+  boolean tryAcquire() {
+    for (;;) {
+      int t = tokens.get();
+      if (t < TOKENS_PER_HEDGE) {
+        throttled.increment();
+        return false;
+      }
+      if (tokens.compareAndSet(t, t - TOKENS_PER_HEDGE)) {
+        hedged.increment();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * 未能发送对冲请求时归还预算
+   */
+  void release() {
+    hedged.decrement();
+    tokens.addAndGet(TOKENS_PER_HEDGE);
+  }
+
+  void onHedgeWin() {
+    hedgeWins.increment();
+  }
+
+  /**
+   * 记录一个成功请求的延迟
+   */
+  void record(long latencyNanos) {
+    if (percentile <= 0) {
+      return;
+    }
+    // long计数在可预见的运行时间内不会溢出, 取模始终非负
+    long n = sampleCount.incrementAndGet();
+    samples.set((int) ((n - 1) & (WINDOW - 1)), latencyNanos);
+    if (n >= MIN_SAMPLES && n % RECOMPUTE_INTERVAL == 0) {
+      int size = (int) Math.min(n, WINDOW);
+      long[] copy = new long[size];
+      for (int i = 0; i < size; i++) {
+        copy[i] = samples.get(i);
+      }
+      Arrays.sort(copy);
+      percentileNanos = copy[Math.min(size - 1, (int) (size * percentile / 100))];
+    }
+  }
+
+  /**
+   * @return 当前发送对冲请求前等待的毫秒数, 尚无足够的延迟样本时返回-1
+   */
+  public long getDelayMillis() {
+    long d = delayNanos();
+    return d < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(d);
+  }
+
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * @return 发送的对冲请求数
+   */
+  public long getHedgedCount() {
+    return hedged.sum();
+  }
+
+  /**
+   * @return 对冲请求先于原请求完成的次数
+   */
+  public long getHedgeWinCount() {
+    return hedgeWins.sum();
+  }
+
+  /**
+   * @return 因预算不足而未发送的对冲请求数
+   */
+  public long getThrottledCount() {
+    return throttled.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "HedgePolicy(delayMillis=" + getDelayMillis() + ", requests=" + getRequestCount()
+        + ", hedged=" + getHedgedCount() + ", wins=" + getHedgeWinCount() + ", throttled="
+        + getThrottledCount() + ")";
+  }
+}
@@ -0,0 +1,118 @@
+package com.minivision.faceclient.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 线程安全的分级缓冲池, 容量按2的幂分级(256B ~ 1MB), 超过最大级别的缓冲区不做池化
+ *
+ * <p>默认实例由系统属性配置:
+ * <ul>
+ * <li>{@code faceclient.buffer.direct} 使用堆外缓冲区, 默认false</li>
+ * <li>{@code faceclient.buffer.leakDetection} 开启泄漏检测(测试时使用), 默认false</li>
+ * </ul>
+ *
+ * @author PanXinmiao
+ *
+ */
+public class BufferPool {
+
+  private static final int MIN_SHIFT = 8;
+  private static final int MAX_SHIFT = 20;
+  private static final int MAX_POOLED_PER_CLASS = 64;
+
+  private static final BufferPool DEFAULT = new BufferPool(
+      Boolean.getBoolean("faceclient.buffer.direct"),
+      Boolean.getBoolean("faceclient.buffer.leakDetection"));
+
+  private final boolean direct;
+  private final LeakDetector leakDetector;
+  private final Queue<ByteBuffer>[] pools;
+  private final AtomicInteger[] pooledCounts;
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(boolean direct, boolean leakDetection) {
+    this.direct = direct;
+    this.leakDetector = leakDetection ? new LeakDetector() : null;
+    int classes = MAX_SHIFT - MIN_SHIFT + 1;
+    this.pools = new Queue[classes];
+    this.pooledCounts = new AtomicInteger[classes];
+    for (int i = 0; i < classes; i++) {
+      pools[i] = new ConcurrentLinkedQueue<>();
+      pooledCounts[i] = new AtomicInteger();
+    }
+  }
+
+  public static BufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return position为0, limit为capacity的缓冲区, 容量不小于 minCapacity
+   */
+  public PooledBuffer acquire(int minCapacity) {
+    int sizeClass = sizeClass(minCapacity);
+    ByteBuffer buffer = null;
+    if (sizeClass >= 0) {
+      buffer = pools[sizeClass].poll();
+      if (buffer != null) {
+        pooledCounts[sizeClass].decrementAndGet();
+      } else {
+        buffer = allocate(1 << (sizeClass + MIN_SHIFT));
+      }
+    } else {
+      buffer = allocate(minCapacity);
+    }
+    outstanding.incrementAndGet();
+    return new PooledBuffer(this, buffer, sizeClass, leakDetector);
+  }
+
+  void recycle(ByteBuffer buffer, int sizeClass) {
+    outstanding.decrementAndGet();
+    if (sizeClass < 0) {
+      return;
+    }
+    if (pooledCounts[sizeClass].incrementAndGet() > MAX_POOLED_PER_CLASS) {
+      pooledCounts[sizeClass].decrementAndGet();
+      return;
+    }
+    buffer.clear();
+    pools[sizeClass].offer(buffer);
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * @return 对应的级别, 超过最大级别时返回-1
+   */
+  private static int sizeClass(int capacity) {
+    if (capacity > 1 << MAX_SHIFT) {
+      return -1;
+    }
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+    return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * @return 已取出尚未释放的缓冲区个数
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return 检测到的泄漏次数, 未开启泄漏检测时为0
+   */
+  public long getLeakCount() {
+    return leakDetector == null ? 0 : leakDetector.getLeakCount();
+  }
+}
@@ -0,0 +1,58 @@
+package com.minivision.faceclient.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 记录每个缓冲区的分配位置, 缓冲区未释放就被GC回收时打印分配时的调用栈
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+class LeakDetector {
+
+  private final ReferenceQueue<PooledBuffer> queue = new ReferenceQueue<>();
+  private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+  private final AtomicLong leakCount = new AtomicLong();
+
+  Tracker track(PooledBuffer buffer) {
+    reportLeaks();
+    Tracker tracker = new Tracker(buffer, queue, new Throwable("PooledBuffer allocated at"));
+    trackers.add(tracker);
+    return tracker;
+  }
+
+  void reportLeaks() {
+    Tracker tracker;
+    while ((tracker = (Tracker) queue.poll()) != null) {
+      if (trackers.remove(tracker)) {
+        leakCount.incrementAndGet();
+        log.error("LEAK: PooledBuffer was garbage collected without release()", tracker.allocation);
+      }
+    }
+  }
+
+  long getLeakCount() {
+    reportLeaks();
+    return leakCount.get();
+  }
+
+  class Tracker extends PhantomReference<PooledBuffer> {
+    private final Throwable allocation;
+
+    Tracker(PooledBuffer referent, ReferenceQueue<? super PooledBuffer> q, Throwable allocation) {
+      super(referent, q);
+      this.allocation = allocation;
+    }
+
+    void close() {
+      trackers.remove(this);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.minivision.faceclient.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 从 {@link BufferPool} 中取得的缓冲区, 使用完毕后必须且只能调用一次 {@link #release()}
+ *
+ * @author PanXinmiao
+ *
+ */
+public final class PooledBuffer {
+
+  private final BufferPool pool;
+  private final ByteBuffer buffer;
+  private final int sizeClass;
+  private final AtomicBoolean released = new AtomicBoolean();
+  private final LeakDetector.Tracker tracker;
+
+  PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass, LeakDetector detector) {
+    this.pool = pool;
+    this.buffer = buffer;
+    this.sizeClass = sizeClass;
+    this.tracker = detector == null ? null : detector.track(this);
+  }
+
+  public ByteBuffer buffer() {
+    return buffer;
+  }
+
+  public boolean isReleased() {
+    return released.get();
+  }
+
+  /**
+   * 归还到缓冲池, 之后不能再访问 {@link #buffer()}
+   *
+   * @throws IllegalStateException 重复释放
+   */
+  public void release() {
+    if (!released.compareAndSet(false, true)) {
+      throw new IllegalStateException("PooledBuffer already released");
+    }
+    if (tracker != null) {
+      tracker.close();
+    }
+    pool.recycle(buffer, sizeClass);
+  }
+}
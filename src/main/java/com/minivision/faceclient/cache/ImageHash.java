@@ -0,0 +1,92 @@
+package com.minivision.faceclient.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 图片内容的64位非加密哈希, 算法为xxHash64, 用于 {@link ResultCache} 的键
+ *
+ * @author PanXinmiao
+ *
+ */
+public final class ImageHash {
+
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+
+  private ImageHash() {
+  }
+
+  public static long hash(byte[] data) {
+    return hash(ByteBuffer.wrap(data), 0);
+  }
+
+  /**
+   * 计算data中position到limit之间的部分, 不改变data的position
+   */
+  public static long hash(ByteBuffer data) {
+    return hash(data, 0);
+  }
+
+  public static long hash(ByteBuffer data, long seed) {
+    ByteBuffer b = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int p = b.position();
+    int end = b.limit();
+    int len = end - p;
+    long h;
+    if (len >= 32) {
+      long v1 = seed + P1 + P2;
+      long v2 = seed + P2;
+      long v3 = seed;
+      long v4 = seed - P1;
+      for (int limit = end - 32; p <= limit; p += 32) {
+        v1 = round(v1, b.getLong(p));
+        v2 = round(v2, b.getLong(p + 8));
+        v3 = round(v3, b.getLong(p + 16));
+        v4 = round(v4, b.getLong(p + 24));
+      }
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+          + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = seed + P5;
+    }
+    h += len;
+    for (; p + 8 <= end; p += 8) {
+      h ^= round(0, b.getLong(p));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if (p + 4 <= end) {
+      h ^= (b.getInt(p) & 0xFFFFFFFFL) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      p += 4;
+    }
+    for (; p < end; p++) {
+      h ^= (b.get(p) & 0xFFL) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * P2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * P1;
+  }
+
+  private static long merge(long acc, long v) {
+    acc ^= round(0, v);
+    return acc * P1 + P4;
+  }
+}
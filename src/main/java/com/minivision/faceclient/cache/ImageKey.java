@@ -0,0 +1,62 @@
+package com.minivision.faceclient.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按图片内容和参数标识一个获取特征的请求, 由图片的64位哈希({@link ImageHash})、图片长度和三个参数组成
+ *
+ * @author PanXinmiao
+ *
+ */
+public final class ImageKey {
+
+  private final long hash;
+  private final int length;
+  private final int flags;
+
+  private ImageKey(long hash, int length, int flags) {
+    this.hash = hash;
+    this.length = length;
+    this.flags = flags;
+  }
+
+  public static ImageKey of(byte[] img, boolean useFeature, boolean useAge, boolean useGender) {
+    return new ImageKey(ImageHash.hash(img), img.length, flags(useFeature, useAge, useGender));
+  }
+
+  /**
+   * 键为img中position到limit之间的部分
+   */
+  public static ImageKey of(ByteBuffer img, boolean useFeature, boolean useAge,
+      boolean useGender) {
+    return new ImageKey(ImageHash.hash(img), img.remaining(),
+        flags(useFeature, useAge, useGender));
+  }
+
+  private static int flags(boolean useFeature, boolean useAge, boolean useGender) {
+    return (useFeature ? 1 : 0) | (useAge ? 2 : 0) | (useGender ? 4 : 0);
+  }
+
+  @Override
+  public int hashCode() {
+    long h = hash ^ ((long) length << 3) ^ flags;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ImageKey)) {
+      return false;
+    }
+    ImageKey k = (ImageKey) obj;
+    return hash == k.hash && length == k.length && flags == k.flags;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%016x/%d/%d", hash, length, flags);
+  }
+}
@@ -0,0 +1,74 @@
+package com.minivision.faceclient.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.minivision.faceclient.core.RequestFuture;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 合并并发的相同请求: 相同图片和参数({@link ImageKey})的请求未完成时, 后来的请求不再发送, 而是等待先发送的请求(leader)的结果
+ *
+ * <p>leader只在内部使用, 每个调用方拿到自己的future, 由leader完成时传递结果或异常.
+ * 因此调用方等待超时只影响自己, 而leader的失败(包括响应超时和连接断开)会传递给所有等待者
+ *
+ * @author PanXinmiao
+ *
+ */
+public class RequestCoalescer {
+
+  private final ConcurrentHashMap<ImageKey, RequestFuture<FaceFeatures>> inflight =
+      new ConcurrentHashMap<>();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * 登记leader. 已有相同的请求未完成时返回该请求, 调用方不应再发送leader; 否则返回null, 由调用方发送leader,
+   * leader完成后自动注销.
+   * 注销可能晚于等待者收到结果, 已完成但尚未注销的请求不再合并, 否则失败后立即重试的调用方会拿到同一个失败
+   */
+  public RequestFuture<FaceFeatures> register(ImageKey key, RequestFuture<FaceFeatures> leader) {
+    for (;;) {
+      RequestFuture<FaceFeatures> existing = inflight.putIfAbsent(key, leader);
+      if (existing == null) {
+        break;
+      }
+      if (!existing.isDone()) {
+        coalesced.increment();
+        return existing;
+      }
+      if (inflight.replace(key, existing, leader)) {
+        break;
+      }
+    }
+    leader.whenComplete((r, t) -> inflight.remove(key, leader));
+    return null;
+  }
+
+  /**
+   * leader完成时以相同的响应或异常完成follower, 在完成leader的线程(通常是IO线程)中执行
+   */
+  public static void follow(RequestFuture<FaceFeatures> leader,
+      RequestFuture<FaceFeatures> follower) {
+    leader.whenComplete((r, t) -> {
+      if (t != null) {
+        follower.fail(t);
+      } else {
+        follower.setResponse(leader.getResponseNow());
+      }
+    });
+  }
+
+  /**
+   * @return 未完成的不同请求数
+   */
+  public int getInflightCount() {
+    return inflight.size();
+  }
+
+  /**
+   * @return 因合并而未发送的请求数
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+}
@@ -0,0 +1,203 @@
+package com.minivision.faceclient.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 按图片内容缓存人脸检测结果, 相同的图片和参数不再发送请求
+ *
+ * <p>键见 {@link ImageKey}. 按键的哈希分为多个分段, 每个分段是一个按访问顺序排列的LRU,
+ * 占用的字节数超过上限时淘汰最久未访问的结果; 超过ttl的结果在访问时删除.
+ * 缓存的结果由所有命中的请求共享, 不要修改
+ *
+ * @author PanXinmiao
+ *
+ */
+public class ResultCache {
+
+  private static final int SEGMENTS = 16;
+
+  /**
+   * 每个结果除报文体外的估计开销: 键、LinkedHashMap节点、Packet及Head对象
+   */
+  private static final int ENTRY_OVERHEAD = 160;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final long maxBytes;
+  private final long ttlNanos;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxBytes 缓存结果占用的字节数上限(估计值)
+   * @param ttlMillis 结果的有效期, 0表示不过期
+   */
+  public ResultCache(long maxBytes, long ttlMillis) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, maxBytes / SEGMENTS));
+    }
+  }
+
+  /**
+   * @return 缓存的响应, 不存在或已过期时返回null
+   */
+  public Packet<FaceFeatures> get(ImageKey key) {
+    Segment segment = segmentFor(key);
+    Entry entry;
+    synchronized (segment) {
+      entry = segment.map.get(key);
+      if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.createNanos >= ttlNanos) {
+        segment.remove(key);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.response;
+  }
+
+  /**
+   * 缓存一个成功的响应, 大于分段容量的结果不缓存
+   */
+  public void put(ImageKey key, Packet<FaceFeatures> response) {
+    FaceFeatures body = response.getBody();
+    if (body == null) {
+      return;
+    }
+    int size = ENTRY_OVERHEAD + body.getSize();
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      if (size > segment.maxBytes) {
+        return;
+      }
+      segment.remove(key);
+      segment.map.put(key, new Entry(response, size, System.nanoTime()));
+      segment.bytes += size;
+      Iterator<Map.Entry<ImageKey, Entry>> it = segment.map.entrySet().iterator();
+      while (segment.bytes > segment.maxBytes && it.hasNext()) {
+        segment.bytes -= it.next().getValue().size;
+        it.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  public void invalidate(ImageKey key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.map.clear();
+        segment.bytes = 0;
+      }
+    }
+  }
+
+  private Segment segmentFor(ImageKey key) {
+    return segments[key.hashCode() & (SEGMENTS - 1)];
+  }
+
+  /**
+   * @return 缓存的结果数
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return 缓存结果占用的字节数(估计值)
+   */
+  public long getBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        bytes += segment.bytes;
+      }
+    }
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  public double getHitRate() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return "ResultCache(size=" + size() + ", bytes=" + getBytes() + ", hits=" + getHitCount()
+        + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + ")";
+  }
+
+  private static final class Entry {
+    private final Packet<FaceFeatures> response;
+    private final int size;
+    private final long createNanos;
+
+    Entry(Packet<FaceFeatures> response, int size, long createNanos) {
+      this.response = response;
+      this.size = size;
+      this.createNanos = createNanos;
+    }
+  }
+
+  private static final class Segment {
+    private final LinkedHashMap<ImageKey, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private long bytes;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    void remove(ImageKey key) {
+      Entry old = map.remove(key);
+      if (old != null) {
+        bytes -= old.size;
+      }
+    }
+  }
+}
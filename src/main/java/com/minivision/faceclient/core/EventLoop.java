@@ -0,0 +1,155 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 单线程的Selector循环, 负责多个连接的读写以及提交到本线程的任务
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+class EventLoop implements Runnable {
+
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean wakenUp = new AtomicBoolean();
+  // 只在IO线程中访问
+  private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+  private long scheduledSeq;
+
+  EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  Selector selector() {
+    return selector;
+  }
+
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * 提交任务到IO线程执行, 任务按提交顺序执行
+   */
+  void execute(Runnable task) {
+    tasks.offer(task);
+    if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * 延迟执行任务. 不足1毫秒的延迟由IO线程自旋等待, 适用于微秒级的短延迟
+   */
+  void schedule(Runnable task, long delay, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(delay);
+    execute(() -> scheduledTasks.add(new ScheduledTask(deadline, scheduledSeq++, task)));
+  }
+
+  @Override
+  public void run() {
+    log.info("{} started.", thread.getName());
+    for (;;) {
+      try {
+        long timeoutNanos = nextTimeoutNanos();
+        if (!tasks.isEmpty() || timeoutNanos == 0) {
+          selector.selectNow();
+        } else if (timeoutNanos < 0) {
+          selector.select();
+        } else if (timeoutNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+          selector.selectNow();
+        } else {
+          selector.select(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+        wakenUp.set(false);
+        processSelectedKeys();
+        runScheduledTasks();
+        runAllTasks();
+      } catch (Throwable t) {
+        log.error("Unexpected exception in event loop.", t);
+      }
+    }
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      NioChannel channel = (NioChannel) key.attachment();
+      channel.handle(key);
+    }
+  }
+
+  /**
+   * @return 距离最近一个延迟任务的纳秒数, 没有延迟任务时返回-1
+   */
+  private long nextTimeoutNanos() {
+    ScheduledTask next = scheduledTasks.peek();
+    if (next == null) {
+      return -1;
+    }
+    return Math.max(0, next.deadline - System.nanoTime());
+  }
+
+  private void runScheduledTasks() {
+    long now = System.nanoTime();
+    ScheduledTask next;
+    while ((next = scheduledTasks.peek()) != null && next.deadline - now <= 0) {
+      scheduledTasks.poll();
+      try {
+        next.task.run();
+      } catch (Throwable t) {
+        log.error("Scheduled task raised an exception.", t);
+      }
+    }
+  }
+
+  private static class ScheduledTask implements Comparable<ScheduledTask> {
+    private final long deadline;
+    private final long seq;
+    private final Runnable task;
+
+    ScheduledTask(long deadline, long seq, Runnable task) {
+      this.deadline = deadline;
+      this.seq = seq;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(ScheduledTask o) {
+      long d = deadline - o.deadline;
+      if (d != 0) {
+        return d < 0 ? -1 : 1;
+      }
+      return Long.compare(seq, o.seq);
+    }
+  }
+
+  private void runAllTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        log.error("Task raised an exception.", t);
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组共享的EventLoop, 所有Session的连接按轮询方式分配到其中一个EventLoop上
+ *
+ * <p>默认线程数为 min(4, cpu个数), 可通过系统属性 {@code faceclient.ioThreads} 调整
+ *
+ * @author PanXinmiao
+ *
+ */
+class EventLoopGroup {
+
+  private static final int DEFAULT_IO_THREADS = Integer.getInteger("faceclient.ioThreads",
+      Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static volatile EventLoopGroup defaultGroup;
+
+  private final EventLoop[] loops;
+  private final AtomicInteger index = new AtomicInteger();
+
+  EventLoopGroup(int nThreads, String namePrefix) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("nThreads must be positive: " + nThreads);
+    }
+    loops = new EventLoop[nThreads];
+    try {
+      for (int i = 0; i < nThreads; i++) {
+        loops[i] = new EventLoop(namePrefix + "-" + i);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open selector", e);
+    }
+  }
+
+  static EventLoopGroup getDefault() {
+    if (defaultGroup == null) {
+      synchronized (EventLoopGroup.class) {
+        if (defaultGroup == null) {
+          defaultGroup = new EventLoopGroup(Math.max(1, DEFAULT_IO_THREADS), "IoLoop");
+        }
+      }
+    }
+    return defaultGroup;
+  }
+
+  EventLoop next() {
+    return loops[Math.abs(index.getAndIncrement() % loops.length)];
+  }
+}
@@ -0,0 +1,72 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import com.minivision.faceclient.buffer.PooledBuffer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 先写出内联部分, 再用 {@link FileChannel#transferTo} 把文件的一段直接写入socket,
+ * 文件内容不经过Java堆. 写出完成或丢弃时关闭文件
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+class FileRegionFrame extends OutboundFrame {
+
+  private final FileChannel file;
+  private final long end;
+  private long position;
+
+  FileRegionFrame(PooledBuffer owned, ByteBuffer inline, FileChannel file, long position,
+      long count) {
+    super(owned, inline);
+    this.file = file;
+    this.position = position;
+    this.end = position + count;
+  }
+
+  @Override
+  void release() {
+    super.release();
+    try {
+      file.close();
+    } catch (IOException e) {
+      log.warn("Failed to close file.", e);
+    }
+  }
+
+  @Override
+  long remaining() {
+    return super.remaining() + end - position;
+  }
+
+  @Override
+  boolean writeTo(SocketChannel ch) throws IOException {
+    if (!super.writeTo(ch)) {
+      return false;
+    }
+    while (position < end) {
+      long n = file.transferTo(position, end - position, ch);
+      if (n <= 0) {
+        if (position >= file.size()) {
+          throw new IOException("File truncated while sending, expect " + end + " bytes");
+        }
+        // socket的发送缓冲区已满
+        return false;
+      }
+      position += n;
+    }
+    return true;
+  }
+
+  @Override
+  boolean isGatherable() {
+    return false;
+  }
+}
@@ -0,0 +1,88 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.buffer.PooledBuffer;
+import com.minivision.faceclient.protocol.Packet.Head;
+
+/**
+ * 从读缓冲区中切分出完整的帧(12字节Head + body), 一次读取可能包含多个帧
+ *
+ * <p>读缓冲区来自 {@link BufferPool}, 连接关闭时通过 {@link #release()} 归还
+ *
+ * @author PanXinmiao
+ *
+ */
+class FrameDecoder {
+
+  static final int HEAD_SIZE = 12;
+  private static final int DATA_LEN_OFFSET = 8;
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  private final BufferPool pool;
+  private PooledBuffer pooled;
+  private ByteBuffer buffer;
+
+  FrameDecoder(BufferPool pool) {
+    this.pool = pool;
+    this.pooled = pool.acquire(INITIAL_CAPACITY);
+    this.buffer = pooled.buffer();
+  }
+
+  /**
+   * @return 处于写模式的读缓冲区, 供SocketChannel.read使用
+   */
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * 传给handler的body是读缓冲区的一个视图, 只在回调期间有效
+   */
+  void decode(NioChannel.Handler handler) throws IOException {
+    buffer.flip();
+    int required = 0;
+    while (buffer.remaining() >= HEAD_SIZE) {
+      int start = buffer.position();
+      int dataLen = buffer.getInt(start + DATA_LEN_OFFSET);
+      if (dataLen < 0) {
+        throw new IOException("Invalid frame, dataLen = " + dataLen);
+      }
+      if (buffer.remaining() < HEAD_SIZE + dataLen) {
+        required = HEAD_SIZE + dataLen;
+        break;
+      }
+      Head head = new Head().decode(buffer);
+      int end = start + HEAD_SIZE + dataLen;
+      int limit = buffer.limit();
+      buffer.limit(end);
+      ByteBuffer body = buffer.slice();
+      buffer.limit(limit);
+      buffer.position(end);
+      handler.onFrame(head, body);
+    }
+    buffer.compact();
+    if (required > buffer.capacity()) {
+      replace(pool.acquire(required));
+    } else if (buffer.position() == 0 && buffer.capacity() > INITIAL_CAPACITY) {
+      // 大帧处理完后归还扩容的缓冲区
+      replace(pool.acquire(INITIAL_CAPACITY));
+    }
+  }
+
+  private void replace(PooledBuffer next) {
+    ByteBuffer nextBuffer = next.buffer();
+    buffer.flip();
+    nextBuffer.put(buffer);
+    pooled.release();
+    pooled = next;
+    buffer = nextBuffer;
+  }
+
+  void release() {
+    pooled.release();
+    buffer = null;
+  }
+}
@@ -0,0 +1,225 @@
+package com.minivision.faceclient.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 时间轮定时器, 添加和取消定时任务都是O(1), 精度为一个tick
+ *
+ * <p>添加和取消只把任务放入无锁队列, 由工作线程在每个tick开始时移入或移出对应的槽位,
+ * 因此槽位中的链表只在工作线程中访问
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+public class HashedWheelTimer {
+
+  private static final HashedWheelTimer DEFAULT =
+      new HashedWheelTimer(Long.getLong("faceclient.timer.tickMillis", 10), 512, "TimeoutChecker");
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startTime;
+  private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+  private final Thread worker;
+  private long tick;
+
+  public HashedWheelTimer(long tickMillis, int ticksPerWheel, String threadName) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+    }
+    int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.startTime = System.nanoTime();
+    this.worker = new Thread(this::run, threadName);
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  public static HashedWheelTimer getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * 在delay之后于定时器线程中执行task, task应当尽快返回
+   */
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+    Timeout timeout = new Timeout(this, task, deadline);
+    pendingTimeouts.offer(timeout);
+    return timeout;
+  }
+
+  private void run() {
+    for (;;) {
+      long deadline = tickNanos * (tick + 1);
+      long sleepNanos = deadline - (System.nanoTime() - startTime);
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          log.warn("{} interrupted, ignore.", worker.getName());
+        }
+        continue;
+      }
+      processCancelled();
+      transferPending();
+      wheel[(int) (tick & mask)].expire(deadline);
+      tick++;
+    }
+  }
+
+  private void processCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelledTimeouts.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void transferPending() {
+    // 每个tick最多转移10万个, 避免工作线程长时间停留在这里
+    for (int i = 0; i < 100000; i++) {
+      Timeout timeout = pendingTimeouts.poll();
+      if (timeout == null) {
+        break;
+      }
+      if (timeout.state != Timeout.ST_INIT) {
+        continue;
+      }
+      long calculated = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (calculated - tick) / wheel.length;
+      // 已经过期的放到当前槽位, 本次tick即执行
+      long ticks = Math.max(calculated, tick);
+      wheel[(int) (ticks & mask)].add(timeout);
+    }
+  }
+
+  /**
+   * 定时任务的句柄
+   */
+  public static final class Timeout {
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final HashedWheelTimer timer;
+    private final Runnable task;
+    private final long deadline;
+    private volatile int state = ST_INIT;
+
+    // 以下只在工作线程中访问
+    private long remainingRounds;
+    private Timeout next;
+    private Timeout prev;
+    private Bucket bucket;
+
+    private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+      this.timer = timer;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * @return 是否取消成功, 已执行或已取消时返回false
+     */
+    public boolean cancel() {
+      if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+        return false;
+      }
+      timer.cancelledTimeouts.offer(this);
+      return true;
+    }
+
+    public boolean isCancelled() {
+      return state == ST_CANCELLED;
+    }
+
+    public boolean isExpired() {
+      return state == ST_EXPIRED;
+    }
+
+    private void expire() {
+      if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+        return;
+      }
+      try {
+        task.run();
+      } catch (Throwable t) {
+        log.warn("Timeout task raised an exception.", t);
+      }
+    }
+  }
+
+  /**
+   * 时间轮的一个槽位, 双向链表
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void expire(long deadline) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+          remove(timeout);
+          timeout.expire();
+        } else if (timeout.isCancelled()) {
+          remove(timeout);
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.bucket != this) {
+        return;
+      }
+      Timeout next = timeout.next;
+      if (timeout.prev != null) {
+        timeout.prev.next = next;
+      }
+      if (next != null) {
+        next.prev = timeout.prev;
+      }
+      if (timeout == head) {
+        head = next;
+      }
+      if (timeout == tail) {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+}
@@ -1,30 +1,55 @@
 package com.minivision.faceclient.core;
 
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadFactory;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.minivision.faceclient.AdmissionMode;
 import com.minivision.faceclient.Config;
 import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Packet.Head;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * 一个连接上未完成的请求. 序列号由本连接自行分配, 请求按 序列号 & mask 直接放入定长的槽位数组,
+ * 添加和匹配响应都不需要装箱和哈希
+ *
+ * <p>槽位被尚未完成的请求占用时跳过该序列号, 因此同一时刻槽位数组中的序列号互不相同
+ *
+ * <p>并发数由许可控制, 请求在写出前获取许可, 在收到响应、超时或连接断开时从槽位移除并归还许可.
+ * 槽位的移除是CAS, 因此每个许可只归还一次
+ *
+ * @author PanXinmiao
+ *
+ */
 @Slf4j
 public class MessageContext {
 
-  private ConcurrentMap<Integer, RequestFuture<?>> reqCache = new ConcurrentHashMap<>();
-  private long nanoTimeout;
-  private ScheduledExecutorService timeoutChecker;
+  /**
+   * 不限制并发数时的槽位数
+   */
+  private static final int UNBOUNDED_TABLE_SIZE = 1 << 14;
+  private static final int MIN_TABLE_SIZE = 64;
 
-  // private Timer timer = new Timer("TimeoutChecker");
+  private AtomicReferenceArray<RequestFuture<?>> slots;
+  private int mask;
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final AtomicInteger pending = new AtomicInteger();
+  private long nanoTimeout;
+  private HashedWheelTimer timer = HashedWheelTimer.getDefault();
 
   private int responseTimeoutInSeconds = 10;
+  private int responseTimeoutMillis = 0;
   private int maxConcurrent = 200;
-  private int checkTimeoutPeriod = responseTimeoutInSeconds / 2;
+  private AdmissionMode admissionMode = AdmissionMode.REJECT;
+  private int admissionQueueDepth = 1024;
+  private long admissionWaitNanos = TimeUnit.SECONDS.toNanos(1);
+  // maxConcurrent<=0时为null, 不限制并发
+  private Semaphore permits;
+  private final AtomicInteger waiting = new AtomicInteger();
 
   public MessageContext() {
     init();
@@ -33,7 +58,10 @@ public class MessageContext {
   public MessageContext(Config config) {
     this.maxConcurrent = config.getMaxConcurrent();
     this.responseTimeoutInSeconds = config.getResponseTimeout();
-    this.checkTimeoutPeriod = config.getCheckTimeoutPeriod();
+    this.responseTimeoutMillis = config.getResponseTimeoutMillis();
+    this.admissionMode = config.getAdmissionMode();
+    this.admissionQueueDepth = config.getAdmissionQueueDepth();
+    this.admissionWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getAdmissionWaitMillis());
     init();
   }
 
@@ -43,66 +71,260 @@ public class MessageContext {
   }
 
   private void init() {
-    nanoTimeout = TimeUnit.SECONDS.toNanos(responseTimeoutInSeconds);
-
-    timeoutChecker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
-      @Override
-      public Thread newThread(Runnable r) {
-        return new Thread(r, "TimeoutChecker");
-      }
-    });
-
-
-    timeoutChecker.scheduleWithFixedDelay(() -> {
-      checkExpire();
-    }, checkTimeoutPeriod, checkTimeoutPeriod, TimeUnit.SECONDS);
-
+    nanoTimeout = responseTimeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(responseTimeoutMillis)
+        : TimeUnit.SECONDS.toNanos(responseTimeoutInSeconds);
+    // 槽位数为并发上限的2倍以上, 长时间未完成的请求不会让新请求找不到空槽位
+    int size = maxConcurrent > 0 && maxConcurrent <= UNBOUNDED_TABLE_SIZE / 2
+        ? Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(maxConcurrent * 2 - 1) << 1)
+        : UNBOUNDED_TABLE_SIZE;
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+    permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+  }
 
-    /*
-     * timer.schedule(new TimerTask() {
-     * 
-     * @Override public void run() { checkExpire(); } },
-     * TimeUnit.SECONDS.toMillis(checkTimeoutPeriod),
-     * TimeUnit.SECONDS.toMillis(checkTimeoutPeriod));
-     */
+  /**
+   * @return 本连接的下一个序列号, 始终为非负数
+   */
+  public int nextSerial() {
+    return sequence.incrementAndGet() & Integer.MAX_VALUE;
   }
 
   /**
-   * 定时任务检查容器中的超时请求
+   * 遍历槽位检查超时请求. 超时已由时间轮按请求单独调度, 这里只作为兜底, 不再定时执行
    */
-  // @Scheduled(fixedRate = 5000) //TODO
   public void checkExpire() {
     long start = System.nanoTime();
-    for (Entry<Integer, RequestFuture<?>> entry : reqCache.entrySet()) {
-      RequestFuture<?> req = entry.getValue();
+    for (int i = 0; i < slots.length(); i++) {
+      RequestFuture<?> req = slots.get(i);
+      if (req == null) {
+        continue;
+      }
       long aliveTime = System.nanoTime() - req.getBuildNanoTime();
-      if (req != null && aliveTime > nanoTimeout) {
-        req = reqCache.remove(entry.getKey());
-        // check again in case of anyone else removed it
-        if (req != null) {
-          req.fail(new FaceException("Request timeout"));
-          log.warn("request {} timeout after {}ns", req.getRequest(), aliveTime);
-        }
+      // check again in case of anyone else removed it
+      if (aliveTime > nanoTimeout && release(i, req)) {
+        req.fail(new FaceException("Request timeout"));
+        log.warn("request {} timeout after {}ns", req.getRequest(), aliveTime);
       }
     }
     long duration = System.nanoTime() - start;
     log.trace("TimeoutChecker finished in {}ns", duration);
   }
 
-  public void add(RequestFuture<?> req) {
-    if (maxConcurrent > 0 && reqCache.size() >= maxConcurrent) {
+  /**
+   * 按admissionMode获取许可, 然后为请求分配序列号并放入空闲的槽位
+   *
+   * @return 未获准或没有空闲槽位时让请求失败并返回false, 此时不应再发送该请求
+   */
+  public boolean add(RequestFuture<?> req) {
+    FaceException rejected = acquire(1);
+    if (rejected != null) {
+      req.fail(rejected);
+      return false;
+    }
+    return insert(req);
+  }
+
+  /**
+   * 与 {@link #add(RequestFuture)} 相同, 但不论admissionMode都不等待许可, 用于不能阻塞的线程(如时间轮)
+   *
+   * @return 没有空闲的许可或槽位时让请求失败并返回false
+   */
+  public boolean tryAdd(RequestFuture<?> req) {
+    if (permits != null && !permits.tryAcquire()) {
       req.fail(new FaceException(
           "Excessive number of concurrent requests , the limit is : " + maxConcurrent));
+      return false;
+    }
+    return insert(req);
+  }
+
+  /**
+   * 批量添加: 按admissionMode获取第一个许可, 再取走当前所有空闲的许可, 放入获准的前n个请求.
+   * 第一个许可未获准时剩余的请求全部失败. 没有空闲槽位的请求单独失败,
+   * 调用方应只发送前n个中未完成(isDone为false)的请求, 然后对剩余的请求再次调用
+   *
+   * @return 本次处理(放入或失败)的请求数n, reqs不为空时至少为1
+   */
+  public int addAll(List<? extends RequestFuture<?>> reqs) {
+    int n = reqs.size();
+    if (n == 0) {
+      return 0;
+    }
+    if (permits != null) {
+      FaceException rejected = acquire(1);
+      if (rejected != null) {
+        for (RequestFuture<?> req : reqs) {
+          req.fail(rejected);
+        }
+        return n;
+      }
+      int granted = 1;
+      while (granted < n && permits.tryAcquire()) {
+        granted++;
+      }
+      n = granted;
+    }
+    for (int i = 0; i < n; i++) {
+      insert(reqs.get(i));
+    }
+    return n;
+  }
+
+  /**
+   * 与 {@link #addAll(List)} 相同, 但只取走当前空闲的许可, 不论admissionMode都不等待.
+   * 没有空闲许可时返回0, 请求不受影响
+   *
+   * @return 本次处理(放入或失败)的请求数
+   */
+  public int tryAddAll(List<? extends RequestFuture<?>> reqs) {
+    int n = reqs.size();
+    if (permits != null) {
+      int granted = 0;
+      while (granted < n && permits.tryAcquire()) {
+        granted++;
+      }
+      n = granted;
+    }
+    for (int i = 0; i < n; i++) {
+      insert(reqs.get(i));
+    }
+    return n;
+  }
+
+  private boolean insert(RequestFuture<?> req) {
+    Head head = req.getRequest().getHead();
+    for (int i = 0; i <= mask; i++) {
+      int sn = nextSerial();
+      int idx = sn & mask;
+      if (slots.get(idx) != null) {
+        continue;
+      }
+      // 先写序列号再占用槽位, 其它线程看到槽位时序列号已可见
+      head.setSerialNum(sn);
+      if (slots.compareAndSet(idx, null, req)) {
+        pending.incrementAndGet();
+        req.setTimeout(timer.newTimeout(() -> expire(req), nanoTimeout, TimeUnit.NANOSECONDS));
+        return true;
+      }
+    }
+    if (permits != null) {
+      permits.release();
+    }
+    req.fail(new FaceException("No free slot for request, pending : " + pending.get()));
+    return false;
+  }
+
+  /**
+   * @return 未获准时的失败原因, 获准时返回null
+   */
+  private FaceException acquire(int n) {
+    if (permits == null || permits.tryAcquire(n)) {
+      return null;
+    }
+    try {
+      switch (admissionMode) {
+        case BLOCK:
+          permits.acquire(n);
+          return null;
+        case QUEUE:
+          if (waiting.incrementAndGet() > admissionQueueDepth) {
+            waiting.decrementAndGet();
+            return new FaceException("Admission queue is full, the depth is : "
+                + admissionQueueDepth);
+          }
+          try {
+            if (permits.tryAcquire(n, admissionWaitNanos, TimeUnit.NANOSECONDS)) {
+              return null;
+            }
+          } finally {
+            waiting.decrementAndGet();
+          }
+          return new FaceException("No permit after waiting "
+              + TimeUnit.NANOSECONDS.toMillis(admissionWaitNanos) + "ms, the limit is : "
+              + maxConcurrent);
+        default:
+          return new FaceException(
+              "Excessive number of concurrent requests , the limit is : " + maxConcurrent);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new FaceException("Interrupted while waiting for a permit", e);
+    }
+  }
+
+  private void expire(RequestFuture<?> req) {
+    if (release(req.getSerialNum() & mask, req)) {
+      long aliveTime = System.nanoTime() - req.getBuildNanoTime();
+      req.fail(new FaceException("Request timeout"));
+      log.warn("request {} timeout after {}ns", req.getRequest(), aliveTime);
+    }
+  }
+
+  /**
+   * @return 序列号对应的请求, 不存在(已超时或序列号已被复用)时返回null
+   */
+  public RequestFuture<?> remove(int serialNum) {
+    int idx = serialNum & mask;
+    RequestFuture<?> req = slots.get(idx);
+    if (req == null || req.getSerialNum() != serialNum || !release(idx, req)) {
+      return null;
+    }
+    return req;
+  }
+
+  private boolean release(int idx, RequestFuture<?> req) {
+    if (!slots.compareAndSet(idx, req, null)) {
+      return false;
     }
-    int id = req.getRequest().getHead().getSerialNum();
-    if (reqCache.putIfAbsent(id, req) != null) {
-      throw new IllegalArgumentException("Request with same serial number, "
-          + req.getRequest().getHead().getSerialNum() + " already exists");
+    pending.decrementAndGet();
+    if (permits != null) {
+      permits.release();
     }
+    HashedWheelTimer.Timeout timeout = req.getTimeout();
+    if (timeout != null) {
+      timeout.cancel();
+    }
+    return true;
+  }
+
+  /**
+   * 连接断开时让所有未完成的请求立即失败, 而不是等待超时
+   */
+  public void failAll(Throwable cause) {
+    for (int i = 0; i < slots.length(); i++) {
+      RequestFuture<?> req = slots.get(i);
+      if (req != null && release(i, req)) {
+        req.fail(cause);
+      }
+    }
+  }
+
+  /**
+   * @return 未完成的请求数
+   */
+  public int size() {
+    return pending.get();
   }
 
-  public RequestFuture<?> remove(int id) {
-    return reqCache.remove(id);
+  /**
+   * @return 响应超时的纳秒数
+   */
+  long getResponseTimeoutNanos() {
+    return nanoTimeout;
+  }
+
+  /**
+   * @return 并发上限, 不大于0表示不限制
+   */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  /**
+   * @return QUEUE方式下正在等待许可的请求数
+   */
+  public int getWaitingCount() {
+    return waiting.get();
   }
 
 }
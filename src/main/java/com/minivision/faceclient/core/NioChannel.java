@@ -0,0 +1,305 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.protocol.Packet.Head;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 非阻塞的TCP连接, 读写都在所属的EventLoop线程中完成
+ *
+ * <p>调用方线程只负责把帧放入写队列(无锁的多生产者队列), 由IO线程统一写出.
+ * 开启合并写时, IO线程把队列中的多个帧合并为一次gathering write, 并可等待一段时间以积攒更多的帧
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+class NioChannel {
+
+  interface Handler {
+
+    /**
+     * 在IO线程中回调, 不能阻塞
+     */
+    void onFrame(Head head, ByteBuffer body);
+
+    void onClosed(NioChannel channel, Throwable cause);
+  }
+
+  private final SocketChannel ch;
+  private final EventLoop loop;
+  private final Handler handler;
+  private final FrameDecoder decoder = new FrameDecoder(BufferPool.getDefault());
+  private final Queue<OutboundFrame> writeQueue = new ConcurrentLinkedQueue<>();
+  private final Runnable flushTask = this::flush;
+  private SelectionKey key;
+  private volatile boolean open = true;
+
+  private static final int FLUSH_IDLE = 0;
+  private static final int FLUSH_DELAYED = 1;
+  private static final int FLUSH_SCHEDULED = 2;
+  // 单次gathering write的ByteBuffer个数上限(IOV_MAX)
+  private static final int MAX_GATHER_BUFFERS = 1024;
+
+  private final AtomicInteger flushState = new AtomicInteger(FLUSH_IDLE);
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final int maxBatchBytes;
+  private final long lingerNanos;
+  // 以下只在IO线程中使用
+  private final List<OutboundFrame> batch = new ArrayList<>();
+  private ByteBuffer[] gather = new ByteBuffer[16];
+
+  private NioChannel(SocketChannel ch, EventLoop loop, Handler handler, int maxBatchBytes,
+      long lingerNanos) {
+    this.ch = ch;
+    this.loop = loop;
+    this.handler = handler;
+    this.maxBatchBytes = maxBatchBytes;
+    this.lingerNanos = lingerNanos;
+  }
+
+  /**
+   * 阻塞式建立连接, 连接成功后注册到EventLoop中
+   * 
+   * @param maxBatchBytes 合并写时单次写出的最大字节数, 0表示不合并, 每个帧单独写出
+   * @param lingerNanos 合并写时第一个帧入队后最多等待的时间, 0表示不等待
+   */
+  static NioChannel connect(InetSocketAddress address, int connectTimeoutMillis, EventLoop loop,
+      Handler handler, int maxBatchBytes, long lingerNanos) throws IOException {
+    SocketChannel ch = SocketChannel.open();
+    try {
+      ch.socket().connect(address, connectTimeoutMillis);
+      ch.socket().setTcpNoDelay(true);
+      ch.configureBlocking(false);
+    } catch (IOException e) {
+      ch.close();
+      throw e;
+    }
+    NioChannel channel = new NioChannel(ch, loop, handler, maxBatchBytes, lingerNanos);
+    loop.execute(channel::register);
+    return channel;
+  }
+
+  private void register() {
+    try {
+      key = ch.register(loop.selector(), SelectionKey.OP_READ, this);
+    } catch (ClosedChannelException e) {
+      doClose(e);
+    }
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * 线程安全, 帧按调用顺序写出
+   */
+  void write(OutboundFrame frame) throws IOException {
+    if (!open) {
+      throw new IOException("Connection closed: " + ch);
+    }
+    writeQueue.offer(frame);
+    if (!open) {
+      // 与关闭并发, 由本线程释放未写出的帧
+      discardQueued();
+      return;
+    }
+    long pending = maxBatchBytes > 0 ? pendingBytes.addAndGet(frame.remaining()) : 0;
+    scheduleFlush(pending);
+  }
+
+  private void scheduleFlush(long pending) {
+    if (lingerNanos > 0 && pending < maxBatchBytes) {
+      if (flushState.compareAndSet(FLUSH_IDLE, FLUSH_DELAYED)) {
+        loop.schedule(flushTask, lingerNanos, TimeUnit.NANOSECONDS);
+      }
+      return;
+    }
+    // 不等待或积攒的数据已足够, 尽快写出
+    for (;;) {
+      int state = flushState.get();
+      if (state == FLUSH_SCHEDULED) {
+        return;
+      }
+      if (flushState.compareAndSet(state, FLUSH_SCHEDULED)) {
+        loop.execute(flushTask);
+        return;
+      }
+    }
+  }
+
+  void handle(SelectionKey k) {
+    try {
+      if (k.isReadable()) {
+        read();
+      }
+      if (k.isValid() && k.isWritable()) {
+        flush();
+      }
+    } catch (IOException e) {
+      doClose(e);
+    }
+  }
+
+  private void read() throws IOException {
+    int n = ch.read(decoder.buffer());
+    if (n < 0) {
+      throw new IOException("Connection closed by peer: " + ch);
+    }
+    if (n > 0) {
+      decoder.decode(handler);
+    }
+  }
+
+  private void flush() {
+    if (!open || key == null) {
+      return;
+    }
+    try {
+      boolean complete = maxBatchBytes > 0 ? flushBatched() : flushEach();
+      if (!complete) {
+        // socket发送缓冲区已满, 等待可写事件
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    } catch (IOException e) {
+      doClose(e);
+      return;
+    }
+    flushState.set(FLUSH_IDLE);
+    // 清除标志后可能有新的帧入队
+    if (!writeQueue.isEmpty()) {
+      scheduleFlush(pendingBytes.get());
+    }
+  }
+
+  private boolean flushEach() throws IOException {
+    OutboundFrame frame;
+    while ((frame = writeQueue.peek()) != null) {
+      if (!frame.writeTo(ch)) {
+        return false;
+      }
+      writeQueue.poll();
+      frame.release();
+    }
+    return true;
+  }
+
+  /**
+   * 每次把队首的多个帧(总大小不超过maxBatchBytes)合并为一次gathering write
+   */
+  private boolean flushBatched() throws IOException {
+    while (!writeQueue.isEmpty()) {
+      OutboundFrame first = writeQueue.peek();
+      if (!first.isGatherable()) {
+        long before = first.remaining();
+        boolean complete = first.writeTo(ch);
+        pendingBytes.addAndGet(first.remaining() - before);
+        if (!complete) {
+          return false;
+        }
+        writeQueue.poll();
+        first.release();
+        continue;
+      }
+      int n = 0;
+      long bytes = 0;
+      for (OutboundFrame frame : writeQueue) {
+        if (!frame.isGatherable()) {
+          break;
+        }
+        ByteBuffer[] buffers = frame.buffers();
+        long remaining = frame.remaining();
+        if (!batch.isEmpty() && (bytes + remaining > maxBatchBytes
+            || n + buffers.length > MAX_GATHER_BUFFERS)) {
+          break;
+        }
+        if (n + buffers.length > gather.length) {
+          gather = Arrays.copyOf(gather, Math.max(gather.length * 2, n + buffers.length));
+        }
+        System.arraycopy(buffers, 0, gather, n, buffers.length);
+        n += buffers.length;
+        bytes += remaining;
+        batch.add(frame);
+      }
+
+      long written = ch.write(gather, 0, n);
+      pendingBytes.addAndGet(-written);
+      Arrays.fill(gather, 0, n, null);
+
+      boolean complete = true;
+      for (OutboundFrame frame : batch) {
+        if (frame.remaining() > 0) {
+          complete = false;
+          break;
+        }
+        writeQueue.poll();
+        frame.release();
+      }
+      batch.clear();
+      if (!complete) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void close() {
+    if (loop.inEventLoop()) {
+      doClose(null);
+    } else {
+      loop.execute(() -> doClose(null));
+    }
+  }
+
+  private void doClose(Throwable cause) {
+    if (!open) {
+      return;
+    }
+    open = false;
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      ch.close();
+    } catch (IOException e) {
+      log.warn("Close channel error", e);
+    }
+    discardQueued();
+    pendingBytes.set(0);
+    decoder.release();
+    handler.onClosed(this, cause);
+  }
+
+  private void discardQueued() {
+    OutboundFrame frame;
+    while ((frame = writeQueue.poll()) != null) {
+      frame.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return ch.toString();
+  }
+}
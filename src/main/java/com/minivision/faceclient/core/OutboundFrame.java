@@ -0,0 +1,73 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.minivision.faceclient.buffer.PooledBuffer;
+
+/**
+ * 待写出的一帧数据, 由IO线程写入socket
+ *
+ * @author PanXinmiao
+ *
+ */
+class OutboundFrame {
+
+  private static final int MAX_WRITE_BUFFERS = 1024;
+
+  private final PooledBuffer owned;
+  private final ByteBuffer[] buffers;
+  // 之前的buffer已全部写出, 批量请求的帧可能包含大量buffer
+  private int offset;
+
+  /**
+   * @param owned 写出完成或丢弃时释放的池化缓冲区, 可以为null
+   */
+  OutboundFrame(PooledBuffer owned, ByteBuffer... buffers) {
+    this.owned = owned;
+    this.buffers = buffers;
+  }
+
+  /**
+   * 写出完成或被丢弃后调用, 只调用一次
+   */
+  void release() {
+    if (owned != null) {
+      owned.release();
+    }
+  }
+
+  /**
+   * @return 是否可以与其它帧合并为一次gathering write, 为false时只能通过writeTo写出
+   */
+  boolean isGatherable() {
+    return true;
+  }
+
+  ByteBuffer[] buffers() {
+    return buffers;
+  }
+
+  /**
+   * @return 尚未写出的字节数
+   */
+  long remaining() {
+    long remaining = 0;
+    for (int i = offset; i < buffers.length; i++) {
+      remaining += buffers[i].remaining();
+    }
+    return remaining;
+  }
+
+  /**
+   * @return 是否已全部写出
+   */
+  boolean writeTo(SocketChannel ch) throws IOException {
+    ch.write(buffers, offset, Math.min(buffers.length - offset, MAX_WRITE_BUFFERS));
+    while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+      offset++;
+    }
+    return offset == buffers.length;
+  }
+}
@@ -1,14 +1,16 @@
 package com.minivision.faceclient.core;
 
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
 
 import com.minivision.faceclient.ex.FaceException;
 import com.minivision.faceclient.protocol.Packet;
@@ -16,6 +18,9 @@ import com.minivision.faceclient.protocol.Packet;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * 
+ * 无锁的请求结果. 结果只能由第一次setResponse或fail通过CAS设置, 等待线程先短暂自旋再park,
+ * 等待可被中断, 监听器保存在无锁栈中
  * 
  * @author PanXinmiao
  *
@@ -24,17 +29,40 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class RequestFuture<T> {
+
+  /**
+   * 多核时park前自旋等待的纳秒数, 响应通常在此时间内到达时可避免park/unpark的开销
+   */
+  private static final long SPIN_NANOS =
+      Runtime.getRuntime().availableProcessors() > 1 ? TimeUnit.MICROSECONDS.toNanos(20) : 0;
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<RequestFuture, Object> OUTCOME =
+      AtomicReferenceFieldUpdater.newUpdater(RequestFuture.class, Object.class, "outcome");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<RequestFuture, Waiter> WAITERS =
+      AtomicReferenceFieldUpdater.newUpdater(RequestFuture.class, Waiter.class, "waiters");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<RequestFuture, ListenerNode> LISTENERS =
+      AtomicReferenceFieldUpdater.newUpdater(RequestFuture.class, ListenerNode.class, "listeners");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<RequestFuture, CompletableFuture> COMPLETION =
+      AtomicReferenceFieldUpdater.newUpdater(RequestFuture.class, CompletableFuture.class, "completion");
+
+  // 完成之后监听器栈的栈顶, 此后添加的监听器直接执行
+  private static final ListenerNode<?> COMPLETED = new ListenerNode<>(null);
   
   private Packet<?> request;
   Class<T> responseBodyType;
-  private Packet<T> response;
   private long buildNanoTime;
   private long sendNanoTime;
-  private long responseNanoTime;
-  private volatile boolean done;
-  private Throwable throwable;
-  
-  private List<FutureListener<T>> listeners = Collections.synchronizedList(new ArrayList<>());
+  private volatile long responseNanoTime;
+  // null: 未完成; Packet: 响应; Failure: 失败
+  private volatile Object outcome;
+  private volatile Waiter waiters;
+  private volatile ListenerNode<T> listeners;
+  private volatile CompletableFuture<T> completion;
+  private volatile HashedWheelTimer.Timeout timeout;
   
   private static ExecutorService listenerProcessors;
   
@@ -62,7 +90,7 @@ public class RequestFuture<T> {
   
 
   public boolean isDone() {
-    return done;
+    return outcome != null;
   }
   
   public int getSerialNum(){
@@ -77,83 +105,176 @@ public class RequestFuture<T> {
     this.request = request;
   }
 
+  /**
+   * 等待响应. 等待中被中断时保留中断状态并抛出FaceException
+   */
   public Packet<T> getResponse() throws FaceException {
-    waitResponse();
-    if (throwable != null) {
-      log.error("Invalid response", throwable);
-      throw new FaceException("Invalid response", throwable);
-    }
-    
-    return response;
+    return report(awaitDone(false, 0));
   }
   
   public T get() throws FaceException {
     return getResponse().getBody();
   }
 
+  /**
+   * @param timeout 最多等待的毫秒数, 超时后请求以失败结束
+   */
   public Packet<T> getResponse(long timeout) throws FaceException {
-    waitResponse(timeout);
-    if (throwable != null) {
+    Object o = awaitDone(true, TimeUnit.MILLISECONDS.toNanos(timeout));
+    if (o == null) {
+      fail(new FaceException("Request timeout : " + timeout));
+      o = outcome;
+    }
+    return report(o);
+  }
+
+  /**
+   * @return 已成功完成时的响应, 未完成或失败时返回null, 不等待
+   */
+  @SuppressWarnings("unchecked")
+  public Packet<T> getResponseNow() {
+    Object o = outcome;
+    return o instanceof Failure ? null : (Packet<T>) o;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Packet<T> report(Object o) {
+    if (o instanceof Failure) {
+      Throwable throwable = ((Failure) o).cause;
       log.error("Invalid response", throwable);
       throw new FaceException("Invalid response", throwable);
     }
-    
-    return response;
-  }
-
-  private void waitResponse(long timeout) {
-    long startWait = System.currentTimeMillis();
-    long limitTime = timeout;
-    synchronized (this) {
-      while (!done) {
-        try {
-          this.wait(limitTime);
-          limitTime = timeout - System.currentTimeMillis() + startWait;
-          if (limitTime <= 0) {
-            this.responseNanoTime = System.nanoTime();
-            this.throwable =
-                new FaceException("Request timeout : " + timeout);
-            this.done = true;
+    return (Packet<T>) o;
+  }
+
+  /**
+   * @return 完成时的outcome, 超时返回null
+   */
+  private Object awaitDone(boolean timed, long nanos) {
+    Object o = outcome;
+    if (o != null) {
+      return o;
+    }
+    long deadline = timed ? System.nanoTime() + nanos : 0L;
+    if (SPIN_NANOS > 0) {
+      long spinDeadline = System.nanoTime() + (timed ? Math.min(SPIN_NANOS, nanos) : SPIN_NANOS);
+      while ((o = outcome) == null && System.nanoTime() - spinDeadline < 0) {
+        // spin
+      }
+      if (o != null) {
+        return o;
+      }
+    }
+    Waiter w = new Waiter(Thread.currentThread());
+    do {
+      w.next = waiters;
+    } while (!WAITERS.compareAndSet(this, w.next, w));
+    try {
+      // 入栈后再检查一次, 避免完成线程在入栈前已经唤醒过等待者
+      while ((o = outcome) == null) {
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          throw new FaceException("Interrupted while waiting response.");
+        }
+        if (timed) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return null;
           }
-        } catch (InterruptedException e) {
-          log.error("Interrupted while waiting response.", e);
+          LockSupport.parkNanos(this, remaining);
+        } else {
+          LockSupport.park(this);
         }
       }
+      return o;
+    } finally {
+      w.thread = null;
     }
   }
 
-  private void waitResponse() {
-    synchronized (this) {
-      while (!done) {
-        try {
-          this.wait();
-        } catch (InterruptedException e) {
-          log.error("Interrupted while waiting response.", e);
-        }
+  public void setResponse(Packet<T> response) {
+    complete(response);
+  }
+
+  public void fail(Throwable t) {
+    complete(new Failure(t));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void complete(Object o) {
+    if (outcome != null) {
+      return;
+    }
+    // 在发布outcome之前写入, 被唤醒的等待者和监听器一定能读到. CAS失败时覆盖的时间与胜者相差无几
+    this.responseNanoTime = System.nanoTime();
+    if (!OUTCOME.compareAndSet(this, null, o)) {
+      return;
+    }
+    for (Waiter w = WAITERS.getAndSet(this, null); w != null; w = w.next) {
+      Thread t = w.thread;
+      if (t != null) {
+        LockSupport.unpark(t);
       }
     }
+    CompletableFuture<T> c = completion;
+    if (c != null) {
+      complete(c, o);
+    }
+    doCallback((ListenerNode<T>) LISTENERS.getAndSet(this, COMPLETED));
   }
 
-  public void setResponse(Packet<T> response) {
-    synchronized (this) {
-      this.responseNanoTime = System.nanoTime();
-      this.response = response;
-      this.done = true;
-      this.notifyAll();
+  HashedWheelTimer.Timeout getTimeout() {
+    return timeout;
+  }
+
+  void setTimeout(HashedWheelTimer.Timeout timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * 返回一个新的CompletableFuture, 它在收到响应的线程(通常是IO线程)中直接完成,
+   * 不经过回调线程池. 依赖它的同步回调也在该线程中执行, 不应阻塞.
+   * 调用方对它的complete或cancel不影响本请求
+   */
+  public CompletableFuture<T> toCompletableFuture() {
+    return completion().thenApply(Function.identity());
+  }
+
+  /**
+   * 完成时在完成的线程(通常是IO线程)中执行action, 已完成时在调用线程中立即执行. 供客户端内部使用, action不应阻塞
+   */
+  public void whenComplete(BiConsumer<? super T, ? super Throwable> action) {
+    completion().whenComplete(action);
+  }
+
+  /**
+   * @return 内部的CompletableFuture, 只由本请求完成, 不交给调用方
+   */
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<T> completion() {
+    CompletableFuture<T> c = completion;
+    if (c != null) {
+      return c;
     }
-    
-    doCallback();
+    if (!COMPLETION.compareAndSet(this, null, new CompletableFuture<T>())) {
+      return completion;
+    }
+    c = completion;
+    // 与complete中先写outcome再读completion对应, 两边至少有一方会完成它
+    Object o = outcome;
+    if (o != null) {
+      complete(c, o);
+    }
+    return c;
   }
 
-  public void fail(Throwable t) {
-    synchronized (this) {
-      this.responseNanoTime = System.nanoTime();
-      this.throwable = t;
-      this.done = true;
-      this.notifyAll();
+  @SuppressWarnings("unchecked")
+  private static <T> void complete(CompletableFuture<T> c, Object o) {
+    if (o instanceof Failure) {
+      c.completeExceptionally(((Failure) o).cause);
+    } else {
+      c.complete(((Packet<T>) o).getBody());
     }
-    
-    doCallback();
   }
 
   public long getBuildNanoTime() {
@@ -180,42 +301,102 @@ public class RequestFuture<T> {
     this.responseBodyType = responseBodyType;
   }
   
+  /**
+   * 添加监听器, 在回调线程池中执行. 已完成时立即提交执行
+   */
   public void addListener(FutureListener<T> l){
-    listeners.add(l);
+    ListenerNode<T> node = new ListenerNode<>(l);
+    for (;;) {
+      ListenerNode<T> head = listeners;
+      if (head == COMPLETED) {
+        submit(l);
+        return;
+      }
+      node.next = head;
+      if (LISTENERS.compareAndSet(this, head, node)) {
+        return;
+      }
+    }
   }
   
+  /**
+   * 取消尚未执行的监听器
+   */
   public void cancelListener(FutureListener<T> l){
-    listeners.remove(l);
+    for (ListenerNode<T> n = listeners; n != null && n != COMPLETED; n = n.next) {
+      if (n.listener == l) {
+        n.listener = null;
+        return;
+      }
+    }
   }
   
-  private void doCallback(){
-    for(FutureListener<T> l: listeners){
-      listenerProcessors.submit(new Runnable() {
-        @Override
-        public void run() {
-          if(throwable == null){
-            l.onSucess(response.getBody());
-          }else{
-            l.onFail(throwable);
-          }
-        }
-      });
-      
-      listenerProcessors.submit(new Runnable() {
-        @Override
-        public void run() {
-          l.onComplete(RequestFuture.this);
-        }
-      });
+  private void doCallback(ListenerNode<T> head){
+    // 栈中为逆序, 反转后按添加顺序执行
+    ListenerNode<T> reversed = null;
+    while (head != null) {
+      ListenerNode<T> next = head.next;
+      head.next = reversed;
+      reversed = head;
+      head = next;
+    }
+    for (ListenerNode<T> n = reversed; n != null; n = n.next) {
+      FutureListener<T> l = n.listener;
+      if (l != null) {
+        submit(l);
+      }
     }
   }
+
+  @SuppressWarnings("unchecked")
+  private void submit(FutureListener<T> l) {
+    Object o = outcome;
+    listenerProcessors.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (o instanceof Failure) {
+          l.onFail(((Failure) o).cause);
+        } else {
+          l.onSucess(((Packet<T>) o).getBody());
+        }
+        l.onComplete(RequestFuture.this);
+      }
+    });
+  }
   
   @Override
   public String toString() {
+    Object o = outcome;
     return "RequestFuture [request=" + request + ", responseBodyType=" + responseBodyType
-        + ", response=" + response + ", buildNanoTime=" + buildNanoTime + ", sendNanoTime="
-        + sendNanoTime + ", responseNanoTime=" + responseNanoTime + ", done=" + done
-        + ", throwable=" + throwable + "]";
+        + ", response=" + (o instanceof Failure ? null : o) + ", buildNanoTime=" + buildNanoTime
+        + ", sendNanoTime=" + sendNanoTime + ", responseNanoTime=" + responseNanoTime + ", done="
+        + (o != null) + ", throwable=" + (o instanceof Failure ? ((Failure) o).cause : null) + "]";
+  }
+
+  private static final class Failure {
+    private final Throwable cause;
+
+    Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  private static final class Waiter {
+    private volatile Thread thread;
+    private Waiter next;
+
+    Waiter(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  private static final class ListenerNode<T> {
+    private volatile FutureListener<T> listener;
+    private ListenerNode<T> next;
+
+    ListenerNode(FutureListener<T> listener) {
+      this.listener = listener;
+    }
   }
 
 }
@@ -1,22 +1,29 @@
 package com.minivision.faceclient.core;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.minivision.faceclient.Config;
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.buffer.PooledBuffer;
+import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Codec;
+import com.minivision.faceclient.protocol.CodecRegistry;
 import com.minivision.faceclient.protocol.Packet;
 import com.minivision.faceclient.protocol.PacketUtil;
 import com.minivision.faceclient.protocol.BasePacketElement;
@@ -25,37 +32,41 @@ import com.minivision.faceclient.protocol.Packet.Head.CmdCode;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * 与一个服务端的连接, 底层为注册在共享EventLoop上的非阻塞SocketChannel
+ * 
+ * @author PanXinmiao
+ *
+ */
 @Slf4j
-public class Session {
+public class Session implements NioChannel.Handler {
 
   private String serverIp;
   private int serverPort;
   private MessageContext messageContext;
-  private Socket socket;
-
-  private OutputStream os;
-  private InputStream is;
-
-  
-  private Future<?> readTaskFuture;
-  //private Thread readThread;
-  
-  // TODO需要吗？ 注意:现在是在方法调用的线程做IO写操作
-  // private Thread writeThread;
+  private final BufferPool bufferPool = BufferPool.getDefault();
+  private CodecRegistry codecRegistry = CodecRegistry.getDefault();
+  private volatile NioChannel channel;
 
   private volatile boolean connected;
   
   //private Timer heartbeart = new Timer("HeartBeart");
   
-  private RequestFuture<Void> heartbeartFuture;
+  private volatile RequestFuture<Void> heartbeartFuture;
+  private volatile long rttNanos;
+  private ScheduledFuture<?> heartbeatTaskFuture;
+  private final AtomicBoolean reconnecting = new AtomicBoolean();
   
   private int heartbeatTimeout = 10;
   private int heartbeatPeriod = 5;
   private int reconnectPeriod = 5;
+  private int writeBatchBytes = 0;
+  private int writeLingerMicros = 0;
   
   
   private static ScheduledExecutorService heartbeartExecutor;
-  private static ThreadPoolExecutor ioExecutor;
+  // 建立连接最长阻塞heartbeatTimeout秒, 在单独的线程中执行, 不占用心跳线程
+  private static ExecutorService connectExecutor;
   
   static{
     heartbeartExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
@@ -64,13 +75,14 @@ public class Session {
         return new Thread(r, "HeartBeart");
       }
     });
-    
-    ioExecutor = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
-        60L, TimeUnit.SECONDS,
-        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+    AtomicInteger connectThreads = new AtomicInteger();
+    connectExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), new ThreadFactory() {
           @Override
           public Thread newThread(Runnable r) {
-            return new Thread(r, "IoExecutor");
+            Thread t = new Thread(r, "Reconnect-" + connectThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
           }
         });
   }
@@ -78,196 +90,426 @@ public class Session {
   public Session(String ip, int port){
     this.serverIp = ip;
     this.serverPort = port;
-    reconnect();
+    this.messageContext = new MessageContext();
+    start(true);
   }
   
   public Session(Config config){
-    this.serverIp = config.getIp();
-    this.serverPort = config.getPort();
+    this(config, config.getIp(), config.getPort(), true);
+  }
+
+  /**
+   * @param waitConnected 是否阻塞直到第一次连接成功, 为false时在后台建立连接
+   */
+  public Session(Config config, String ip, int port, boolean waitConnected){
+    this.serverIp = ip;
+    this.serverPort = port;
     this.heartbeatTimeout = config.getHeartbeatTimeout();
     this.heartbeatPeriod = config.getHeartbeatPeriod();
     this.reconnectPeriod = config.getReconnectPeriod();
+    this.writeBatchBytes = config.getWriteBatchBytes();
+    this.writeLingerMicros = config.getWriteLingerMicros();
+    this.codecRegistry = config.isLazyDecode() ? CodecRegistry.getLazy() : CodecRegistry.getDefault();
     this.messageContext = new MessageContext(config);
-    reconnect();
+    start(waitConnected);
+  }
+
+  private void start(boolean waitConnected) {
+    if (waitConnected) {
+      reconnect();
+    } else {
+      scheduleReconnect(0);
+    }
+    heartbeatTaskFuture = heartbeartExecutor.scheduleWithFixedDelay(()->{
+      RequestFuture<Void> last = heartbeartFuture;
+      if (!connected || (last != null && !last.isDone())) {
+        return;
+      }
+      heartbeart();
+    }, heartbeatPeriod, heartbeatPeriod, TimeUnit.SECONDS);
   }
 
-  @SuppressWarnings({"rawtypes", "unchecked"})
   private void init() throws UnknownHostException, IOException {
     connect();
-    readTaskFuture = ioExecutor.submit(() -> {
-      log.info("[{}] io read task started.", socket);
-      while (connected) {
+  }
+
+  /**
+   * 心跳失败时断开连接并在后台重连, 此时该Session不再参与请求分发
+   */
+  private void onHeartbeatFail(NioChannel ch, Throwable cause) {
+    if (ch != channel) {
+      return;
+    }
+    log.warn("[{}:{}] heartbeat fail: [{}]", serverIp, serverPort, cause.getMessage());
+    disconnect();
+    scheduleReconnect(0);
+  }
+
+  private void onHeartbeatAck(RequestFuture<Void> hf) {
+    long cost = hf.getResponseNanoTime() - hf.getBuildNanoTime();
+    long rtt = rttNanos;
+    rttNanos = rtt == 0 ? cost : rtt + (cost - rtt) / 4;
+    log.trace("complete a heartbeat, cost {} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
+    if(TimeUnit.NANOSECONDS.toSeconds(cost) > heartbeatTimeout/2){
+      log.warn("one heartbeat cost too long time ({} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
+    }
+  }
+
+  /**
+   * 在后台重连, 不阻塞心跳线程及其它Session: 心跳线程只负责定时, 连接在connectExecutor中建立
+   */
+  private void scheduleReconnect(long delayInSeconds) {
+    if (!reconnecting.compareAndSet(false, true)) {
+      return;
+    }
+    heartbeartExecutor.schedule(() -> connectExecutor.execute(() -> {
+      reconnecting.set(false);
+      if (connected) {
+        return;
+      }
+      try {
+        connect();
+        log.info("[{}:{}] reconnect success.", serverIp, serverPort);
+      } catch (IOException e) {
+        log.info("connect fail: [{}], try reconnect after {} seconds...", e.getMessage(), reconnectPeriod);
+        scheduleReconnect(reconnectPeriod);
+      }
+    }), delayInSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * 在IO线程中处理收到的帧
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  @Override
+  public void onFrame(Head head, ByteBuffer dataBuffer) {
+    if(head.getCmd() == CmdCode.HEATRBEAT_ACK){
+      RequestFuture<Void> hf = heartbeartFuture;
+      if(hf!=null && hf.getSerialNum() == head.getSerialNum()){
+        hf.setResponse(new Packet<Void>(head));
+        onHeartbeatAck(hf);
+      }else{
+        log.warn("Receive a unknown heartbeat ack [{}], maybe timeout, just discard it.", head.getSerialNum());
+      }
+      return;
+    }
+
+    RequestFuture<?> f = messageContext.remove(head.getSerialNum());
+
+    if(f == null){
+      log.warn("Receive a packet [sn={}], but not found in the cache, maybe timeout, just discard it", head.getSerialNum());
+      return;
+    }
+
+    try {
+      Codec<?> codec = codecRegistry.forCmd(head.getCmd());
+      if (codec == null) {
+        codec = codecRegistry.forType(f.getResponseBodyType());
+      }
+      if (codec == null) {
+        throw new FaceException("No codec registered for cmd " + head.getCmd());
+      }
+      Packet reponse = new Packet<>(head, codec.decode(dataBuffer));
+      f.setResponse(reponse);
+    } catch (Exception e) {
+      f.fail(e);
+    }
+  }
+
+  @Override
+  public void onClosed(NioChannel ch, Throwable cause) {
+    if (ch != channel) {
+      // 已被新的连接替换
+      return;
+    }
+    connected = false;
+    messageContext.failAll(new FaceException("Connection closed", cause));
+    if (cause != null) {
+      log.warn("[{}:{}] connection closed: [{}]", serverIp, serverPort, cause.getMessage());
+      scheduleReconnect(0);
+    }
+  }
+
+  public void send(Packet<? extends BasePacketElement> p) throws IOException{
+    write(p.getHead(), p.getBody());
+  }
+  
+  /**
+   * 由本连接为请求分配序列号后发送, 响应按序列号匹配到future
+   */
+  public void send(Packet<? extends BasePacketElement> p, RequestFuture<?> future) throws IOException{
+    // 先放入缓存再写出, 避免响应先于缓存到达
+    send(p, future, messageContext.add(future));
+  }
+
+  /**
+   * 与 {@link #send(Packet, RequestFuture)} 相同, 但不等待并发许可
+   *
+   * @return 未获准时future已失败, 返回false
+   */
+  public boolean trySend(Packet<? extends BasePacketElement> p, RequestFuture<?> future) throws IOException{
+    boolean added = messageContext.tryAdd(future);
+    send(p, future, added);
+    return added;
+  }
+
+  private void send(Packet<? extends BasePacketElement> p, RequestFuture<?> future, boolean added) throws IOException{
+    if (!added) {
+      closePayloadFile(p.getBody());
+      return;
+    }
+    future.setSendNanoTime(System.nanoTime());
+    try {
+      send(p);
+    } catch (IOException e) {
+      messageContext.remove(future.getSerialNum());
+      throw e;
+    }
+  }
+
+  /**
+   * @return 未完成的请求数已达到maxConcurrent
+   */
+  public boolean isSaturated() {
+    int max = messageContext.getMaxConcurrent();
+    return max > 0 && messageContext.size() >= max;
+  }
+  
+  /**
+   * 批量发送, packets与futures一一对应. 第一段按admissionMode获取许可, 并取走当前所有空闲的许可,
+   * 获准的请求编码到同一个缓冲区并作为一帧写出, 只入队和唤醒IO线程一次.
+   * 其余请求不阻塞调用线程: 已发出的请求每完成一个就取走空闲的许可发送下一段, 取不到时由时间轮定时重试,
+   * 连续超过响应超时时间没有获得许可时, 剩余的请求以FaceException失败
+   *
+   * @throws IOException 第一段写出失败, 该段及之后的请求以该异常失败. 之后的分段写出失败时同样让该段及之后的请求失败
+   */
+  public void send(List<? extends Packet<? extends BasePacketElement>> packets,
+      List<? extends RequestFuture<?>> futures) throws IOException {
+    if (packets.isEmpty()) {
+      return;
+    }
+    BatchSender sender = new BatchSender(packets, futures);
+    int n = messageContext.addAll(futures);
+    sender.next = n;
+    sender.sendChunk(0, n);
+    if (n < futures.size()) {
+      sender.pump();
+    }
+  }
+
+  /**
+   * 一次批量发送中尚未获准的请求. pump可能同时在多个完成请求的线程中调用, 由wip保证同一时刻只有一个线程发送
+   */
+  private final class BatchSender {
+    private final List<? extends Packet<? extends BasePacketElement>> packets;
+    private final List<? extends RequestFuture<?>> futures;
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile int next;
+    private volatile boolean retryScheduled;
+    // 只在drain中读写
+    private long deadline;
+
+    BatchSender(List<? extends Packet<? extends BasePacketElement>> packets,
+        List<? extends RequestFuture<?>> futures) {
+      this.packets = packets;
+      this.futures = futures;
+      this.deadline = System.nanoTime() + messageContext.getResponseTimeoutNanos();
+    }
+
+    void pump() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        drain();
+      } while (wip.decrementAndGet() != 0);
+    }
+
+    private void drain() {
+      int from = next;
+      int size = futures.size();
+      if (from >= size) {
+        return;
+      }
+      int n = messageContext.tryAddAll(futures.subList(from, size));
+      if (n > 0) {
+        next = from + n;
+        deadline = System.nanoTime() + messageContext.getResponseTimeoutNanos();
         try {
-          Head head = readHead();
-          //System.out.println("receive head :" + head);
-          if(head.getCmd() == CmdCode.HEATRBEAT_ACK){
-            if(heartbeartFuture!=null && heartbeartFuture.getSerialNum() == head.getSerialNum()){
-              heartbeartFuture.setResponse(new Packet<Void>(head));
-            }else{
-              log.warn("Receive a unknown heartbeat ack [{}], maybe timeout, just discard it.");
-            }
-            
-            continue;
-          }
-          
-          int dataLen = head.getDataLen();
-          byte[] dataBuffer = new byte[dataLen];
-          readFull(is, dataBuffer, dataLen);
-          
-          RequestFuture<?> f = messageContext.remove(head.getSerialNum());
-          
-          if(f == null){
-            log.warn("Receive a packet [sn={}], but not found in the cache, maybe timeout, just discard it", head.getSerialNum());
-            continue;
-          }
-          
-          Class<?> response = f.getResponseBodyType();
-          BasePacketElement responseBody = PacketUtil.decode(dataBuffer, response);
-          Packet reponse = new Packet<>(head, responseBody);
-          f.setResponse(reponse);
-          
+          sendChunk(from, from + n);
         } catch (IOException e) {
-          connected = false;
-          e.printStackTrace();
+          log.warn("[{}:{}] batch send failed: {}", serverIp, serverPort, e.getMessage());
         }
+        return;
       }
-      
-      
-    });
-    
-    heartbeartExecutor.scheduleWithFixedDelay(()->{
-      try{
-        heartbeart();
-        heartbeartFuture.getResponse(TimeUnit.SECONDS.toMillis(heartbeatTimeout));
-        //TODO heartbeat 健康检查
-        long cost = heartbeartFuture.getResponseNanoTime() - heartbeartFuture.getBuildNanoTime();
-        log.trace("complete a heartbeat, cost {} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
-        if(TimeUnit.NANOSECONDS.toSeconds(cost) > heartbeatTimeout/2){
-          log.warn("one heartbeat cost too long time ({} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
+      if (System.nanoTime() - deadline > 0) {
+        next = size;
+        FaceException e = new FaceException("No permit within the response timeout, the limit is : "
+            + messageContext.getMaxConcurrent());
+        for (int i = from; i < size; i++) {
+          futures.get(i).fail(e);
         }
-      }catch(Exception e){
-        e.printStackTrace();
-        reconnect();
+        return;
       }
-    }, heartbeatPeriod, heartbeatPeriod, TimeUnit.SECONDS);
-    
-    /*readThread = new Thread(() -> {
-      String name = Thread.currentThread().getName();
-      log.info("{} started.", name);
+      // 许可被其它请求占用, 本批次没有在途的请求时不会再被唤醒
+      if (!retryScheduled) {
+        retryScheduled = true;
+        HashedWheelTimer.getDefault().newTimeout(() -> {
+          retryScheduled = false;
+          pump();
+        }, 0, TimeUnit.NANOSECONDS);
+      }
+    }
 
-      while (connected) {
-        try {
-          Head head = readHead();
-          //System.out.println("receive head :" + head);
-          if(head.getCmd() == CmdCode.HEATRBEAT_ACK){
-            if(heartbeartFuture!=null && heartbeartFuture.getSerialNum() == head.getSerialNum()){
-              heartbeartFuture.setResponse(new Packet<Void>(head));
-            }else{
-              log.warn("Receive a unknown heartbeat ack [{}], maybe timeout, just discard it.");
-            }
-            
-            continue;
-          }
-          
-          int dataLen = head.getDataLen();
-          byte[] dataBuffer = new byte[dataLen];
-          readFull(is, dataBuffer, dataLen);
-          
-          RequestFuture<?> f = messageContext.remove(head.getSerialNum());
-          
-          if(f == null){
-            log.warn("Receive a packet [sn={}], but not found in the cache, maybe timeout, just discard it", head.getSerialNum());
-            continue;
-          }
-          
-          Class<?> response = f.getResponseBodyType();
-          BasePacketElement responseBody = PacketUtil.decode(dataBuffer, response);
-          Packet reponse = new Packet<>(head, responseBody);
-          f.setResponse(reponse);
-          
-        } catch (IOException e) {
-          connected = false;
-          e.printStackTrace();
+    /**
+     * 写出 [from, to) 中已放入缓存的请求. 之后还有请求时, 它们每完成一个就尝试发送下一段
+     */
+    void sendChunk(int from, int to) throws IOException {
+      List<Packet<? extends BasePacketElement>> admitted = new ArrayList<>(to - from);
+      long now = System.nanoTime();
+      for (int i = from; i < to; i++) {
+        RequestFuture<?> f = futures.get(i);
+        if (!f.isDone()) {
+          f.setSendNanoTime(now);
+          admitted.add(packets.get(i));
         }
       }
-      
-      
-    }, socket + ": IO Read");
-
-    readThread.start();*/
-    
-    /*heartbeart.schedule(new TimerTask() {
-      @Override
-      public void run() {
-        try{
-          heartbeart();
-          heartbeartFuture.getResponse(TimeUnit.SECONDS.toMillis(heartbeatTimeout));
-          //TODO heartbeat 健康检查
-          long cost = heartbeartFuture.getResponseNanoTime() - heartbeartFuture.getBuildNanoTime();
-          log.trace("complete a heartbeat, cost {} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
-          if(TimeUnit.NANOSECONDS.toSeconds(cost) > heartbeatTimeout/2){
-            log.warn("one heartbeat cost too long time ({} ms)", TimeUnit.NANOSECONDS.toMillis(cost));
+      if (admitted.isEmpty()) {
+        return;
+      }
+      try {
+        write(admitted);
+      } catch (IOException e) {
+        next = futures.size();
+        for (int i = from; i < to; i++) {
+          RequestFuture<?> f = futures.get(i);
+          if (!f.isDone()) {
+            messageContext.remove(f.getSerialNum());
+            f.fail(e);
           }
-        }catch(Exception e){
-          e.printStackTrace();
-          reconnect();
+        }
+        for (int i = to; i < futures.size(); i++) {
+          futures.get(i).fail(e);
+        }
+        throw e;
+      }
+      if (to < futures.size()) {
+        for (int i = from; i < to; i++) {
+          futures.get(i).whenComplete((r, t) -> pump());
         }
       }
-    }, TimeUnit.SECONDS.toMillis(heartbeatPeriod), TimeUnit.SECONDS.toMillis(heartbeatPeriod));*/
+    }
   }
 
+  private void write(List<Packet<? extends BasePacketElement>> packets) throws IOException {
+    NioChannel ch = channel;
+    if (!connected || ch == null) {
+      throw new IOException("Session [" + serverIp + ":" + serverPort + "] not connected");
+    }
+    int size = 0;
+    for (Packet<? extends BasePacketElement> p : packets) {
+      size += p.getHead().getSize() + (p.getBody() == null ? 0 : p.getBody().getInlineSize());
+    }
+    PooledBuffer inline = bufferPool.acquire(size);
+    ByteBuffer buffer = inline.buffer();
+    List<ByteBuffer> buffers = new ArrayList<>(packets.size() * 2);
+    for (Packet<? extends BasePacketElement> p : packets) {
+      int start = buffer.position();
+      p.getHead().encodeTo(buffer);
+      if (p.getBody() != null) {
+        p.getBody().encodeTo(buffer);
+      }
+      ByteBuffer part = buffer.duplicate();
+      part.position(start).limit(buffer.position());
+      buffers.add(part);
+      ByteBuffer payload = p.getBody() == null ? null : p.getBody().getPayload();
+      if (payload != null) {
+        buffers.add(payload);
+      }
+    }
+    try {
+      ch.write(new OutboundFrame(inline, buffers.toArray(new ByteBuffer[buffers.size()])));
+    } catch (IOException e) {
+      inline.release();
+      throw e;
+    }
+  }
 
-  public void send(Packet<? extends BasePacketElement> p) throws IOException{
-    byte[] bs = PacketUtil.encode(p);
-    synchronized (os) {
-      os.write(bs);
-      os.flush();
+  /**
+   * head和body的内联部分编码到池化缓冲区中, 写出完成后由IO线程释放; body的大块数据直接引用
+   */
+  private void write(Head head, BasePacketElement body) throws IOException {
+    NioChannel ch = channel;
+    if (!connected || ch == null) {
+      throw new IOException("Session [" + serverIp + ":" + serverPort + "] not connected");
+    }
+    PooledBuffer inline = PacketUtil.encodeInline(head, body, bufferPool);
+    FileChannel file = body == null ? null : body.getPayloadFile();
+    ByteBuffer payload = body == null ? null : body.getPayload();
+    OutboundFrame frame;
+    if (file != null) {
+      frame = new FileRegionFrame(inline, inline.buffer(), file, 0,
+          body.getSize() - body.getInlineSize());
+    } else if (payload != null) {
+      frame = new OutboundFrame(inline, inline.buffer(), payload);
+    } else {
+      frame = new OutboundFrame(inline, inline.buffer());
+    }
+    try {
+      ch.write(frame);
+    } catch (IOException e) {
+      inline.release();
+      closePayloadFile(body);
+      throw e;
     }
   }
-  
-  public void send(Packet<? extends BasePacketElement> p, RequestFuture<?> future) throws IOException{
-    send(p);
-    future.setSendNanoTime(System.nanoTime());
-    messageContext.add(future);
+
+  /**
+   * 请求未能写出时关闭其数据文件, 写出后由IO线程关闭
+   */
+  private static void closePayloadFile(BasePacketElement body) {
+    FileChannel file = body == null ? null : body.getPayloadFile();
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      log.warn("Failed to close file.", e);
+    }
   }
   
   private void heartbeart(){
     Head head = new Head(Packet.Head.CmdCode.HEATRBEAT);
+    head.setSerialNum(messageContext.nextSerial());
     Packet<Void> heart = new Packet<>(head);
-    heartbeartFuture = new RequestFuture<>(heart, Void.class);
+    RequestFuture<Void> hf = new RequestFuture<>(heart, Void.class);
+    NioChannel ch = channel;
+    heartbeartFuture = hf;
     try {
-      synchronized (os) {
-        os.write(head.encode());
-        os.flush();
-      }
+      write(head, null);
     } catch (IOException e) {
-      e.printStackTrace();
-      heartbeartFuture.fail(e);
-    }
-  }
-
-  private Head readHead() throws IOException {
-    byte[] headBuffer = new byte[12];
-    readFull(is, headBuffer, 12);
-    Head head = PacketUtil.decode(headBuffer, Head.class);
-    return head;
-  }
-
-  private void readFull(InputStream is, byte[] buffer, int size) throws IOException {
-    int read = 0;
-    while (read < size) {
-      read += is.read(buffer, read, size);
+      hf.fail(e);
+      onHeartbeatFail(ch, e);
+      return;
     }
+    // 不阻塞心跳线程, 超时后再检查是否收到响应
+    heartbeartExecutor.schedule(() -> {
+      if (!hf.isDone()) {
+        FaceException e = new FaceException("Heartbeat timeout after " + heartbeatTimeout + "s");
+        hf.fail(e);
+        onHeartbeatFail(ch, e);
+      }
+    }, heartbeatTimeout, TimeUnit.SECONDS);
   }
 
-
   public void connect() throws UnknownHostException, IOException {
     if (connected) {
       return;
     }
-    socket = new Socket(serverIp, serverPort);
-    os = new BufferedOutputStream(socket.getOutputStream());
-    is = new BufferedInputStream(socket.getInputStream());
+    channel = NioChannel.connect(new InetSocketAddress(serverIp, serverPort),
+        (int) TimeUnit.SECONDS.toMillis(heartbeatTimeout), EventLoopGroup.getDefault().next(), this,
+        writeBatchBytes, TimeUnit.MICROSECONDS.toNanos(writeLingerMicros));
     connected = true;
   }
 
@@ -277,24 +519,8 @@ public class Session {
     }
     
     connected = false;
-    try {
-      readTaskFuture.get(); //wait for read task completed
-    } catch (InterruptedException | ExecutionException e1) {
-      e1.printStackTrace();
-    }
-    /*if(readThread.isAlive()){
-      try {
-        readThread.join();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }*/
-    try {
-      socket.close();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    
+    channel.close();
+    messageContext.failAll(new FaceException("Connection closed"));
   }
   
   public void reconnect(){
@@ -316,6 +542,25 @@ public class Session {
     
   }
 
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * @return 心跳往返时间的滑动平均值(纳秒), 尚未完成心跳时为0
+   */
+  public long getRttNanos() {
+    return rttNanos;
+  }
+
+  public String getServerIp() {
+    return serverIp;
+  }
+
+  public int getServerPort() {
+    return serverPort;
+  }
+
   public MessageContext getMessageContext() {
     return messageContext;
   }
@@ -0,0 +1,122 @@
+package com.minivision.faceclient.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.minivision.faceclient.Config;
+
+/**
+ * 同一个服务端的多个连接, 每次请求选择未完成请求最少的连接
+ * 
+ * @author PanXinmiao
+ *
+ */
+public class SessionPool {
+
+  private final String serverIp;
+  private final int serverPort;
+  private final Session[] sessions;
+  private final AtomicInteger cursor = new AtomicInteger();
+
+  public SessionPool(Config config) {
+    this(config, config.getIp(), config.getPort(), true);
+  }
+
+  /**
+   * @param waitConnected 是否阻塞直到所有连接建立成功
+   */
+  public SessionPool(Config config, String ip, int port, boolean waitConnected) {
+    this.serverIp = ip;
+    this.serverPort = port;
+    int size = Math.max(1, config.getConnectionsPerServer());
+    this.sessions = new Session[size];
+    for (int i = 0; i < size; i++) {
+      sessions[i] = new Session(config, ip, port, waitConnected);
+    }
+  }
+
+  /**
+   * 选择一个已连接且未完成请求最少的Session, 起始位置轮转以便在负载相同时均匀分布
+   * 
+   * @throws IOException 没有可用的连接
+   */
+  public Session select() throws IOException {
+    int n = sessions.length;
+    if (n == 1) {
+      Session s = sessions[0];
+      if (!s.isConnected()) {
+        throw new IOException("No available connection to " + serverIp + ":" + serverPort);
+      }
+      return s;
+    }
+    int start = Math.abs(cursor.getAndIncrement() % n);
+    Session best = null;
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      Session s = sessions[(start + i) % n];
+      if (!s.isConnected()) {
+        continue;
+      }
+      int pending = s.getMessageContext().size();
+      if (pending < min) {
+        min = pending;
+        best = s;
+      }
+    }
+    if (best == null) {
+      throw new IOException("No available connection to " + serverIp + ":" + serverPort);
+    }
+    return best;
+  }
+
+  public boolean isAvailable() {
+    for (Session s : sessions) {
+      if (s.isConnected()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return 所有连接上未完成的请求数
+   */
+  public int getPendingCount() {
+    int pending = 0;
+    for (Session s : sessions) {
+      pending += s.getMessageContext().size();
+    }
+    return pending;
+  }
+
+  /**
+   * @return 已连接的Session心跳往返时间的平均值(纳秒), 没有心跳数据时为0
+   */
+  public long getRttNanos() {
+    long sum = 0;
+    int n = 0;
+    for (Session s : sessions) {
+      long rtt = s.getRttNanos();
+      if (s.isConnected() && rtt > 0) {
+        sum += rtt;
+        n++;
+      }
+    }
+    return n == 0 ? 0 : sum / n;
+  }
+
+  public List<Session> getSessions() {
+    return Collections.unmodifiableList(Arrays.asList(sessions));
+  }
+
+  public String getServerIp() {
+    return serverIp;
+  }
+
+  public int getServerPort() {
+    return serverPort;
+  }
+}
@@ -0,0 +1,152 @@
+package com.minivision.faceclient.pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.minivision.faceclient.Client;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 从数据源读取图片并获取人脸特征的流水线
+ *
+ * <p>读取线程提前读取最多window张图片, 与网络请求并行; 同时最多有window个请求未完成.
+ * 结果按完成顺序在一个线程中推送给 {@link FeatureSink}, sink处理完才归还窗口,
+ * 因此内存占用与数据源的大小无关, sink较慢时也会限制读取和发送的速度
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+@Getter
+@Setter
+public class FeaturePipeline {
+
+  private static final SourceImage END = new SourceImage(null, null);
+
+  private final Client client;
+  private int window = 64;
+  private boolean useFeature = true;
+  private boolean useAge = false;
+  private boolean useGender = false;
+
+  private final AtomicLong succeeded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  public FeaturePipeline(Client client) {
+    this.client = client;
+  }
+
+  public FeaturePipeline(Client client, int window) {
+    this.client = client;
+    this.window = window;
+  }
+
+  /**
+   * 处理数据源中的所有图片, 所有结果都推送给sink后返回. 结束时关闭数据源
+   */
+  public void run(ImageSource source, FeatureSink sink) throws InterruptedException {
+    if (window <= 0) {
+      throw new IllegalArgumentException("window must be positive: " + window);
+    }
+    BlockingQueue<SourceImage> queue = new ArrayBlockingQueue<>(window);
+    Semaphore inflight = new Semaphore(window);
+    ExecutorService sinkExecutor =
+        Executors.newSingleThreadExecutor(r -> new Thread(r, "Pipeline-Sink"));
+    Thread reader = new Thread(() -> read(source, queue), "Pipeline-Reader");
+    reader.setDaemon(true);
+    reader.start();
+    try {
+      for (;;) {
+        SourceImage image = queue.take();
+        if (image == END) {
+          break;
+        }
+        inflight.acquire();
+        if (image.getError() != null) {
+          sinkExecutor.execute(() -> deliver(sink, image.getId(), null, image.getError(), inflight));
+          continue;
+        }
+        client.getFeaturesAsync(image.getData(), useFeature, useAge, useGender)
+            .whenCompleteAsync((r, t) -> deliver(sink, image.getId(), r, t, inflight), sinkExecutor);
+      }
+      // 等待所有请求的结果都已推送
+      inflight.acquire(window);
+    } finally {
+      reader.interrupt();
+      sinkExecutor.shutdown();
+      sinkExecutor.awaitTermination(1, TimeUnit.MINUTES);
+      try {
+        source.close();
+      } catch (IOException e) {
+        log.warn("Failed to close image source.", e);
+      }
+    }
+  }
+
+  /**
+   * 读取线程以任何方式结束(包括Error)都放入END, 否则run一直等待. 被中断说明流水线已结束, 不再放入
+   */
+  private void read(ImageSource source, BlockingQueue<SourceImage> queue) {
+    boolean ended = false;
+    try {
+      SourceImage image;
+      while ((image = source.next()) != null) {
+        queue.put(image);
+      }
+    } catch (InterruptedException e) {
+      ended = true;
+    } catch (Throwable e) {
+      // 包括Error, 例如读取过大的文件时的OutOfMemoryError
+      log.warn("Failed to read image source.", e);
+      ended = !put(queue, SourceImage.failed(null, e));
+    } finally {
+      if (!ended) {
+        put(queue, END);
+      }
+    }
+  }
+
+  private static boolean put(BlockingQueue<SourceImage> queue, SourceImage image) {
+    try {
+      queue.put(image);
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+
+  private void deliver(FeatureSink sink, String id, FaceFeatures features, Throwable error,
+      Semaphore inflight) {
+    try {
+      if (error == null) {
+        succeeded.incrementAndGet();
+        sink.onResult(id, features);
+      } else {
+        failed.incrementAndGet();
+        sink.onError(id, error);
+      }
+    } catch (RuntimeException e) {
+      log.warn("Sink raised an exception for {}.", id, e);
+    } finally {
+      inflight.release();
+    }
+  }
+
+  public long getSucceeded() {
+    return succeeded.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+}
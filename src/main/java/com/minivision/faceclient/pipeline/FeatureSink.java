@@ -0,0 +1,19 @@
+package com.minivision.faceclient.pipeline;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 接收流水线的结果. 所有回调都在同一个线程中按完成顺序执行, 实现无需考虑并发
+ * 
+ * @author PanXinmiao
+ *
+ */
+public interface FeatureSink {
+
+  void onResult(String sourceId, FaceFeatures features);
+
+  /**
+   * 读取图片或请求失败
+   */
+  void onError(String sourceId, Throwable cause);
+}
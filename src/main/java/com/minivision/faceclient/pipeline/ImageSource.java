@@ -0,0 +1,105 @@
+package com.minivision.faceclient.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * 流水线的图片来源, 由流水线的读取线程依次调用next
+ * 
+ * @author PanXinmiao
+ *
+ */
+public interface ImageSource extends Closeable {
+
+  /**
+   * @return 下一张图片, 没有更多图片时返回null
+   */
+  SourceImage next() throws IOException;
+
+  @Override
+  default void close() throws IOException {
+  }
+
+  /**
+   * 递归遍历目录中扩展名为extensions之一的文件(不区分大小写), 以文件路径为id.
+   * 单个文件读取失败时返回失败的SourceImage, 不影响后续文件
+   */
+  static ImageSource directory(Path dir, String... extensions) throws IOException {
+    Stream<Path> files = Files.walk(dir).filter(Files::isRegularFile).filter(p -> {
+      String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+      for (String ext : extensions) {
+        if (name.endsWith("." + ext.toLowerCase(Locale.ROOT))) {
+          return true;
+        }
+      }
+      return extensions.length == 0;
+    });
+    Iterator<Path> it = files.iterator();
+    return new ImageSource() {
+      @Override
+      public SourceImage next() {
+        try {
+          if (!it.hasNext()) {
+            return null;
+          }
+        } catch (UncheckedIOException e) {
+          return SourceImage.failed(dir.toString(), e.getCause());
+        }
+        Path file = it.next();
+        try {
+          return new SourceImage(file.toString(), Files.readAllBytes(file));
+        } catch (IOException e) {
+          return SourceImage.failed(file.toString(), e);
+        }
+      }
+
+      @Override
+      public void close() {
+        files.close();
+      }
+    };
+  }
+
+  /**
+   * 默认只处理常见图片格式
+   */
+  static ImageSource directory(Path dir) throws IOException {
+    return directory(dir, "jpg", "jpeg", "png", "bmp");
+  }
+
+  /**
+   * 以序号(从0开始)为id
+   */
+  static ImageSource of(Iterator<byte[]> images) {
+    return new ImageSource() {
+      private long index;
+
+      @Override
+      public SourceImage next() {
+        return images.hasNext() ? new SourceImage(String.valueOf(index++), images.next()) : null;
+      }
+    };
+  }
+
+  /**
+   * 依次读取帧, supplier返回null表示结束. 以 frame-序号 为id
+   */
+  static ImageSource frames(Supplier<byte[]> frames) {
+    return new ImageSource() {
+      private long index;
+
+      @Override
+      public SourceImage next() {
+        byte[] frame = frames.get();
+        return frame == null ? null : new SourceImage("frame-" + index++, frame);
+      }
+    };
+  }
+}
@@ -0,0 +1,31 @@
+package com.minivision.faceclient.pipeline;
+
+import lombok.Getter;
+
+/**
+ * 数据源中的一张图片, 读取失败时data为null, error为失败原因
+ * 
+ * @author PanXinmiao
+ *
+ */
+@Getter
+public class SourceImage {
+
+  private final String id;
+  private final byte[] data;
+  private final Throwable error;
+
+  public SourceImage(String id, byte[] data) {
+    this(id, data, null);
+  }
+
+  private SourceImage(String id, byte[] data, Throwable error) {
+    this.id = id;
+    this.data = data;
+    this.error = error;
+  }
+
+  public static SourceImage failed(String id, Throwable error) {
+    return new SourceImage(id, null, error);
+  }
+}
@@ -1,5 +1,8 @@
 package com.minivision.faceclient.protocol;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -12,5 +15,42 @@ public abstract class BasePacketElement {
   public abstract BasePacketElement decode(byte[] bytes);
   
   public abstract int getSize();
+  
+  /**
+   * 从buffer的当前位置解码, 读取后position位于该元素之后
+   */
+  public BasePacketElement decode(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return decode(bytes);
+  }
+  
+  /**
+   * 把除 {@link #getPayload()} 之外的内容写入out, 共 {@link #getInlineSize()} 字节
+   */
+  public void encodeTo(ByteBuffer out) {
+    out.put(encode());
+  }
+  
+  /**
+   * @return encodeTo写入的字节数
+   */
+  public int getInlineSize() {
+    return getSize();
+  }
+  
+  /**
+   * @return 紧跟在内联部分之后单独写出的大块数据(不做拷贝), 没有时返回null
+   */
+  public ByteBuffer getPayload() {
+    return null;
+  }
+  
+  /**
+   * @return 大块数据来自文件时返回该文件, 从位置0开始共 getSize() - getInlineSize() 字节,
+   *         发送时直接从文件传输到socket. 此时 {@link #getPayload()} 返回null
+   */
+  public FileChannel getPayloadFile() {
+    return null;
+  }
 }
-
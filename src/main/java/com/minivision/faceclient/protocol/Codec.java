@@ -0,0 +1,28 @@
+package com.minivision.faceclient.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 报文元素的编解码器, 直接读写ByteBuffer, 实例无状态, 可在多个线程间共享
+ *
+ * @author PanXinmiao
+ *
+ * @param <T> 报文元素的类别
+ */
+public interface Codec<T> {
+
+  /**
+   * 从buffer的当前位置解码, 读取后position位于该元素之后
+   */
+  T decode(ByteBuffer buffer);
+
+  /**
+   * 把value写入out的当前位置
+   */
+  void encode(T value, ByteBuffer out);
+
+  /**
+   * @return 编码后的字节数
+   */
+  int size(T value);
+}
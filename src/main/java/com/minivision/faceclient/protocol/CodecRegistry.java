@@ -0,0 +1,144 @@
+package com.minivision.faceclient.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.Packet.Head;
+import com.minivision.faceclient.protocol.Packet.Head.CmdCode;
+import com.minivision.faceclient.protocol.Packet.ImageData;
+
+/**
+ * 按命令码和报文体类别查找 {@link Codec}, 新的命令类型通过 {@link #register} 注册即可, 无需修改Packet
+ *
+ * <p>按命令码的查找是一次数组访问, 注册时复制数组(注册只在初始化时发生)
+ *
+ * @author PanXinmiao
+ *
+ */
+public class CodecRegistry {
+
+  /**
+   * 没有报文体的命令(如心跳)使用的Codec, 解码结果为null
+   */
+  public static final Codec<Void> VOID = new Codec<Void>() {
+    @Override
+    public Void decode(ByteBuffer buffer) {
+      return null;
+    }
+
+    @Override
+    public void encode(Void value, ByteBuffer out) {}
+
+    @Override
+    public int size(Void value) {
+      return 0;
+    }
+  };
+
+  /**
+   * GET_FEATURE_ACK的报文体拷贝一次后以延迟解码的方式包装, 见 {@link FaceFeatures#wrap(ByteBuffer)}
+   */
+  public static final Codec<FaceFeatures> LAZY_FACE_FEATURES = new Codec<FaceFeatures>() {
+    @Override
+    public FaceFeatures decode(ByteBuffer buffer) {
+      // 接收缓冲区会被复用, 需要一次整体拷贝
+      byte[] body = new byte[buffer.remaining()];
+      buffer.get(body);
+      return FaceFeatures.wrap(ByteBuffer.wrap(body));
+    }
+
+    @Override
+    public void encode(FaceFeatures value, ByteBuffer out) {
+      value.encodeTo(out);
+    }
+
+    @Override
+    public int size(FaceFeatures value) {
+      return value.getSize();
+    }
+  };
+
+  private static final CodecRegistry DEFAULT = new CodecRegistry();
+  private static final CodecRegistry LAZY = new CodecRegistry(DEFAULT);
+
+  static {
+    DEFAULT.register(Head.class, new ElementCodec<>(Head::new));
+    DEFAULT.register(FaceFeature.class, new ElementCodec<>(FaceFeature::new));
+    DEFAULT.register(CmdCode.HEATRBEAT, Void.class, VOID);
+    DEFAULT.register(CmdCode.HEATRBEAT_ACK, Void.class, VOID);
+    DEFAULT.register(CmdCode.GET_FEATURE, ImageData.class, new ElementCodec<>(ImageData::new));
+    DEFAULT.register(CmdCode.GET_FEATURE_ACK, FaceFeatures.class,
+        new ElementCodec<>(FaceFeatures::new));
+    LAZY.register(CmdCode.GET_FEATURE_ACK, FaceFeatures.class, LAZY_FACE_FEATURES);
+  }
+
+  private final CodecRegistry parent;
+  private volatile Codec<?>[] byCmd = new Codec<?>[0];
+  private final ConcurrentMap<Class<?>, Codec<?>> byType = new ConcurrentHashMap<>();
+
+  public CodecRegistry() {
+    this(null);
+  }
+
+  /**
+   * @param parent 本registry中找不到时再从parent中查找
+   */
+  public CodecRegistry(CodecRegistry parent) {
+    this.parent = parent;
+  }
+
+  public static CodecRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return 与默认registry相同, 但人脸检测结果使用延迟解码
+   */
+  public static CodecRegistry getLazy() {
+    return LAZY;
+  }
+
+  /**
+   * 注册命令码对应报文体的Codec, 同时按类别注册
+   */
+  public synchronized <T> void register(short cmd, Class<T> type, Codec<T> codec) {
+    if (cmd < 0) {
+      throw new IllegalArgumentException("Invalid cmd code: " + cmd);
+    }
+    Codec<?>[] codecs = byCmd;
+    if (cmd >= codecs.length) {
+      codecs = Arrays.copyOf(codecs, cmd + 1);
+    } else {
+      codecs = codecs.clone();
+    }
+    codecs[cmd] = codec;
+    byCmd = codecs;
+    register(type, codec);
+  }
+
+  public <T> void register(Class<T> type, Codec<T> codec) {
+    byType.put(type, codec);
+  }
+
+  /**
+   * @return 命令码对应的Codec, 未注册时返回null
+   */
+  public Codec<?> forCmd(short cmd) {
+    Codec<?>[] codecs = byCmd;
+    Codec<?> codec = cmd >= 0 && cmd < codecs.length ? codecs[cmd] : null;
+    return codec == null && parent != null ? parent.forCmd(cmd) : codec;
+  }
+
+  /**
+   * @return 类别对应的Codec, 未注册时返回null
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Codec<T> forType(Class<T> type) {
+    Codec<T> codec = (Codec<T>) byType.get(type);
+    return codec == null && parent != null ? parent.forType(type) : codec;
+  }
+}
@@ -0,0 +1,39 @@
+package com.minivision.faceclient.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * 基于 {@link BasePacketElement} 自身编解码方法的Codec, 通过构造器引用创建实例, 不使用反射
+ *
+ * @author PanXinmiao
+ *
+ */
+public class ElementCodec<T extends BasePacketElement> implements Codec<T> {
+
+  private final Supplier<T> factory;
+
+  public ElementCodec(Supplier<T> factory) {
+    this.factory = factory;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T decode(ByteBuffer buffer) {
+    return (T) factory.get().decode(buffer);
+  }
+
+  @Override
+  public void encode(T value, ByteBuffer out) {
+    value.encodeTo(out);
+    ByteBuffer payload = value.getPayload();
+    if (payload != null) {
+      out.put(payload);
+    }
+  }
+
+  @Override
+  public int size(T value) {
+    return value.getSize();
+  }
+}
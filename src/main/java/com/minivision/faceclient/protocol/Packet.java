@@ -1,6 +1,11 @@
 package com.minivision.faceclient.protocol;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -37,9 +42,11 @@ public class Packet<T> {
     private byte status;
     private int dataLen;
 
+    /**
+     * 序列号在发送时由连接分配, 见 {@link com.minivision.faceclient.core.MessageContext#nextSerial()}
+     */
     public Head() {
       version = 1;
-      serialNum = PacketUtil.getNextId();
     }
 
     public Head(short cmd) {
@@ -57,17 +64,26 @@ public class Packet<T> {
     @Override
     public byte[] encode() {
       ByteBuffer buffer = ByteBuffer.allocate(12);
+      encodeTo(buffer);
+      return buffer.array();
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer buffer) {
       buffer.put(version);
       buffer.putInt(serialNum);
       buffer.putShort(cmd);
       buffer.put(status);
       buffer.putInt(dataLen);
-      return buffer.array();
     }
 
     @Override
     public Head decode(byte[] bytes) {
-      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public Head decode(ByteBuffer buffer) {
       version = buffer.get();
       serialNum = buffer.getInt();
       cmd = buffer.getShort();
@@ -91,22 +107,75 @@ public class Packet<T> {
     private boolean useFeature = true;
     private int imgSize;
     private byte[] imgData;
+    /**
+     * 图片数据也可以由ByteBuffer提供(position到limit之间的数据), 优先于imgData
+     */
+    private ByteBuffer imgBuffer;
+    /**
+     * 图片数据也可以来自文件, 从位置0开始共imgSize字节, 发送完成后由客户端关闭
+     */
+    private FileChannel imgFile;
 
     @Override
     public byte[] encode() {
-      assert (imgSize == imgData.length);
-      ByteBuffer buffer = ByteBuffer.allocate(7 + imgSize);
+      ByteBuffer buffer = ByteBuffer.allocate(getSize());
+      encodeTo(buffer);
+      if (imgFile != null) {
+        try {
+          long position = 0;
+          while (buffer.hasRemaining()) {
+            int n = imgFile.read(buffer, position);
+            if (n < 0) {
+              throw new EOFException("Image file is shorter than imgSize " + imgSize);
+            }
+            position += n;
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      } else {
+        buffer.put(getPayload());
+      }
+      return buffer.array();
+    }
+
+    /**
+     * 只写入7字节的图片头, 图片数据由 {@link #getPayload()} 提供, 不做拷贝
+     */
+    @Override
+    public void encodeTo(ByteBuffer buffer) {
+      assert (imgBuffer != null || imgFile != null || imgSize == imgData.length);
       buffer.put(useAge ? (byte) 1 : (byte) 0);
       buffer.put(useGender ? (byte) 1 : (byte) 0);
       buffer.put(useFeature ? (byte) 1 : (byte) 0);
       buffer.putInt(imgSize);
-      buffer.put(imgData);
-      return buffer.array();
+    }
+
+    @Override
+    public int getInlineSize() {
+      return 7;
+    }
+
+    @Override
+    public ByteBuffer getPayload() {
+      if (imgFile != null) {
+        return null;
+      }
+      return imgBuffer != null ? imgBuffer.duplicate() : ByteBuffer.wrap(imgData);
+    }
+
+    @Override
+    public FileChannel getPayloadFile() {
+      return imgFile;
     }
 
     @Override
     public BasePacketElement decode(byte[] bytes) {
-      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public BasePacketElement decode(ByteBuffer buffer) {
       useAge = buffer.get() != 0;
       useGender = buffer.get() != 0;
       useFeature = buffer.get() != 0;
@@ -118,59 +187,130 @@ public class Packet<T> {
 
     @Override
     public int getSize() {
-      return 7 + imgData.length;
+      if (imgFile != null) {
+        return 7 + imgSize;
+      }
+      return 7 + (imgBuffer != null ? imgBuffer.remaining() : imgData.length);
     }
 
   }
 
-  @ToString
+  /**
+   * 人脸检测结果. 延迟解码模式({@link #wrap(ByteBuffer)})下只持有报文体, 各字段在访问时才读取
+   */
+  @ToString(exclude = {"view", "faceSize"})
   public static class FaceFeatures extends BasePacketElement {
     private short faceNum;
     private List<FaceFeature> features;
+    // 延迟解码时的报文体(faceNum之后的部分)及每个人脸占用的字节数
+    private ByteBuffer view;
+    private int faceSize;
+
+    /**
+     * 以body(position到limit)为底层数据创建延迟解码的FaceFeatures, 不做拷贝.
+     * 之后只通过绝对位置读取body, 可以在多个线程中并发读取
+     */
+    public static FaceFeatures wrap(ByteBuffer body) {
+      FaceFeatures ff = new FaceFeatures();
+      ByteBuffer buffer = body.slice();
+      ff.faceNum = buffer.getShort(0);
+      buffer.position(2);
+      ff.view = buffer.slice();
+      ff.faceSize = ff.faceNum == 0 ? 0 : ff.view.remaining() / ff.faceNum;
+      return ff;
+    }
+
+    public boolean isLazy() {
+      return view != null;
+    }
+
+    public short getFaceNum() {
+      return faceNum;
+    }
+
+    /**
+     * 延迟解码模式下第一次调用时解码全部人脸
+     */
+    public synchronized List<FaceFeature> getFeatures() {
+      if (features == null && view != null && faceNum != 0) {
+        List<FaceFeature> list = new ArrayList<FaceFeature>(faceNum);
+        for (int i = 0; i < faceNum; i++) {
+          list.add(getFace(i).toFaceFeature());
+        }
+        features = list;
+      }
+      return features;
+    }
+
+    /**
+     * @return 第index个人脸的只读视图, 字段在访问时读取
+     */
+    public FaceFeatureView getFace(int index) {
+      if (index < 0 || index >= faceNum) {
+        throw new IndexOutOfBoundsException("index: " + index + ", faceNum: " + faceNum);
+      }
+      if (view != null) {
+        return new FaceFeatureView(view, index * faceSize);
+      }
+      FaceFeature f = features.get(index);
+      ByteBuffer buffer = ByteBuffer.allocate(f.getSize());
+      f.encodeTo(buffer);
+      return new FaceFeatureView(buffer, 0);
+    }
 
     @Override
     public byte[] encode() {
-      ByteBuffer buffer = null;
+      ByteBuffer buffer = ByteBuffer.allocate(getSize());
+      encodeTo(buffer);
+      return buffer.array();
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer buffer) {
+      if(view != null){
+        buffer.putShort(faceNum);
+        buffer.put(view.duplicate());
+        return;
+      }
       if(faceNum==0 || features == null){
-        buffer = ByteBuffer.allocate(2);
         buffer.putShort(faceNum);
-        return buffer.array();
+        return;
       }
       assert (faceNum == features.size());
-      
+      buffer.putShort(faceNum);
       for (FaceFeature f : features) {
-        byte[] bs = f.encode();
-        if (buffer == null) {
-          buffer = ByteBuffer.allocate(2 + faceNum * bs.length);
-          buffer.putShort(faceNum);
-        }
-        buffer.put(bs);
+        f.encodeTo(buffer);
       }
-      return buffer.array();
     }
 
     @Override
     public BasePacketElement decode(byte[] bytes) {
-      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public BasePacketElement decode(ByteBuffer buffer) {
       faceNum = buffer.getShort();
       if(faceNum != 0){
-        features = new ArrayList<FaceFeature>();
+        features = new ArrayList<FaceFeature>(faceNum);
         int fsize = buffer.remaining() / faceNum;
-        //System.out.println("fsize : "+ fsize);
         for(int i=0; i<faceNum; i++){
-          byte[] fbs = new byte[fsize];
-          buffer.get(fbs);
+          // 每个人脸占fsize字节, 直接从buffer中解码, 不拷贝到临时数组
+          int end = buffer.position() + fsize;
           FaceFeature f = new FaceFeature();
-          f.decode(fbs);
+          f.decode(buffer);
+          buffer.position(end);
           features.add(f);
         }
       }
-      //System.out.println("size : "+ size);
       return this;
     }
 
     @Override
     public int getSize() {
+      if(view != null){
+        return 2 + view.remaining();
+      }
       if(faceNum==0 || features == null){
         return 2;
       }
@@ -183,6 +323,100 @@ public class Packet<T> {
 
   }
 
+  /**
+   * 报文中一个人脸数据的只读视图(flyweight), 每次访问从底层buffer的绝对位置读取, 布局与 {@link FaceFeature} 相同
+   */
+  public static class FaceFeatureView {
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    FaceFeatureView(ByteBuffer buffer, int offset) {
+      this.buffer = buffer;
+      this.offset = offset;
+    }
+
+    public short getFaceRectLeft() {
+      return buffer.getShort(offset);
+    }
+
+    public short getFaceRectTop() {
+      return buffer.getShort(offset + 2);
+    }
+
+    public short getFaceRectWidth() {
+      return buffer.getShort(offset + 4);
+    }
+
+    public short getFaceRectHeight() {
+      return buffer.getShort(offset + 6);
+    }
+
+    public short getFeatureLen() {
+      return buffer.getShort(offset + 8);
+    }
+
+    public short getAge() {
+      return buffer.getShort(offset + 10);
+    }
+
+    public byte getGender() {
+      return buffer.get(offset + 12);
+    }
+
+    public short getFacepicRotate() {
+      return buffer.getShort(offset + 13);
+    }
+
+    public float getConfidenceAge() {
+      return buffer.getFloat(offset + 15);
+    }
+
+    public float getConfidenceGender() {
+      return buffer.getFloat(offset + 19);
+    }
+
+    /**
+     * @return 特征向量的只读视图, 不做拷贝
+     */
+    public FloatBuffer getFeatureBuffer() {
+      ByteBuffer b = buffer.duplicate();
+      b.position(offset + 23);
+      b.limit(offset + 23 + 4 * getFeatureLen());
+      return b.slice().asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * 批量拷贝特征向量到dst中, dst长度不小于featureLen
+     */
+    public void copyFeature(float[] dst) {
+      getFeatureBuffer().get(dst, 0, getFeatureLen());
+    }
+
+    public float[] copyFeature() {
+      float[] feature = new float[getFeatureLen()];
+      copyFeature(feature);
+      return feature;
+    }
+
+    public FaceFeature toFaceFeature() {
+      FaceFeature f = new FaceFeature();
+      ByteBuffer b = buffer.duplicate();
+      b.position(offset);
+      f.decode(b);
+      return f;
+    }
+
+    @Override
+    public String toString() {
+      return "Packet.FaceFeatureView(faceRectLeft=" + getFaceRectLeft() + ", faceRectTop="
+          + getFaceRectTop() + ", faceRectWidth=" + getFaceRectWidth() + ", faceRectHeight="
+          + getFaceRectHeight() + ", featureLen=" + getFeatureLen() + ", age=" + getAge()
+          + ", gender=" + getGender() + ", facepicRotate=" + getFacepicRotate()
+          + ", confidenceAge=" + getConfidenceAge() + ", confidenceGender="
+          + getConfidenceGender() + ")";
+    }
+  }
+
   @Setter
   @Getter
   @ToString
@@ -201,8 +435,14 @@ public class Packet<T> {
 
     @Override
     public byte[] encode() {
-      assert (featureLen == feature.length);
-      ByteBuffer buffer = ByteBuffer.allocate(23 + 4 * featureLen);
+      ByteBuffer buffer = ByteBuffer.allocate(getSize());
+      encodeTo(buffer);
+      return buffer.array();
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer buffer) {
+      assert (feature == null || featureLen == feature.length);
       buffer.putShort(faceRectLeft);
       buffer.putShort(faceRectTop);
       buffer.putShort(faceRectWidth);
@@ -215,16 +455,18 @@ public class Packet<T> {
       buffer.putFloat(confidenceGender);
       
       if(feature !=null){
-        for (float f : feature) {
-          buffer.putFloat(f);
-        }
+        buffer.asFloatBuffer().put(feature);
+        buffer.position(buffer.position() + 4 * feature.length);
       }
-      return buffer.array();
     }
 
     @Override
     public BasePacketElement decode(byte[] bytes) {
-      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public BasePacketElement decode(ByteBuffer buffer) {
       faceRectLeft = buffer.getShort();
       faceRectTop = buffer.getShort();
       faceRectWidth = buffer.getShort();
@@ -236,9 +478,9 @@ public class Packet<T> {
       confidenceAge = buffer.getFloat();
       confidenceGender = buffer.getFloat();
       feature = new float[featureLen];
-      for (int i = 0; i < featureLen; i++) {
-        feature[i] = buffer.getFloat();
-      }
+      // 批量读取特征向量
+      buffer.asFloatBuffer().get(feature);
+      buffer.position(buffer.position() + 4 * featureLen);
       return this;
     }
 
@@ -1,30 +1,54 @@
 package com.minivision.faceclient.protocol;
 
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.buffer.PooledBuffer;
 import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Packet.Head;
 
 public class PacketUtil {
   
-  @SuppressWarnings("unchecked")
   public static <T extends BasePacketElement> T decode(byte[] buffer, Class<?> c) throws FaceException{
+    return decode(ByteBuffer.wrap(buffer), c);
+  }
+  
+  /**
+   * 从buffer的当前位置解码, 使用 {@link CodecRegistry} 中注册的Codec
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends BasePacketElement> T decode(ByteBuffer buffer, Class<?> c) throws FaceException{
     if(c == Void.class){
       return null;
     }
     
+    Codec<?> codec = CodecRegistry.getDefault().forType(c);
+    if(codec == null){
+      throw new FaceException("No codec registered for " + c.getName());
+    }
     try {
-      Method method = c.getMethod("decode", byte[].class);
-      T object = (T) method.invoke(c.newInstance(), buffer);
-      return (T) object;
-    } catch (Exception e) {
-      e.printStackTrace();
+      return (T) codec.decode(buffer);
+    } catch (RuntimeException e) {
       throw new FaceException("decode error.", e);
     }
   }
   
+  /**
+   * 把head和body的内联部分编码到一个池化的缓冲区中(已flip), body的大块数据见 {@link BasePacketElement#getPayload()}
+   */
+  public static PooledBuffer encodeInline(Head head, BasePacketElement body, BufferPool pool){
+    int size = head.getSize() + (body == null ? 0 : body.getInlineSize());
+    PooledBuffer pooled = pool.acquire(size);
+    ByteBuffer buffer = pooled.buffer();
+    head.encodeTo(buffer);
+    if(body != null){
+      body.encodeTo(buffer);
+    }
+    buffer.flip();
+    return pooled;
+  }
   
   public static byte[] encode(Packet<? extends BasePacketElement> packet){
     byte[] head = packet.getHead().encode();
@@ -46,6 +70,10 @@ public class PacketUtil {
   private static SecureRandom r = new SecureRandom();
   private static AtomicInteger seq = new AtomicInteger(Math.abs(r.nextInt() / 10));
 
+  /**
+   * @deprecated 全局共享的序列号, 请求的序列号已改为由每个连接各自分配
+   */
+  @Deprecated
   public static int getNextId() {
     int id = seq.incrementAndGet();
     if (id < 0 || id == Integer.MAX_VALUE) {
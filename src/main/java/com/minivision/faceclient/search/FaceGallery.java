@@ -0,0 +1,138 @@
+package com.minivision.faceclient.search;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatureView;
+
+/**
+ * 进程内的1:N人脸检索库, 精确计算查询与所有特征的相似度
+ *
+ * <p>特征按行连续保存在堆外内存中, 不为每个特征创建float[]; 每个分段是一个direct buffer,
+ * 容量达到上限时追加新分段. 库较大时按行拆分任务, 在ForkJoinPool中并行计算各自的topK后合并
+ *
+ * <p>加入和检索可以并发执行: 加入是串行的, 检索只读取已发布的行
+ *
+ * @author PanXinmiao
+ *
+ */
+public class FaceGallery {
+
+  /**
+   * 行数超过此值时并行检索, 每个子任务至少处理这么多行
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+  private final Metric metric;
+  private final VectorStore store;
+  private final ForkJoinPool pool;
+
+  public FaceGallery(int dim) {
+    this(dim, Metric.COSINE);
+  }
+
+  public FaceGallery(int dim, Metric metric) {
+    this(dim, metric, ForkJoinPool.commonPool());
+  }
+
+  public FaceGallery(int dim, Metric metric, ForkJoinPool pool) {
+    this.metric = metric;
+    this.store = new VectorStore(dim, metric == Metric.COSINE);
+    this.pool = pool;
+  }
+
+  /**
+   * @return 加入的行号, 从0开始
+   */
+  public int add(long id, float[] feature) {
+    return add(id, FloatBuffer.wrap(feature));
+  }
+
+  public int add(long id, FaceFeature face) {
+    return add(id, face.getFeature());
+  }
+
+  /**
+   * 从延迟解码的结果中直接读取特征, 不创建中间数组
+   */
+  public int add(long id, FaceFeatureView face) {
+    return add(id, face.getFeatureBuffer());
+  }
+
+  /**
+   * 加入feature中剩余的dim个元素, 不改变feature的position
+   */
+  public int add(long id, FloatBuffer feature) {
+    return store.append(id, feature);
+  }
+
+  /**
+   * @return 相似度最高的k个结果, 按相似度从高到低排列
+   */
+  public List<SearchHit> search(float[] query, int k) {
+    return search(FloatBuffer.wrap(query), k);
+  }
+
+  public List<SearchHit> search(FloatBuffer query, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    float[] q = VectorMath.prepare(query, store.dim(), metric);
+    int n = store.size();
+    TopK top;
+    if (n > PARALLEL_THRESHOLD && pool.getParallelism() > 1) {
+      top = pool.invoke(new SearchTask(q, k, 0, n));
+    } else {
+      top = new TopK(k);
+      store.scan(q, 0, n, top);
+    }
+    return top.drain();
+  }
+
+  public int size() {
+    return store.size();
+  }
+
+  public int getDim() {
+    return store.dim();
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  private final class SearchTask extends RecursiveTask<TopK> {
+    private static final long serialVersionUID = 1L;
+
+    private final float[] q;
+    private final int k;
+    private final int from;
+    private final int to;
+
+    SearchTask(float[] q, int k, int from, int to) {
+      this.q = q;
+      this.k = k;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected TopK compute() {
+      if (to - from <= PARALLEL_THRESHOLD) {
+        TopK top = new TopK(k);
+        store.scan(q, from, to, top);
+        return top;
+      }
+      int mid = (from + to) >>> 1;
+      SearchTask left = new SearchTask(q, k, from, mid);
+      left.fork();
+      TopK right = new SearchTask(q, k, mid, to).compute();
+      TopK top = left.join();
+      top.addAll(right);
+      return top;
+    }
+  }
+}
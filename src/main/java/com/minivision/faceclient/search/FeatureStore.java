@@ -0,0 +1,304 @@
+package com.minivision.faceclient.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 持久化的人脸特征库, 只追加, 由目录中的多个分段文件组成, 打开时直接内存映射,
+ * 无需反序列化即可检索
+ *
+ * <p>每条记录定长, 包含id、人脸框、年龄、性别、置信度和特征向量, 见 {@link StoreSegment}.
+ * 追加时先写入记录及其CRC, 再更新文件头中的记录数; 刷盘时在文件头中记下已落盘的记录数,
+ * 打开时校验此后的所有记录, 因此崩溃时写了一半的记录不会被读到.
+ * sync为false时未刷盘的追加可能在系统崩溃时丢失, 且打开时需要校验的记录更多
+ *
+ * <p>删除只标记记录, {@link #compact()} 重写含有已删除记录的分段. 压缩后记录的序号会变化,
+ * 应使用id标识记录
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+public class FeatureStore implements Closeable {
+
+  private static final String SEGMENT_SUFFIX = ".fcs";
+  private static final String COMPACT_SUFFIX = ".compact";
+
+  private final Path dir;
+  private final int dim;
+  private final int recordsPerSegment;
+  private final boolean sync;
+
+  private volatile StoreSegment[] segments;
+  private int nextSegmentNo;
+
+  private FeatureStore(Path dir, int dim, int recordsPerSegment, boolean sync,
+      StoreSegment[] segments, int nextSegmentNo) {
+    this.dir = dir;
+    this.dim = dim;
+    this.recordsPerSegment = recordsPerSegment;
+    this.sync = sync;
+    this.segments = segments;
+    this.nextSegmentNo = nextSegmentNo;
+  }
+
+  /**
+   * 打开或创建特征库, 每个分段最多100万条记录, 追加后不强制刷盘
+   */
+  public static FeatureStore open(Path dir, int dim) throws IOException {
+    return open(dir, dim, 1 << 20, false);
+  }
+
+  /**
+   * @param recordsPerSegment 每个分段文件的最大记录数, 只对新建的分段生效
+   * @param sync 为true时每次追加和删除都刷盘, 进程和系统崩溃都不丢失已返回的修改
+   */
+  public static FeatureStore open(Path dir, int dim, int recordsPerSegment, boolean sync)
+      throws IOException {
+    Files.createDirectories(dir);
+    // 压缩中途崩溃留下的临时文件, 原分段仍然完整
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX + COMPACT_SUFFIX)) {
+      for (Path p : stream) {
+        log.warn("Delete unfinished compaction {}.", p);
+        Files.delete(p);
+      }
+    }
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+      for (Path p : stream) {
+        files.add(p);
+      }
+    }
+    files.sort(null);
+    StoreSegment[] segs = new StoreSegment[files.size()];
+    int next = 0;
+    for (int i = 0; i < segs.length; i++) {
+      segs[i] = StoreSegment.open(files.get(i), dim);
+      next = Math.max(next, segmentNo(files.get(i)) + 1);
+    }
+    int perSegment = Math.min(recordsPerSegment, StoreSegment.maxCapacity(dim));
+    return new FeatureStore(dir, dim, perSegment, sync, segs, next);
+  }
+
+  /**
+   * 追加一条记录, feature的长度必须等于dim
+   *
+   * @return 记录的序号
+   */
+  public synchronized long append(long id, FaceFeature face) throws IOException {
+    float[] feature = face.getFeature();
+    if (feature == null || feature.length != dim) {
+      throw new IllegalArgumentException("Feature dimension mismatch, expect " + dim + " but "
+          + (feature == null ? 0 : feature.length));
+    }
+    StoreSegment[] segs = segments;
+    StoreSegment active = segs.length == 0 ? null : segs[segs.length - 1];
+    if (active == null || active.isFull()) {
+      active = StoreSegment.create(segmentPath(nextSegmentNo++), dim, recordsPerSegment);
+      segs = Arrays.copyOf(segs, segs.length + 1);
+      segs[segs.length - 1] = active;
+      segments = segs;
+    }
+    long base = 0;
+    for (int i = 0; i < segs.length - 1; i++) {
+      base += segs[i].count();
+    }
+    return base + active.append(id, face, sync);
+  }
+
+  /**
+   * @return 记录数, 包括已删除的记录
+   */
+  public long size() {
+    long size = 0;
+    for (StoreSegment s : segments) {
+      size += s.count();
+    }
+    return size;
+  }
+
+  public long getId(long index) {
+    StoreSegment[] segs = segments;
+    for (StoreSegment s : segs) {
+      if (index < s.count()) {
+        return s.id((int) index);
+      }
+      index -= s.count();
+    }
+    throw new IndexOutOfBoundsException("index " + index);
+  }
+
+  /**
+   * @return 第index条记录, 特征向量为拷贝
+   */
+  public FaceFeature getFeature(long index) {
+    for (StoreSegment s : segments) {
+      if (index < s.count()) {
+        return s.read((int) index);
+      }
+      index -= s.count();
+    }
+    throw new IndexOutOfBoundsException("index " + index);
+  }
+
+  /**
+   * @return 第index条记录的特征向量, 是映射文件的只读视图
+   */
+  public FloatBuffer getFeatureBuffer(long index) {
+    for (StoreSegment s : segments) {
+      if (index < s.count()) {
+        return s.featureBuffer((int) index);
+      }
+      index -= s.count();
+    }
+    throw new IndexOutOfBoundsException("index " + index);
+  }
+
+  public boolean isDeleted(long index) {
+    for (StoreSegment s : segments) {
+      if (index < s.count()) {
+        return s.isDeleted((int) index);
+      }
+      index -= s.count();
+    }
+    throw new IndexOutOfBoundsException("index " + index);
+  }
+
+  /**
+   * 标记id对应的所有记录为已删除, 需要扫描所有记录的id. sync为true时返回前把修改过的分段刷盘
+   *
+   * @return 删除的记录数
+   */
+  public synchronized int delete(long id) {
+    int deleted = 0;
+    for (StoreSegment s : segments) {
+      int marked = 0;
+      for (int i = 0, n = s.count(); i < n; i++) {
+        if (s.id(i) == id && !s.isDeleted(i)) {
+          s.markDeleted(i);
+          marked++;
+        }
+      }
+      if (sync && marked > 0) {
+        s.force();
+      }
+      deleted += marked;
+    }
+    return deleted;
+  }
+
+  /**
+   * 直接在映射的文件上精确检索, 跳过已删除的记录
+   *
+   * @return 相似度最高的k个结果, 按相似度从高到低排列
+   */
+  public List<SearchHit> search(float[] query, int k, Metric metric) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    float[] q = VectorMath.prepare(FloatBuffer.wrap(query), dim, metric);
+    TopK top = new TopK(k);
+    for (StoreSegment s : segments) {
+      s.scan(q, metric == Metric.COSINE, top);
+    }
+    return top.drain();
+  }
+
+  /**
+   * 把所有未删除的记录加入gallery
+   */
+  public void loadInto(FaceGallery gallery) {
+    for (StoreSegment s : segments) {
+      for (int i = 0, n = s.count(); i < n; i++) {
+        if (!s.isDeleted(i)) {
+          gallery.add(s.id(i), s.featureBuffer(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * 重写含有已删除记录的已满分段, 只保留未删除的记录. 新分段写完并刷盘后再原子地替换旧文件
+   *
+   * @return 移除的记录数
+   */
+  public synchronized long compact() throws IOException {
+    StoreSegment[] segs = segments.clone();
+    long removed = 0;
+    // 最后一个分段仍在追加, 不压缩
+    for (int i = 0; i < segs.length - 1; i++) {
+      StoreSegment old = segs[i];
+      int deleted = old.deletedCount();
+      if (deleted == 0) {
+        continue;
+      }
+      Path tmp = old.path().resolveSibling(old.path().getFileName() + COMPACT_SUFFIX);
+      Files.deleteIfExists(tmp);
+      StoreSegment compacted =
+          StoreSegment.create(tmp, dim, Math.max(1, old.count() - deleted));
+      for (int r = 0, n = old.count(); r < n; r++) {
+        if (!old.isDeleted(r)) {
+          compacted.copyFrom(old, r);
+        }
+      }
+      compacted.force();
+      compacted.close();
+      Files.move(tmp, old.path(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      segs[i] = StoreSegment.open(old.path(), dim);
+      old.close();
+      removed += deleted;
+    }
+    segments = segs;
+    log.info("Compacted feature store {}, removed {} records.", dir, removed);
+    return removed;
+  }
+
+  /**
+   * 把所有分段刷盘
+   */
+  public synchronized void flush() {
+    for (StoreSegment s : segments) {
+      s.force();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (StoreSegment s : segments) {
+      s.force();
+      s.close();
+    }
+  }
+
+  public int getDim() {
+    return dim;
+  }
+
+  private Path segmentPath(int no) {
+    return dir.resolve(String.format("segment-%08d%s", no, SEGMENT_SUFFIX));
+  }
+
+  private static int segmentNo(Path p) {
+    String name = p.getFileName().toString();
+    try {
+      return Integer.parseInt(name.substring("segment-".length(),
+          name.length() - SEGMENT_SUFFIX.length()));
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,452 @@
+package com.minivision.faceclient.search;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatureView;
+
+/**
+ * 基于HNSW(分层可导航小世界图)的近似检索索引, 适用于精确检索({@link FaceGallery})过慢的超大底库
+ *
+ * <p>向量和邻接表都保存在堆外: 第0层每个节点占 1+2M 个int(邻居数+邻居), 更高层的节点
+ * 每层占 1+M 个int, 分配在另一个数组中. 不为节点创建对象
+ *
+ * <p>加入和检索可以并发执行. 修改邻接表时对节点加分段锁, 检索读取邻接表时不加锁;
+ * 加入层数高于当前最高层的节点时持有入口锁, 与hnswlib的做法相同. 无锁读到的邻居可能尚未对本线程可见,
+ * 读取向量前先读取volatile的size, 跳过不小于size的节点, 见 {@link #isPublished(int)}
+ *
+ * @author PanXinmiao
+ *
+ */
+public class HnswIndex {
+
+  private static final int LOCK_STRIPES = 1 << 12;
+  private static final int MAX_LEVEL = 16;
+  private static final long EMPTY = -1L;
+
+  private final Metric metric;
+  private final VectorStore store;
+  private final int m;
+  private final int maxM0;
+  private final int efConstruction;
+  private volatile int efSearch = 64;
+  private final double levelMult;
+
+  // 第0层邻接表, 节点node位于 node*(maxM0+1)
+  private final IntArray level0 = new IntArray();
+  // 每个节点的层数
+  private final IntArray levels = new IntArray();
+  // 层数大于0的节点在upper中的起始块号, 每块 m+1 个int, 第l层(l>=1)为第 l-1 块
+  private final IntArray upperBlocks = new IntArray();
+  private final IntArray upper = new IntArray();
+  private int upperBlockCount;
+
+  private final Object[] locks = new Object[LOCK_STRIPES];
+  private final ReentrantLock entryLock = new ReentrantLock();
+  // 入口节点(高32位)和最高层数(低32位), 空索引为EMPTY
+  private volatile long entry = EMPTY;
+
+  private final ThreadLocal<SearchContext> contexts = new ThreadLocal<SearchContext>() {
+    @Override
+    protected SearchContext initialValue() {
+      return new SearchContext();
+    }
+  };
+
+  public HnswIndex(int dim) {
+    this(dim, Metric.COSINE, 16, 200);
+  }
+
+  /**
+   * @param m 每层的邻居数, 第0层为2m. 越大召回率越高, 内存和加入耗时也越大, 常用12~48
+   * @param efConstruction 加入时的候选集大小, 越大图的质量越好, 加入越慢
+   */
+  public HnswIndex(int dim, Metric metric, int m, int efConstruction) {
+    if (m < 2) {
+      throw new IllegalArgumentException("m must be at least 2: " + m);
+    }
+    this.metric = metric;
+    this.store = new VectorStore(dim, metric == Metric.COSINE);
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.levelMult = 1 / Math.log(m);
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  public int add(long id, float[] feature) {
+    return add(id, FloatBuffer.wrap(feature));
+  }
+
+  public int add(long id, FaceFeature face) {
+    return add(id, face.getFeature());
+  }
+
+  public int add(long id, FaceFeatureView face) {
+    return add(id, face.getFeatureBuffer());
+  }
+
+  /**
+   * 加入feature中剩余的dim个元素, 可与其它加入和检索并发执行
+   *
+   * @return 节点号, 从0开始
+   */
+  public int add(long id, FloatBuffer feature) {
+    int level = randomLevel();
+    int node;
+    synchronized (this) {
+      node = store.append(id, feature);
+      level0.ensureCapacity((long) (node + 1) * (maxM0 + 1));
+      levels.ensureCapacity(node + 1);
+      upperBlocks.ensureCapacity(node + 1);
+      levels.set(node, level);
+      if (level > 0) {
+        upperBlocks.set(node, upperBlockCount);
+        upperBlockCount += level;
+        upper.ensureCapacity((long) upperBlockCount * (m + 1));
+      }
+    }
+
+    SearchContext ctx = contexts.get();
+    float[] q = ctx.vector(store.dim());
+    store.copy(node, q);
+
+    long ep = entry;
+    boolean locked = false;
+    if (level > levelOf(ep)) {
+      entryLock.lock();
+      locked = true;
+      ep = entry;
+      if (level <= levelOf(ep)) {
+        entryLock.unlock();
+        locked = false;
+      }
+    }
+    try {
+      if (ep == EMPTY) {
+        entry = pack(node, level);
+        return node;
+      }
+      int maxLevel = levelOf(ep);
+      int cur = nodeOf(ep);
+      for (int l = maxLevel; l > level; l--) {
+        cur = greedy(q, cur, l);
+      }
+      for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+        NodeHeap results = searchLayer(q, cur, efConstruction, l, ctx);
+        int n = ctx.sortDescending(results);
+        cur = ctx.sortedNodes[0];
+        int count = selectNeighbors(ctx.sortedNodes, ctx.sortedScores, n, m, ctx.selected);
+        connect(node, l, ctx.selected, count);
+      }
+      if (level > maxLevel) {
+        entry = pack(node, level);
+      }
+    } finally {
+      if (locked) {
+        entryLock.unlock();
+      }
+    }
+    return node;
+  }
+
+  /**
+   * 使用当前的efSearch检索
+   *
+   * @return 相似度最高的k个结果(近似), 按相似度从高到低排列
+   */
+  public List<SearchHit> search(float[] query, int k) {
+    return search(FloatBuffer.wrap(query), k, efSearch);
+  }
+
+  public List<SearchHit> search(FloatBuffer query, int k) {
+    return search(query, k, efSearch);
+  }
+
+  /**
+   * @param ef 检索时的候选集大小, 不小于k. 越大召回率越高, 检索越慢
+   */
+  public List<SearchHit> search(FloatBuffer query, int k, int ef) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    float[] q = VectorMath.prepare(query, store.dim(), metric);
+    long ep = entry;
+    if (ep == EMPTY) {
+      return Collections.emptyList();
+    }
+    int cur = nodeOf(ep);
+    for (int l = levelOf(ep); l > 0; l--) {
+      cur = greedy(q, cur, l);
+    }
+    NodeHeap results = searchLayer(q, cur, Math.max(ef, k), 0, contexts.get());
+    TopK top = new TopK(k);
+    for (int i = 0; i < results.size(); i++) {
+      top.offer(store.id(results.node(i)), results.score(i));
+    }
+    return top.drain();
+  }
+
+  /**
+   * 在第level层从cur出发贪心地移动到与q最相似的节点
+   */
+  private int greedy(float[] q, int cur, int level) {
+    float curScore = store.dot(cur, q);
+    IntArray links = links(level);
+    int cap = capacity(level);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      long base = linkBase(cur, level);
+      int count = Math.min(links.get(base), cap);
+      for (int i = 1; i <= count; i++) {
+        int nb = links.get(base + i);
+        if (!isPublished(nb)) {
+          continue;
+        }
+        float s = store.dot(nb, q);
+        if (s > curScore) {
+          curScore = s;
+          cur = nb;
+          changed = true;
+        }
+      }
+    }
+    return cur;
+  }
+
+  /**
+   * @return 第level层中与q最相似的ef个节点, 小顶堆, 属于ctx
+   */
+  private NodeHeap searchLayer(float[] q, int ep, int ef, int level, SearchContext ctx) {
+    VisitedSet visited = ctx.visited;
+    NodeHeap candidates = ctx.candidates;
+    NodeHeap results = ctx.results;
+    visited.clear();
+    candidates.clear();
+    results.clear();
+
+    float s = store.dot(ep, q);
+    visited.add(ep);
+    candidates.push(ep, s);
+    results.push(ep, s);
+    IntArray links = links(level);
+    int cap = capacity(level);
+    while (!candidates.isEmpty()) {
+      int c = candidates.topNode();
+      if (candidates.topScore() < results.topScore() && results.size() >= ef) {
+        break;
+      }
+      candidates.pop();
+      long base = linkBase(c, level);
+      int count = Math.min(links.get(base), cap);
+      for (int i = 1; i <= count; i++) {
+        int nb = links.get(base + i);
+        if (!isPublished(nb) || !visited.add(nb)) {
+          continue;
+        }
+        float ns = store.dot(nb, q);
+        if (results.size() < ef || ns > results.topScore()) {
+          candidates.push(nb, ns);
+          results.push(nb, ns);
+          if (results.size() > ef) {
+            results.pop();
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * 启发式选择邻居: 按相似度从高到低, 只保留与已选邻居都不如与目标相似的候选, 使邻居分布在不同方向
+   *
+   * @param nodes 按scores从高到低排列的候选
+   * @return 选中的个数, 结果在selected中
+   */
+  private int selectNeighbors(int[] nodes, float[] scores, int n, int max, int[] selected) {
+    int count = 0;
+    for (int i = 0; i < n && count < max; i++) {
+      int c = nodes[i];
+      boolean good = true;
+      for (int j = 0; j < count; j++) {
+        if (store.dot(c, selected[j]) > scores[i]) {
+          good = false;
+          break;
+        }
+      }
+      if (good) {
+        selected[count++] = c;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 写入node在第level层的邻居, 并把node加入这些邻居的邻接表, 邻居已满时重新选择
+   */
+  private void connect(int node, int level, int[] neighbors, int count) {
+    IntArray links = links(level);
+    int cap = capacity(level);
+    synchronized (lock(node)) {
+      long base = linkBase(node, level);
+      for (int i = 0; i < count; i++) {
+        links.set(base + 1 + i, neighbors[i]);
+      }
+      links.set(base, count);
+    }
+    SearchContext ctx = contexts.get();
+    for (int i = 0; i < count; i++) {
+      int nb = neighbors[i];
+      synchronized (lock(nb)) {
+        long base = linkBase(nb, level);
+        int n = Math.min(links.get(base), cap);
+        if (n < cap) {
+          links.set(base + 1 + n, node);
+          links.set(base, n + 1);
+          continue;
+        }
+        // 已满, 在原有邻居和node中重新选择
+        NodeHeap heap = ctx.shrink;
+        heap.clear();
+        heap.push(node, store.dot(nb, node));
+        for (int j = 1; j <= n; j++) {
+          int x = links.get(base + j);
+          heap.push(x, store.dot(nb, x));
+        }
+        int sorted = ctx.sortDescending(heap);
+        int kept = selectNeighbors(ctx.sortedNodes, ctx.sortedScores, sorted, cap, ctx.pruned);
+        for (int j = 0; j < kept; j++) {
+          links.set(base + 1 + j, ctx.pruned[j]);
+        }
+        links.set(base, kept);
+      }
+    }
+  }
+
+  /**
+   * 邻接表的写入与检索之间没有同步, 读到邻居node不代表能看到存放它的分段(分段扩容时会拷贝).
+   * 读取volatile的size, 若node小于size, 则追加node时写入的分段对本线程可见
+   */
+  private boolean isPublished(int node) {
+    return node < store.size();
+  }
+
+  private int randomLevel() {
+    double r = ThreadLocalRandom.current().nextDouble();
+    return Math.min(MAX_LEVEL, (int) (-Math.log(1 - r) * levelMult));
+  }
+
+  private IntArray links(int level) {
+    return level == 0 ? level0 : upper;
+  }
+
+  private int capacity(int level) {
+    return level == 0 ? maxM0 : m;
+  }
+
+  private long linkBase(int node, int level) {
+    if (level == 0) {
+      return (long) node * (maxM0 + 1);
+    }
+    return ((long) upperBlocks.get(node) + level - 1) * (m + 1);
+  }
+
+  private Object lock(int node) {
+    return locks[node & (LOCK_STRIPES - 1)];
+  }
+
+  private static long pack(int node, int level) {
+    return ((long) node << 32) | (level & 0xFFFFFFFFL);
+  }
+
+  private static int nodeOf(long entry) {
+    return (int) (entry >> 32);
+  }
+
+  private static int levelOf(long entry) {
+    return (int) entry;
+  }
+
+  public int size() {
+    return store.size();
+  }
+
+  public int getDim() {
+    return store.dim();
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public int getM() {
+    return m;
+  }
+
+  public int getEfConstruction() {
+    return efConstruction;
+  }
+
+  public int getEfSearch() {
+    return efSearch;
+  }
+
+  public void setEfSearch(int efSearch) {
+    if (efSearch <= 0) {
+      throw new IllegalArgumentException("efSearch must be positive: " + efSearch);
+    }
+    this.efSearch = efSearch;
+  }
+
+  /**
+   * 每个线程复用的检索状态
+   */
+  private static final class SearchContext {
+    private final VisitedSet visited = new VisitedSet();
+    private final NodeHeap candidates = new NodeHeap(true, 64);
+    private final NodeHeap results = new NodeHeap(false, 64);
+    private final NodeHeap shrink = new NodeHeap(false, 64);
+    private int[] sortedNodes = new int[64];
+    private float[] sortedScores = new float[64];
+    private int[] selected = new int[64];
+    private int[] pruned = new int[64];
+    private float[] vector;
+
+    float[] vector(int dim) {
+      if (vector == null || vector.length != dim) {
+        vector = new float[dim];
+      }
+      return vector;
+    }
+
+    /**
+     * 清空小顶堆heap, 按得分从高到低放入sortedNodes/sortedScores
+     *
+     * @return 个数
+     */
+    int sortDescending(NodeHeap heap) {
+      int n = heap.size();
+      if (sortedNodes.length < n) {
+        sortedNodes = new int[n];
+        sortedScores = new float[n];
+      }
+      if (selected.length < n) {
+        selected = new int[n];
+        pruned = new int[n];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+        sortedNodes[i] = heap.topNode();
+        sortedScores[i] = heap.topScore();
+        heap.pop();
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.minivision.faceclient.search;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * 堆外的int数组, 按long下标访问, 由多个direct buffer分段组成. 扩容只追加分段,
+ * 已有的分段不会移动, 因此扩容与读写可以并发. 新分配的元素为0
+ *
+ * @author PanXinmiao
+ *
+ */
+final class IntArray {
+
+  private static final int SEGMENT_SHIFT = 20;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private volatile IntBuffer[] segments = new IntBuffer[0];
+
+  int get(long index) {
+    return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+  }
+
+  void set(long index, int value) {
+    segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+  }
+
+  /**
+   * 保证下标小于capacity的元素可以访问
+   */
+  synchronized void ensureCapacity(long capacity) {
+    IntBuffer[] segs = segments;
+    int needed = (int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+    if (needed <= segs.length) {
+      return;
+    }
+    segs = Arrays.copyOf(segs, needed);
+    for (int i = segments.length; i < needed; i++) {
+      segs[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE * 4).order(ByteOrder.nativeOrder())
+          .asIntBuffer();
+    }
+    segments = segs;
+  }
+}
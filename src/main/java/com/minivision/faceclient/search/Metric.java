@@ -0,0 +1,20 @@
+package com.minivision.faceclient.search;
+
+/**
+ * 特征向量的相似度, 值越大越相似
+ * 
+ * @author PanXinmiao
+ *
+ */
+public enum Metric {
+
+  /**
+   * 余弦相似度. 向量在加入时归一化, 查询时按内积计算
+   */
+  COSINE,
+
+  /**
+   * 内积, 向量按原样保存
+   */
+  INNER_PRODUCT
+}
@@ -0,0 +1,107 @@
+package com.minivision.faceclient.search;
+
+import java.util.Arrays;
+
+/**
+ * 以基本类型数组保存的(节点, 得分)二叉堆, 可按需扩容
+ *
+ * @author PanXinmiao
+ *
+ */
+final class NodeHeap {
+
+  private final boolean maxHeap;
+  private int[] nodes;
+  private float[] scores;
+  private int size;
+
+  /**
+   * @param maxHeap 为true时堆顶是得分最高的节点, 否则是得分最低的节点
+   */
+  NodeHeap(boolean maxHeap, int initialCapacity) {
+    this.maxHeap = maxHeap;
+    this.nodes = new int[Math.max(initialCapacity, 4)];
+    this.scores = new float[nodes.length];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int topNode() {
+    return nodes[0];
+  }
+
+  float topScore() {
+    return scores[0];
+  }
+
+  int node(int i) {
+    return nodes[i];
+  }
+
+  float score(int i) {
+    return scores[i];
+  }
+
+  void push(int node, float score) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, size * 2);
+      scores = Arrays.copyOf(scores, size * 2);
+    }
+    int i = size++;
+    nodes[i] = node;
+    scores[i] = score;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!before(i, parent)) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   * 移除堆顶
+   */
+  void pop() {
+    size--;
+    nodes[0] = nodes[size];
+    scores[0] = scores[size];
+    int i = 0;
+    for (;;) {
+      int left = 2 * i + 1;
+      if (left >= size) {
+        return;
+      }
+      int child = left + 1 < size && before(left + 1, left) ? left + 1 : left;
+      if (!before(child, i)) {
+        return;
+      }
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  private boolean before(int a, int b) {
+    return maxHeap ? scores[a] > scores[b] : scores[a] < scores[b];
+  }
+
+  private void swap(int a, int b) {
+    int n = nodes[a];
+    nodes[a] = nodes[b];
+    nodes[b] = n;
+    float s = scores[a];
+    scores[a] = scores[b];
+    scores[b] = s;
+  }
+}
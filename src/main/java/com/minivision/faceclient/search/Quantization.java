@@ -0,0 +1,20 @@
+package com.minivision.faceclient.search;
+
+/**
+ * 特征向量的标量量化方式
+ *
+ * @author PanXinmiao
+ *
+ */
+public enum Quantization {
+
+  /**
+   * 每维一个字节, 按训练样本中每维的取值范围线性映射到0~255, 内存为float的1/4
+   */
+  INT8,
+
+  /**
+   * IEEE 754半精度浮点数, 不需要训练, 内存为float的1/2
+   */
+  FLOAT16
+}
@@ -0,0 +1,321 @@
+package com.minivision.faceclient.search;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatureView;
+
+/**
+ * 保存量化特征的1:N检索库, 直接在量化编码上计算相似度, 内存为 {@link FaceGallery} 的1/4(INT8)或1/2(FLOAT16)
+ *
+ * <p>INT8需要先用有代表性的特征调用 {@link #train(Iterable)} 确定每维的取值范围. 构造时keepOriginal为true时
+ * 另外保存原始特征, 检索时先按编码取rerank个候选, 再用原始特征精确计算并重新排序,
+ * 以内存换取接近精确检索的召回率
+ *
+ * @author PanXinmiao
+ *
+ */
+public class QuantizedGallery {
+
+  /**
+   * 每个分段最多占用的字节数
+   */
+  private static final int SEGMENT_BYTES = 1 << 28;
+
+  /**
+   * 新分段的初始字节数
+   */
+  private static final int INITIAL_SEGMENT_BYTES = 1 << 16;
+
+  /**
+   * 行数超过此值时并行检索, 每个子任务至少处理这么多行
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+  private final int dim;
+  private final Metric metric;
+  private final Quantization quantization;
+  private final VectorStore originals;
+  private final ForkJoinPool pool;
+  private volatile int rerank = 100;
+
+  private volatile ScalarQuantizer quantizer;
+  private int rowsPerSegment;
+  private int initialRows;
+  private volatile Segment[] segments = new Segment[0];
+  private volatile int size;
+
+  public QuantizedGallery(int dim, Quantization quantization) {
+    this(dim, Metric.COSINE, quantization, false);
+  }
+
+  public QuantizedGallery(int dim, Metric metric, Quantization quantization,
+      boolean keepOriginal) {
+    this(dim, metric, quantization, keepOriginal, ForkJoinPool.commonPool());
+  }
+
+  public QuantizedGallery(int dim, Metric metric, Quantization quantization,
+      boolean keepOriginal, ForkJoinPool pool) {
+    if (dim <= 0) {
+      throw new IllegalArgumentException("dim must be positive: " + dim);
+    }
+    this.dim = dim;
+    this.metric = metric;
+    this.quantization = quantization;
+    this.originals = keepOriginal ? new VectorStore(dim, metric == Metric.COSINE) : null;
+    this.pool = pool;
+    if (quantization == Quantization.FLOAT16) {
+      setQuantizer(ScalarQuantizer.float16(dim));
+    }
+  }
+
+  /**
+   * 用样本确定INT8每维的量化范围, 必须在加入特征前调用. FLOAT16不需要训练, 调用无效果
+   */
+  public synchronized void train(Iterable<float[]> samples) {
+    if (quantization != Quantization.INT8) {
+      return;
+    }
+    if (size > 0) {
+      throw new IllegalStateException("Gallery is not empty.");
+    }
+    List<float[]> prepared = new ArrayList<>();
+    for (float[] v : samples) {
+      prepared.add(VectorMath.prepare(FloatBuffer.wrap(v), dim, metric));
+    }
+    setQuantizer(ScalarQuantizer.int8(dim, prepared));
+  }
+
+  private void setQuantizer(ScalarQuantizer quantizer) {
+    this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / quantizer.codeBytes());
+    this.initialRows = Math.min(rowsPerSegment,
+        Math.max(1, INITIAL_SEGMENT_BYTES / quantizer.codeBytes()));
+    this.quantizer = quantizer;
+  }
+
+  /**
+   * @return 加入的行号, 从0开始
+   */
+  public int add(long id, float[] feature) {
+    return add(id, FloatBuffer.wrap(feature));
+  }
+
+  public int add(long id, FaceFeature face) {
+    return add(id, face.getFeature());
+  }
+
+  public int add(long id, FaceFeatureView face) {
+    return add(id, face.getFeatureBuffer());
+  }
+
+  /**
+   * 加入feature中剩余的dim个元素, 不改变feature的position
+   */
+  public synchronized int add(long id, FloatBuffer feature) {
+    ScalarQuantizer q = quantizer;
+    if (q == null) {
+      throw new IllegalStateException("INT8 quantizer is not trained.");
+    }
+    float[] v = VectorMath.prepare(feature, dim, metric);
+    int row = size;
+    int seg = row / rowsPerSegment;
+    int local = row - seg * rowsPerSegment;
+    Segment[] segs = segments;
+    if (seg == segs.length) {
+      segs = Arrays.copyOf(segs, seg + 1);
+      segs[seg] = new Segment(initialRows, q.codeBytes());
+      segments = segs;
+    } else if (local == segs[seg].ids.length) {
+      // 检索线程可能持有旧分段, 只读取其中已有的行, 不受影响
+      segs = segs.clone();
+      segs[seg] = segs[seg].grow(Math.min(rowsPerSegment, local * 2), q.codeBytes());
+      segments = segs;
+    }
+    Segment s = segs[seg];
+    q.encode(v, s.codes, local * q.codeBytes());
+    s.ids[local] = id;
+    if (originals != null) {
+      originals.append(row, feature);
+    }
+    // size是volatile, 写入后读取线程才能看到这一行
+    size = row + 1;
+    return row;
+  }
+
+  /**
+   * @return 相似度最高的k个结果, 按相似度从高到低排列. 保存了原始特征时得分是精确值, 否则是近似值
+   */
+  public List<SearchHit> search(float[] query, int k) {
+    return search(FloatBuffer.wrap(query), k);
+  }
+
+  public List<SearchHit> search(FloatBuffer query, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    float[] q = VectorMath.prepare(query, dim, metric);
+    int n = size;
+    boolean exact = originals != null;
+    int candidates = exact ? Math.max(k, rerank) : k;
+    TopK top;
+    if (n > PARALLEL_THRESHOLD && pool.getParallelism() > 1) {
+      top = pool.invoke(new SearchTask(q, candidates, 0, n, exact));
+    } else {
+      top = new TopK(candidates);
+      scan(q, 0, n, top, exact);
+    }
+    List<SearchHit> hits = top.drain();
+    if (!exact) {
+      return hits;
+    }
+    // 候选的id是行号, 用原始特征重新计算
+    TopK rescored = new TopK(k);
+    for (SearchHit hit : hits) {
+      int row = (int) hit.getId();
+      rescored.offer(row, originals.dot(row, q));
+    }
+    List<SearchHit> result = rescored.drain();
+    List<SearchHit> mapped = new ArrayList<>(result.size());
+    for (SearchHit hit : result) {
+      mapped.add(new SearchHit(id((int) hit.getId()), hit.getScore()));
+    }
+    return mapped;
+  }
+
+  private long id(int row) {
+    return segments[row / rowsPerSegment].ids[row % rowsPerSegment];
+  }
+
+  /**
+   * 在编码上计算 [from, to) 行与q的近似内积, rows为true时结果中的id是行号
+   */
+  private void scan(float[] q, int from, int to, TopK top, boolean rows) {
+    ScalarQuantizer quant = quantizer;
+    Segment[] segs = segments;
+    boolean int8 = quantization == Quantization.INT8;
+    float[] scaled = quant.scaleQuery(q);
+    float bias = quant.bias(q);
+    int row = from;
+    while (row < to) {
+      int seg = row / rowsPerSegment;
+      int segStart = seg * rowsPerSegment;
+      int end = Math.min(to, segStart + rowsPerSegment);
+      Segment s = segs[seg];
+      for (int local = row - segStart, last = end - segStart; local < last; local++) {
+        float score = int8 ? bias + ScalarQuantizer.dotInt8(s.codes, local * dim, scaled)
+            : ScalarQuantizer.dotHalf(s.halfs, local * dim, q);
+        if (score > top.threshold()) {
+          top.offer(rows ? segStart + local : s.ids[local], score);
+        }
+      }
+      row = end;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getDim() {
+    return dim;
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public Quantization getQuantization() {
+    return quantization;
+  }
+
+  public int getRerank() {
+    return rerank;
+  }
+
+  /**
+   * 精确重排的候选数, 只在保存了原始特征时有效, 默认100
+   */
+  public void setRerank(int rerank) {
+    if (rerank <= 0) {
+      throw new IllegalArgumentException("rerank must be positive: " + rerank);
+    }
+    this.rerank = rerank;
+  }
+
+  private final class SearchTask extends RecursiveTask<TopK> {
+    private static final long serialVersionUID = 1L;
+
+    private final float[] q;
+    private final int k;
+    private final int from;
+    private final int to;
+    private final boolean rows;
+
+    SearchTask(float[] q, int k, int from, int to, boolean rows) {
+      this.q = q;
+      this.k = k;
+      this.from = from;
+      this.to = to;
+      this.rows = rows;
+    }
+
+    @Override
+    protected TopK compute() {
+      if (to - from <= PARALLEL_THRESHOLD) {
+        TopK top = new TopK(k);
+        scan(q, from, to, top, rows);
+        return top;
+      }
+      int mid = (from + to) >>> 1;
+      SearchTask left = new SearchTask(q, k, from, mid, rows);
+      left.fork();
+      TopK right = new SearchTask(q, k, mid, to, rows).compute();
+      TopK top = left.join();
+      top.addAll(right);
+      return top;
+    }
+  }
+
+  /**
+   * 一个分段, 行号为local的编码位于codes的 [local*codeBytes, (local+1)*codeBytes).
+   * 按需成倍扩容, 最多rowsPerSegment行
+   */
+  private static final class Segment {
+    private final ByteBuffer codes;
+    private final ShortBuffer halfs;
+    private final long[] ids;
+
+    Segment(int rows, int codeBytes) {
+      this(allocate(rows, codeBytes), new long[rows]);
+    }
+
+    private Segment(ByteBuffer codes, long[] ids) {
+      this.codes = codes;
+      this.halfs = codes.asShortBuffer();
+      this.ids = ids;
+    }
+
+    private static ByteBuffer allocate(int rows, int codeBytes) {
+      // INT8的内积按小端读取long
+      return ByteBuffer.allocateDirect(rows * codeBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return 容量为rows行, 包含本分段所有行的新分段
+     */
+    Segment grow(int rows, int codeBytes) {
+      ByteBuffer c = allocate(rows, codeBytes);
+      c.put(codes.duplicate());
+      c.clear();
+      return new Segment(c, Arrays.copyOf(ids, rows));
+    }
+  }
+}
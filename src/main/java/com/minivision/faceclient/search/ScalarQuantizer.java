@@ -0,0 +1,209 @@
+package com.minivision.faceclient.search;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * 标量量化的编码与内积计算
+ *
+ * <p>INT8按维度做仿射变换: x[i] ≈ min[i] + scale[i] * c[i], c[i]为无符号字节. 查询不量化,
+ * 内积拆成 Σq[i]*min[i] + Σ(q[i]*scale[i])*c[i], 前一项每次查询只算一次, 后一项直接在编码上计算.
+ * FLOAT16通过65536项的查表还原为float
+ *
+ * @author PanXinmiao
+ *
+ */
+final class ScalarQuantizer {
+
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+  static {
+    for (int h = 0; h < HALF_TO_FLOAT.length; h++) {
+      HALF_TO_FLOAT[h] = halfToFloat((short) h);
+    }
+  }
+
+  private final Quantization quantization;
+  private final int dim;
+  private final float[] min;
+  private final float[] scale;
+
+  private ScalarQuantizer(Quantization quantization, int dim, float[] min, float[] scale) {
+    this.quantization = quantization;
+    this.dim = dim;
+    this.min = min;
+    this.scale = scale;
+  }
+
+  static ScalarQuantizer float16(int dim) {
+    return new ScalarQuantizer(Quantization.FLOAT16, dim, null, null);
+  }
+
+  /**
+   * 按样本中每维的最小值和最大值确定量化范围, 超出范围的值在编码时截断
+   */
+  static ScalarQuantizer int8(int dim, Iterable<float[]> samples) {
+    float[] min = new float[dim];
+    float[] max = new float[dim];
+    Arrays.fill(min, Float.POSITIVE_INFINITY);
+    Arrays.fill(max, Float.NEGATIVE_INFINITY);
+    int n = 0;
+    for (float[] v : samples) {
+      if (v.length != dim) {
+        throw new IllegalArgumentException(
+            "Feature dimension mismatch, expect " + dim + " but " + v.length);
+      }
+      for (int i = 0; i < dim; i++) {
+        min[i] = Math.min(min[i], v[i]);
+        max[i] = Math.max(max[i], v[i]);
+      }
+      n++;
+    }
+    if (n == 0) {
+      throw new IllegalArgumentException("No training samples.");
+    }
+    float[] scale = new float[dim];
+    for (int i = 0; i < dim; i++) {
+      float range = max[i] - min[i];
+      scale[i] = range > 0 ? range / 255 : 1;
+    }
+    return new ScalarQuantizer(Quantization.INT8, dim, min, scale);
+  }
+
+  Quantization quantization() {
+    return quantization;
+  }
+
+  /**
+   * @return 每行编码占用的字节数
+   */
+  int codeBytes() {
+    return quantization == Quantization.INT8 ? dim : 2 * dim;
+  }
+
+  /**
+   * 把v编码写入dst的 [offset, offset+codeBytes())
+   */
+  void encode(float[] v, ByteBuffer dst, int offset) {
+    if (quantization == Quantization.INT8) {
+      for (int i = 0; i < dim; i++) {
+        int c = Math.round((v[i] - min[i]) / scale[i]);
+        dst.put(offset + i, (byte) Math.max(0, Math.min(255, c)));
+      }
+    } else {
+      for (int i = 0; i < dim; i++) {
+        dst.putShort(offset + 2 * i, floatToHalf(v[i]));
+      }
+    }
+  }
+
+  /**
+   * INT8时返回 q[i]*scale[i], FLOAT16时返回q本身
+   */
+  float[] scaleQuery(float[] q) {
+    if (quantization != Quantization.INT8) {
+      return q;
+    }
+    float[] scaled = new float[dim];
+    for (int i = 0; i < dim; i++) {
+      scaled[i] = q[i] * scale[i];
+    }
+    return scaled;
+  }
+
+  /**
+   * @return 内积中与编码无关的常数项
+   */
+  float bias(float[] q) {
+    return quantization == Quantization.INT8 ? VectorMath.dot(q, min) : 0;
+  }
+
+  /**
+   * @return codes中从base开始的一行INT8编码与scaled的内积, 不含常数项. codes必须是小端字节序,
+   *         每次读取一个long再拆出8个编码, 比逐字节读取少了大部分边界检查
+   */
+  static float dotInt8(ByteBuffer codes, int base, float[] scaled) {
+    int n = scaled.length;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 7 < n; i += 8) {
+      long w = codes.getLong(base + i);
+      s0 += (int) (w & 0xFF) * scaled[i];
+      s1 += (int) ((w >>> 8) & 0xFF) * scaled[i + 1];
+      s2 += (int) ((w >>> 16) & 0xFF) * scaled[i + 2];
+      s3 += (int) ((w >>> 24) & 0xFF) * scaled[i + 3];
+      s0 += (int) ((w >>> 32) & 0xFF) * scaled[i + 4];
+      s1 += (int) ((w >>> 40) & 0xFF) * scaled[i + 5];
+      s2 += (int) ((w >>> 48) & 0xFF) * scaled[i + 6];
+      s3 += (int) (w >>> 56) * scaled[i + 7];
+    }
+    for (; i < n; i++) {
+      s0 += (codes.get(base + i) & 0xFF) * scaled[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @return halfs中从base开始的一行FLOAT16编码与q的内积
+   */
+  static float dotHalf(ShortBuffer halfs, int base, float[] q) {
+    float[] table = HALF_TO_FLOAT;
+    int n = q.length;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += table[halfs.get(base + i) & 0xFFFF] * q[i];
+      s1 += table[halfs.get(base + i + 1) & 0xFFFF] * q[i + 1];
+      s2 += table[halfs.get(base + i + 2) & 0xFFFF] * q[i + 2];
+      s3 += table[halfs.get(base + i + 3) & 0xFFFF] * q[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += table[halfs.get(base + i) & 0xFFFF] * q[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * 舍入到最近的半精度数, 超出范围时为无穷大
+   */
+  static short floatToHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7FFFFFFF;
+    if (abs >= 0x7F800000) {
+      // 无穷大或NaN
+      return (short) (sign | 0x7C00 | (abs > 0x7F800000 ? 0x200 : 0));
+    }
+    if (abs >= 0x477FF000) {
+      // 舍入后超出半精度的最大值65504
+      return (short) (sign | 0x7C00);
+    }
+    if (abs >= 0x38800000) {
+      // 规格化数, 舍入后进位可能使指数加一, 结果仍然正确
+      return (short) (sign | ((abs - 0x38000000 + 0x1000) >>> 13));
+    }
+    if (abs < 0x33000000) {
+      return (short) sign;
+    }
+    // 非规格化数
+    int exp = abs >>> 23;
+    int mantissa = (abs & 0x7FFFFF) | 0x800000;
+    int shift = 126 - exp;
+    return (short) (sign | ((mantissa + (1 << (shift - 1))) >>> shift));
+  }
+
+  static float halfToFloat(short h) {
+    int sign = (h & 0x8000) << 16;
+    int exp = (h >>> 10) & 0x1F;
+    int mantissa = h & 0x3FF;
+    if (exp == 0) {
+      float v = mantissa * 0x1p-24f;
+      return sign == 0 ? v : -v;
+    }
+    if (exp == 0x1F) {
+      return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+    }
+    return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mantissa << 13));
+  }
+}
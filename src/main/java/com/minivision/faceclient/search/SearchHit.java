@@ -0,0 +1,23 @@
+package com.minivision.faceclient.search;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 一条检索结果
+ * 
+ * @author PanXinmiao
+ *
+ */
+@Getter
+@ToString
+public class SearchHit {
+
+  private final long id;
+  private final float score;
+
+  public SearchHit(long id, float score) {
+    this.id = id;
+    this.score = score;
+  }
+}
@@ -0,0 +1,335 @@
+package com.minivision.faceclient.search;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link FeatureStore} 的一个分段文件, 创建时按容量分配并整体映射, 字节序为小端
+ *
+ * <pre>
+ * 文件头 64字节: magic(4) version(4) dim(4) stride(4) capacity(4) count(4) synced(4) 保留(36)
+ * 记录 stride = 40 + 4*dim 字节:
+ *   0  id(8)
+ *   8  left(2) top(2) width(2) height(2)
+ *   16 age(2) rotate(2) gender(1) flags(1) 保留(2)
+ *   24 confidenceAge(4) confidenceGender(4) norm(4) crc(4)
+ *   40 feature(4*dim)
+ * </pre>
+ *
+ * crc覆盖除flags外的所有字段, flags记录删除标记, 可以原地修改.
+ * synced是最近一次刷盘时的记录数, 此前的记录已确定落盘
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+final class StoreSegment {
+
+  private static final int MAGIC = 0x53464346;
+  private static final int VERSION = 1;
+  private static final int HEADER = 64;
+  private static final int COUNT_OFFSET = 20;
+  private static final int SYNCED_OFFSET = 24;
+  private static final int RECORD_HEADER = 40;
+  private static final int FLAGS_OFFSET = 21;
+  private static final int NORM_OFFSET = 32;
+  private static final int CRC_OFFSET = 36;
+  private static final byte DELETED = 1;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final FloatBuffer floats;
+  private final int dim;
+  private final int stride;
+  private final int capacity;
+  private volatile int count;
+
+  private StoreSegment(Path path, FileChannel channel, MappedByteBuffer buffer, int dim,
+      int capacity, int count) {
+    this.path = path;
+    this.channel = channel;
+    this.buffer = buffer;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    this.floats = buffer.asFloatBuffer();
+    this.dim = dim;
+    this.stride = stride(dim);
+    this.capacity = capacity;
+    this.count = count;
+  }
+
+  static int stride(int dim) {
+    return RECORD_HEADER + 4 * dim;
+  }
+
+  /**
+   * @return 一个分段能映射的最大记录数
+   */
+  static int maxCapacity(int dim) {
+    return (Integer.MAX_VALUE - HEADER) / stride(dim);
+  }
+
+  static StoreSegment create(Path path, int dim, int capacity) throws IOException {
+    if (dim <= 0) {
+      throw new IllegalArgumentException("dim must be positive: " + dim);
+    }
+    long length = HEADER + (long) capacity * stride(dim);
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.setLength(length);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, dim);
+    buffer.putInt(12, stride(dim));
+    buffer.putInt(16, capacity);
+    buffer.putInt(COUNT_OFFSET, 0);
+    buffer.putInt(SYNCED_OFFSET, 0);
+    buffer.force();
+    return new StoreSegment(path, channel, buffer, dim, capacity, 0);
+  }
+
+  static StoreSegment open(Path path, int dim) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      long length = channel.size();
+      if (length < HEADER) {
+        throw new IOException("Corrupted segment " + path + ", length " + length);
+      }
+      MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("Not a feature store segment: " + path);
+      }
+      if (buffer.getInt(8) != dim || buffer.getInt(12) != stride(dim)) {
+        throw new IOException("Feature dimension mismatch in " + path + ", expect " + dim
+            + " but " + buffer.getInt(8));
+      }
+      int capacity = buffer.getInt(16);
+      int count = buffer.getInt(COUNT_OFFSET);
+      if (capacity < 0 || count < 0 || count > capacity
+          || HEADER + (long) capacity * stride(dim) > length) {
+        throw new IOException("Corrupted segment header " + path);
+      }
+      int synced = buffer.getInt(SYNCED_OFFSET);
+      if (synced < 0 || synced > count) {
+        // 旧版本的文件没有synced, 或者synced已损坏, 全部校验
+        synced = 0;
+      }
+      StoreSegment segment = new StoreSegment(path, channel, buffer, dim, capacity, count);
+      segment.verifyTail(synced);
+      return segment;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * 系统崩溃时记录数可能先于记录本身落盘, 且页的落盘顺序不确定,
+   * 因此校验上次刷盘后的所有记录, 从第一条crc不匹配的记录起全部丢弃
+   */
+  private void verifyTail(int synced) {
+    int n = count;
+    for (int i = synced; i < n; i++) {
+      if (crc(i) != buffer.getInt(offset(i) + CRC_OFFSET)) {
+        log.warn("Discard {} torn records at the tail of {}.", n - i, path);
+        count = i;
+        buffer.putInt(COUNT_OFFSET, i);
+        break;
+      }
+    }
+    if (n > synced) {
+      force();
+    }
+  }
+
+  Path path() {
+    return path;
+  }
+
+  int count() {
+    return count;
+  }
+
+  boolean isFull() {
+    return count >= capacity;
+  }
+
+  private int offset(int local) {
+    return HEADER + local * stride;
+  }
+
+  /**
+   * 先写记录, 再更新记录数, 记录数是volatile的, 更新后读取线程才能看到这条记录
+   *
+   * @return 分段内的序号
+   */
+  int append(long id, FaceFeature face, boolean sync) {
+    int local = count;
+    int off = offset(local);
+    ByteBuffer b = buffer;
+    b.putLong(off, id);
+    b.putShort(off + 8, face.getFaceRectLeft());
+    b.putShort(off + 10, face.getFaceRectTop());
+    b.putShort(off + 12, face.getFaceRectWidth());
+    b.putShort(off + 14, face.getFaceRectHeight());
+    b.putShort(off + 16, face.getAge());
+    b.putShort(off + 18, face.getFacepicRotate());
+    b.put(off + 20, face.getGender());
+    b.put(off + FLAGS_OFFSET, (byte) 0);
+    b.putShort(off + 22, (short) 0);
+    b.putFloat(off + 24, face.getConfidenceAge());
+    b.putFloat(off + 28, face.getConfidenceGender());
+    float[] feature = face.getFeature();
+    int base = (off + RECORD_HEADER) >> 2;
+    float sum = 0;
+    for (int i = 0; i < dim; i++) {
+      floats.put(base + i, feature[i]);
+      sum += feature[i] * feature[i];
+    }
+    b.putFloat(off + NORM_OFFSET, (float) Math.sqrt(sum));
+    b.putInt(off + CRC_OFFSET, crc(local));
+    publish(local + 1, sync);
+    return local;
+  }
+
+  /**
+   * 原样拷贝src的第local条记录, 只用于压缩
+   */
+  void copyFrom(StoreSegment src, int local) {
+    int to = count;
+    ByteBuffer from = src.buffer.duplicate();
+    int off = src.offset(local);
+    from.limit(off + stride).position(off);
+    ByteBuffer dst = buffer.duplicate();
+    dst.position(offset(to));
+    dst.put(from);
+    publish(to + 1, false);
+  }
+
+  private void publish(int n, boolean sync) {
+    if (sync) {
+      buffer.force();
+      buffer.putInt(SYNCED_OFFSET, n);
+    }
+    buffer.putInt(COUNT_OFFSET, n);
+    if (sync) {
+      buffer.force();
+    }
+    count = n;
+  }
+
+  private int crc(int local) {
+    int off = offset(local);
+    CRC32 crc = new CRC32();
+    ByteBuffer b = buffer.duplicate();
+    b.limit(off + FLAGS_OFFSET).position(off);
+    crc.update(b);
+    b.limit(off + CRC_OFFSET).position(off + 24);
+    crc.update(b);
+    b.limit(off + stride).position(off + RECORD_HEADER);
+    crc.update(b);
+    return (int) crc.getValue();
+  }
+
+  long id(int local) {
+    return buffer.getLong(offset(local));
+  }
+
+  boolean isDeleted(int local) {
+    return (buffer.get(offset(local) + FLAGS_OFFSET) & DELETED) != 0;
+  }
+
+  void markDeleted(int local) {
+    int off = offset(local) + FLAGS_OFFSET;
+    buffer.put(off, (byte) (buffer.get(off) | DELETED));
+  }
+
+  int deletedCount() {
+    int deleted = 0;
+    for (int i = 0, n = count; i < n; i++) {
+      if (isDeleted(i)) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  FaceFeature read(int local) {
+    int off = offset(local);
+    FaceFeature face = new FaceFeature();
+    face.setFaceRectLeft(buffer.getShort(off + 8));
+    face.setFaceRectTop(buffer.getShort(off + 10));
+    face.setFaceRectWidth(buffer.getShort(off + 12));
+    face.setFaceRectHeight(buffer.getShort(off + 14));
+    face.setAge(buffer.getShort(off + 16));
+    face.setFacepicRotate(buffer.getShort(off + 18));
+    face.setGender(buffer.get(off + 20));
+    face.setConfidenceAge(buffer.getFloat(off + 24));
+    face.setConfidenceGender(buffer.getFloat(off + 28));
+    float[] feature = new float[dim];
+    featureBuffer(local).get(feature);
+    face.setFeatureLen((short) dim);
+    face.setFeature(feature);
+    return face;
+  }
+
+  FloatBuffer featureBuffer(int local) {
+    FloatBuffer f = floats.duplicate();
+    int base = (offset(local) + RECORD_HEADER) >> 2;
+    f.limit(base + dim).position(base);
+    return f.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * 计算所有未删除记录与q的内积, cosine为true时除以记录的模长, q应已归一化
+   */
+  void scan(float[] q, boolean cosine, TopK top) {
+    for (int i = 0, n = count; i < n; i++) {
+      int off = offset(i);
+      if ((buffer.get(off + FLAGS_OFFSET) & DELETED) != 0) {
+        continue;
+      }
+      float score = VectorMath.dot(floats, (off + RECORD_HEADER) >> 2, q);
+      if (cosine) {
+        float norm = buffer.getFloat(off + NORM_OFFSET);
+        score = norm == 0 ? 0 : score / norm;
+      }
+      if (score > top.threshold()) {
+        top.offer(buffer.getLong(off), score);
+      }
+    }
+  }
+
+  /**
+   * 先刷记录, 再记下已落盘的记录数
+   */
+  void force() {
+    int n = count;
+    buffer.force();
+    buffer.putInt(SYNCED_OFFSET, n);
+    buffer.force();
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+}
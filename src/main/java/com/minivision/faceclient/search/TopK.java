@@ -0,0 +1,106 @@
+package com.minivision.faceclient.search;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 保留得分最高的k个结果, 以得分最低者为堆顶的小顶堆, 数据保存在基本类型数组中
+ * 
+ * @author PanXinmiao
+ *
+ */
+final class TopK {
+
+  private final long[] ids;
+  private final float[] scores;
+  private int size;
+
+  TopK(int k) {
+    this.ids = new long[k];
+    this.scores = new float[k];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isFull() {
+    return size == ids.length;
+  }
+
+  /**
+   * @return 堆中最低的得分, 未满时为负无穷
+   */
+  float threshold() {
+    return isFull() ? scores[0] : Float.NEGATIVE_INFINITY;
+  }
+
+  void offer(long id, float score) {
+    if (size < ids.length) {
+      int i = size++;
+      ids[i] = id;
+      scores[i] = score;
+      siftUp(i);
+    } else if (score > scores[0]) {
+      ids[0] = id;
+      scores[0] = score;
+      siftDown(0);
+    }
+  }
+
+  void addAll(TopK other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.ids[i], other.scores[i]);
+    }
+  }
+
+  /**
+   * @return 按得分从高到低排列的结果, 调用后堆被清空
+   */
+  List<SearchHit> drain() {
+    SearchHit[] hits = new SearchHit[size];
+    while (size > 0) {
+      hits[size - 1] = new SearchHit(ids[0], scores[0]);
+      size--;
+      ids[0] = ids[size];
+      scores[0] = scores[size];
+      siftDown(0);
+    }
+    return Arrays.asList(hits);
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (scores[parent] <= scores[i]) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    for (;;) {
+      int left = 2 * i + 1;
+      if (left >= size) {
+        return;
+      }
+      int min = left + 1 < size && scores[left + 1] < scores[left] ? left + 1 : left;
+      if (scores[i] <= scores[min]) {
+        return;
+      }
+      swap(i, min);
+      i = min;
+    }
+  }
+
+  private void swap(int a, int b) {
+    long id = ids[a];
+    ids[a] = ids[b];
+    ids[b] = id;
+    float score = scores[a];
+    scores[a] = scores[b];
+    scores[b] = score;
+  }
+}
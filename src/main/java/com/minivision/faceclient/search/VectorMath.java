@@ -0,0 +1,80 @@
+package com.minivision.faceclient.search;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 向量计算的基本函数. 内积按4路展开并使用独立的累加器, 便于JIT生成流水化/向量化的代码
+ * 
+ * @author PanXinmiao
+ *
+ */
+final class VectorMath {
+
+  private VectorMath() {
+  }
+
+  /**
+   * @return m中从base开始的q.length个元素与q的内积
+   */
+  static float dot(FloatBuffer m, int base, float[] q) {
+    int n = q.length;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += m.get(base + i) * q[i];
+      s1 += m.get(base + i + 1) * q[i + 1];
+      s2 += m.get(base + i + 2) * q[i + 2];
+      s3 += m.get(base + i + 3) * q[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += m.get(base + i) * q[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  static float dot(float[] a, float[] b) {
+    int n = a.length;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * 原地归一化为单位向量, 零向量保持不变
+   */
+  static void normalize(float[] v) {
+    float norm = (float) Math.sqrt(dot(v, v));
+    if (norm == 0) {
+      return;
+    }
+    float inv = 1 / norm;
+    for (int i = 0; i < v.length; i++) {
+      v[i] *= inv;
+    }
+  }
+
+  /**
+   * 读取src中剩余的dim个元素到新数组, 按metric决定是否归一化
+   */
+  static float[] prepare(FloatBuffer src, int dim, Metric metric) {
+    if (src.remaining() != dim) {
+      throw new IllegalArgumentException(
+          "Feature dimension mismatch, expect " + dim + " but " + src.remaining());
+    }
+    float[] v = new float[dim];
+    src.duplicate().get(v);
+    if (metric == Metric.COSINE) {
+      normalize(v);
+    }
+    return v;
+  }
+}
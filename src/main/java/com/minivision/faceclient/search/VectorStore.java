@@ -0,0 +1,200 @@
+package com.minivision.faceclient.search;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * 按行保存在堆外内存中的定长向量及其id. 每个分段是一个direct buffer, 新分段从较小的容量开始,
+ * 写满时拷贝到2倍大小的buffer, 达到 {@link #SEGMENT_BYTES} 后追加新分段, 因此小库只占用与行数相当的内存
+ *
+ * <p>追加由本对象的锁串行化; 读取只访问已发布(行号小于size)的行, 可与追加并发.
+ * 行写入后不再修改, 读取线程持有的扩容前的分段仍然包含它能看到的所有行
+ *
+ * @author PanXinmiao
+ *
+ */
+final class VectorStore {
+
+  /**
+   * 每个分段最多占用的字节数
+   */
+  private static final int SEGMENT_BYTES = 1 << 28;
+
+  /**
+   * 新分段的初始字节数
+   */
+  private static final int INITIAL_SEGMENT_BYTES = 1 << 16;
+
+  private final int dim;
+  private final boolean normalize;
+  private final int rowsPerSegment;
+  private final int initialRows;
+
+  private volatile Segment[] segments = new Segment[0];
+  private volatile int size;
+
+  VectorStore(int dim, boolean normalize) {
+    if (dim <= 0) {
+      throw new IllegalArgumentException("dim must be positive: " + dim);
+    }
+    this.dim = dim;
+    this.normalize = normalize;
+    this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / (dim * 4));
+    this.initialRows = Math.min(rowsPerSegment, Math.max(1, INITIAL_SEGMENT_BYTES / (dim * 4)));
+  }
+
+  int dim() {
+    return dim;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * 加入vector中剩余的dim个元素, 不改变vector的position
+   *
+   * @return 行号, 从0开始
+   */
+  synchronized int append(long id, FloatBuffer vector) {
+    if (vector.remaining() != dim) {
+      throw new IllegalArgumentException(
+          "Feature dimension mismatch, expect " + dim + " but " + vector.remaining());
+    }
+    int row = size;
+    int seg = row / rowsPerSegment;
+    int local = row - seg * rowsPerSegment;
+    Segment[] segs = segments;
+    if (seg == segs.length) {
+      segs = Arrays.copyOf(segs, seg + 1);
+      segs[seg] = new Segment(initialRows, dim);
+      segments = segs;
+    } else if (local == segs[seg].ids.length) {
+      segs = segs.clone();
+      segs[seg] = segs[seg].grow(Math.min(rowsPerSegment, local * 2), dim);
+      segments = segs;
+    }
+    Segment s = segs[seg];
+    int base = local * dim;
+    int from = vector.position();
+    float scale = 1;
+    if (normalize) {
+      float sum = 0;
+      for (int i = 0; i < dim; i++) {
+        float v = vector.get(from + i);
+        sum += v * v;
+      }
+      scale = sum == 0 ? 1 : (float) (1 / Math.sqrt(sum));
+    }
+    for (int i = 0; i < dim; i++) {
+      s.matrix.put(base + i, vector.get(from + i) * scale);
+    }
+    s.ids[local] = id;
+    // size是volatile, 写入后读取线程才能看到这一行
+    size = row + 1;
+    return row;
+  }
+
+  long id(int row) {
+    return segments[row / rowsPerSegment].ids[row % rowsPerSegment];
+  }
+
+  /**
+   * @return 第row行与q的内积
+   */
+  float dot(int row, float[] q) {
+    Segment s = segments[row / rowsPerSegment];
+    return VectorMath.dot(s.matrix, (row % rowsPerSegment) * dim, q);
+  }
+
+  /**
+   * @return 两行的内积
+   */
+  float dot(int a, int b) {
+    Segment sa = segments[a / rowsPerSegment];
+    Segment sb = segments[b / rowsPerSegment];
+    int ba = (a % rowsPerSegment) * dim;
+    int bb = (b % rowsPerSegment) * dim;
+    FloatBuffer ma = sa.matrix;
+    FloatBuffer mb = sb.matrix;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < dim; i += 4) {
+      s0 += ma.get(ba + i) * mb.get(bb + i);
+      s1 += ma.get(ba + i + 1) * mb.get(bb + i + 1);
+      s2 += ma.get(ba + i + 2) * mb.get(bb + i + 2);
+      s3 += ma.get(ba + i + 3) * mb.get(bb + i + 3);
+    }
+    for (; i < dim; i++) {
+      s0 += ma.get(ba + i) * mb.get(bb + i);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * 拷贝第row行到dst
+   */
+  void copy(int row, float[] dst) {
+    Segment s = segments[row / rowsPerSegment];
+    int base = (row % rowsPerSegment) * dim;
+    for (int i = 0; i < dim; i++) {
+      dst[i] = s.matrix.get(base + i);
+    }
+  }
+
+  /**
+   * 计算 [from, to) 行与q的内积, 结果放入top
+   */
+  void scan(float[] q, int from, int to, TopK top) {
+    Segment[] segs = segments;
+    int row = from;
+    while (row < to) {
+      int seg = row / rowsPerSegment;
+      int segStart = seg * rowsPerSegment;
+      int end = Math.min(to, segStart + rowsPerSegment);
+      FloatBuffer m = segs[seg].matrix;
+      long[] ids = segs[seg].ids;
+      for (int local = row - segStart, last = end - segStart; local < last; local++) {
+        float score = VectorMath.dot(m, local * dim, q);
+        if (score > top.threshold()) {
+          top.offer(ids[local], score);
+        }
+      }
+      row = end;
+    }
+  }
+
+  /**
+   * 一个分段, 行号为local的向量位于matrix的 [local*dim, (local+1)*dim)
+   */
+  private static final class Segment {
+    private final FloatBuffer matrix;
+    private final long[] ids;
+
+    Segment(int rows, int dim) {
+      this(allocate(rows, dim), new long[rows]);
+    }
+
+    private Segment(FloatBuffer matrix, long[] ids) {
+      this.matrix = matrix;
+      this.ids = ids;
+    }
+
+    private static FloatBuffer allocate(int rows, int dim) {
+      return ByteBuffer.allocateDirect(rows * dim * 4).order(ByteOrder.nativeOrder())
+          .asFloatBuffer();
+    }
+
+    /**
+     * @return 容量为rows行, 包含本分段所有行的新分段
+     */
+    Segment grow(int rows, int dim) {
+      FloatBuffer m = allocate(rows, dim);
+      m.put(matrix.duplicate());
+      m.clear();
+      return new Segment(m, Arrays.copyOf(ids, rows));
+    }
+  }
+}
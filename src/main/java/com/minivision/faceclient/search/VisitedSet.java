@@ -0,0 +1,69 @@
+package com.minivision.faceclient.search;
+
+import java.util.Arrays;
+
+/**
+ * 记录一次图搜索中访问过的节点, 开放寻址的int集合. 每个线程复用一个实例
+ *
+ * @author PanXinmiao
+ *
+ */
+final class VisitedSet {
+
+  private static final int EMPTY = -1;
+
+  private int[] table = new int[1024];
+  private int mask = table.length - 1;
+  private int size;
+
+  VisitedSet() {
+    Arrays.fill(table, EMPTY);
+  }
+
+  /**
+   * @return 节点此前未访问过时返回true
+   */
+  boolean add(int node) {
+    if (size * 2 >= table.length) {
+      grow();
+    }
+    int i = mix(node) & mask;
+    for (;;) {
+      int v = table[i];
+      if (v == node) {
+        return false;
+      }
+      if (v == EMPTY) {
+        table[i] = node;
+        size++;
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(table, EMPTY);
+      size = 0;
+    }
+  }
+
+  private void grow() {
+    int[] old = table;
+    table = new int[old.length * 2];
+    mask = table.length - 1;
+    Arrays.fill(table, EMPTY);
+    size = 0;
+    for (int v : old) {
+      if (v != EMPTY) {
+        add(v);
+      }
+    }
+  }
+
+  private static int mix(int x) {
+    int h = x * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,38 @@
+package com.minivision.faceclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.minivision.faceclient.core.SessionTest.Blackhole;
+import com.minivision.faceclient.mock.MockFaceServer;
+
+/**
+ * 多服务端的连接和分发
+ *
+ * @author PanXinmiao
+ *
+ */
+public class ClusterClientTest {
+
+  @Test
+  public void usableRightAfterConstruction() throws Exception {
+    Config config = new Config();
+    config.setHeartbeatTimeout(5);
+    try (Blackhole blackhole = new Blackhole();
+        MockFaceServer server = new MockFaceServer().start()) {
+      config.setServers(Arrays.asList("127.0.0.1:" + blackhole.getPort(),
+          "127.0.0.1:" + server.getPort()));
+      long start = System.nanoTime();
+      ClusterClient client = new ClusterClient(config);
+      // 不等待连接黑洞超时
+      assertTrue(System.nanoTime() - start < 4_000_000_000L);
+      for (int i = 0; i < 20; i++) {
+        assertEquals(1, client.getFeatures(new byte[16], true, true, true).get().getFaceNum());
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.minivision.faceclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.minivision.faceclient.core.RequestFuture;
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 对冲请求: 原请求所在的连接停顿时在另一个连接上发送, 先到的响应作为结果, 数量受预算限制
+ *
+ * @author PanXinmiao
+ *
+ */
+public class HedgingTest {
+
+  private static final byte[] IMG = new byte[512];
+
+  private MockFaceServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockFaceServer().start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  /**
+   * 到同一服务端的两个连接
+   */
+  private Client connect(long hedgeDelayMillis, int budgetPercent) {
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    config.setConnectionsPerServer(2);
+    config.setHedgeDelayMillis(hedgeDelayMillis);
+    config.setHedgeBudgetPercent(budgetPercent);
+    return new Client(config);
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Condition not reached in 5000ms");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void stalledPrimaryIsHedgedAndFirstResponseWins() throws Exception {
+    Client client = connect(100, 10);
+    HedgePolicy policy = client.getHedgePolicy();
+    // 只让原请求所在的连接停顿
+    server.getConfig().setStallMillis(2000);
+    server.getConfig().setStallProbability(1);
+    long start = System.nanoTime();
+    RequestFuture<FaceFeatures> future = client.getFeatures(IMG, true, false, false);
+    await(() -> server.getStallCount() == 1);
+    server.getConfig().setStallProbability(0);
+
+    assertEquals(server.getConfig().getFaceNum(), future.get().getFaceNum());
+    assertTrue(System.nanoTime() - start < 1_500_000_000L);
+    assertEquals(1, policy.getHedgedCount());
+    // 对冲请求完成future后才计数
+    await(() -> policy.getHedgeWinCount() == 1);
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test(timeout = 10000)
+  public void budgetCapsHedges() throws Exception {
+    // 初始预算为1个对冲, 每个请求再积累0.1个
+    Client client = connect(10, 10);
+    HedgePolicy policy = client.getHedgePolicy();
+    server.getConfig().setStallMillis(300);
+    server.getConfig().setStallProbability(1);
+    List<RequestFuture<FaceFeatures>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      futures.add(client.getFeatures(IMG, true, false, false));
+    }
+    for (RequestFuture<FaceFeatures> f : futures) {
+      f.get();
+    }
+    assertEquals(20, policy.getRequestCount());
+    assertTrue(policy.toString(), policy.getHedgedCount() >= 1);
+    assertTrue(policy.toString(), policy.getHedgedCount() <= 3);
+    assertTrue(policy.toString(), policy.getThrottledCount() > 0);
+    assertTrue(server.getRequestCount() <= 20 + policy.getHedgedCount());
+  }
+}
@@ -0,0 +1,123 @@
+package com.minivision.faceclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.minivision.faceclient.buffer.BufferPool;
+import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.mock.MockServerConfig;
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 通过 {@link MockFaceServer} 完成的端到端请求
+ *
+ * @author PanXinmiao
+ *
+ */
+public class MockServerRoundTripTest {
+
+  private static final byte[] IMG = new byte[1024];
+
+  private MockFaceServer server;
+  private Client client;
+
+  @Before
+  public void setUp() throws IOException {
+    MockServerConfig serverConfig = new MockServerConfig();
+    serverConfig.setWorkers(1);
+    serverConfig.setFaceNum(2);
+    serverConfig.setFeatureLen(8);
+    server = new MockFaceServer(serverConfig).start();
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    config.setMaxConcurrent(1);
+    config.setResponseTimeoutMillis(100);
+    client = new Client(config);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    // surefire开启了泄漏检测, 请求用过的缓冲区都应已释放
+    System.gc();
+    assertEquals(0, BufferPool.getDefault().getLeakCount());
+  }
+
+  @Test
+  public void returnsConfiguredFaces() {
+    FaceFeatures result = client.getFeatures(IMG, true, true, true).get();
+    assertEquals(2, result.getFaceNum());
+    for (FaceFeature face : result.getFeatures()) {
+      assertEquals(8, face.getFeature().length);
+    }
+  }
+
+  @Test
+  public void slowResponseTimesOutAndReturnsItsPermit() {
+    server.getConfig().setLatencyMicros(500000);
+    // maxConcurrent为1, 第二个请求能发出说明超时归还了许可
+    for (int i = 0; i < 2; i++) {
+      assertFailure("Request timeout");
+    }
+    // 迟到的响应按序列号找不到请求, 被丢弃
+    server.getConfig().setLatencyMicros(0);
+    assertEquals(2, client.getFeatures(IMG, true, true, true).get().getFaceNum());
+  }
+
+  @Test
+  public void batchLargerThanMaxConcurrentIsSentInChunks() {
+    // maxConcurrent为1, 每一段只有一个请求
+    BatchResult result = client.getFeaturesBatch(images(50), true, true, true).join();
+    assertEquals(50, result.size());
+    assertEquals(0, result.getFailedCount());
+    assertEquals(50, server.getRequestCount());
+  }
+
+  @Test
+  public void batchWithDefaultLimitIsFullyAdmitted() {
+    server.getConfig().setLatencyMicros(1000);
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    Client defaults = new Client(config);
+    BatchResult result = defaults.getFeaturesBatch(images(500), true, true, true).join();
+    assertEquals(0, result.getFailedCount());
+    for (FaceFeatures features : result.getFeatures()) {
+      assertEquals(2, features.getFaceNum());
+    }
+  }
+
+  private static List<byte[]> images(int n) {
+    List<byte[]> imgs = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      imgs.add(IMG);
+    }
+    return imgs;
+  }
+
+  @Test
+  public void disconnectFailsPendingRequest() {
+    server.getConfig().setDropProbability(1);
+    assertFailure("Connection closed");
+  }
+
+  private void assertFailure(String message) {
+    try {
+      client.getFeatures(IMG, true, true, true).get();
+      fail("Request should fail with " + message);
+    } catch (FaceException e) {
+      assertEquals(message, e.getCause().getMessage());
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.minivision.faceclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.minivision.faceclient.cache.RequestCoalescer;
+import com.minivision.faceclient.core.RequestFuture;
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 相同请求的合并: 只发送一次, leader的结果和失败都传递给所有等待者
+ *
+ * @author PanXinmiao
+ *
+ */
+public class RequestCoalescingTest {
+
+  private static final byte[] IMG = new byte[512];
+  private static final int CALLERS = 16;
+
+  private MockFaceServer server;
+  private Client client;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockFaceServer().start();
+    // 所有调用方都在leader的响应到达前提交
+    server.getConfig().setLatencyMicros(300000);
+  }
+
+  private void connect(int responseTimeoutMillis) {
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    config.setCoalesceRequests(true);
+    config.setResponseTimeoutMillis(responseTimeoutMillis);
+    client = new Client(config);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  /**
+   * 从CALLERS个线程同时提交相同的请求
+   */
+  private List<RequestFuture<FaceFeatures>> submitConcurrently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    try {
+      CyclicBarrier barrier = new CyclicBarrier(CALLERS);
+      List<Future<RequestFuture<FaceFeatures>>> submitted = new ArrayList<>();
+      for (int i = 0; i < CALLERS; i++) {
+        submitted.add(executor.submit(() -> {
+          barrier.await();
+          return client.getFeatures(IMG, true, false, false);
+        }));
+      }
+      List<RequestFuture<FaceFeatures>> futures = new ArrayList<>();
+      for (Future<RequestFuture<FaceFeatures>> f : submitted) {
+        futures.add(f.get());
+      }
+      return futures;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static Throwable failureOf(RequestFuture<FaceFeatures> future) throws Exception {
+    CompletableFuture<?> f = future.toCompletableFuture();
+    try {
+      f.get();
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    throw new AssertionError("Request should fail");
+  }
+
+  @Test(timeout = 10000)
+  public void identicalRequestsShareOneWireRequest() throws Exception {
+    connect(5000);
+    List<RequestFuture<FaceFeatures>> futures = submitConcurrently();
+    FaceFeatures first = futures.get(0).get();
+    assertNotNull(first);
+    for (RequestFuture<FaceFeatures> f : futures) {
+      assertSame(first, f.get());
+    }
+    assertEquals(1, server.getRequestCount());
+    RequestCoalescer coalescer = client.getCoalescer();
+    assertEquals(CALLERS - 1, coalescer.getCoalescedCount());
+
+    // 参数不同不合并, leader完成后相同的请求重新发送
+    client.getFeatures(IMG, true, true, false).get();
+    client.getFeatures(IMG, true, false, false).get();
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test(timeout = 10000)
+  public void leaderTimeoutFailsEveryFollower() throws Exception {
+    connect(100);
+    List<RequestFuture<FaceFeatures>> futures = submitConcurrently();
+    for (RequestFuture<FaceFeatures> f : futures) {
+      assertEquals("Request timeout", failureOf(f).getMessage());
+    }
+    assertEquals(1, server.getRequestCount());
+    // 立即重试, 不能合并到已失败的leader上
+    RequestFuture<FaceFeatures> retry = client.getFeatures(IMG, true, false, false);
+    assertEquals("Request timeout", failureOf(retry).getMessage());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(CALLERS - 1, client.getCoalescer().getCoalescedCount());
+  }
+
+  @Test(timeout = 10000)
+  public void leaderDisconnectFailsEveryFollower() throws Exception {
+    connect(5000);
+    List<RequestFuture<FaceFeatures>> futures = submitConcurrently();
+    // 响应到达前断开连接
+    server.close();
+    for (RequestFuture<FaceFeatures> f : futures) {
+      assertEquals("Connection closed", failureOf(f).getMessage());
+    }
+    assertEquals(1, server.getRequestCount());
+  }
+}
@@ -0,0 +1,69 @@
+package com.minivision.faceclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.mock.MockServerConfig;
+
+/**
+ * 对比合并写开启前后的吞吐量(requests/sec), 服务端为本机回环的 {@link MockFaceServer}
+ *
+ * <p>用法: WriteCoalescingBenchmark [线程数] [图片字节数] [每线程请求数]
+ */
+public class WriteCoalescingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int imgSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+    int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+    MockServerConfig serverConfig = new MockServerConfig();
+    serverConfig.setFaceNum(0);
+    MockFaceServer server = new MockFaceServer(serverConfig).start();
+    byte[] img = new byte[imgSize];
+
+    Config plain = new Config();
+    plain.setIp("127.0.0.1");
+    plain.setPort(server.getPort());
+    plain.setMaxConcurrent(0);
+
+    Config coalescing = new Config();
+    coalescing.setIp("127.0.0.1");
+    coalescing.setPort(server.getPort());
+    coalescing.setMaxConcurrent(0);
+    coalescing.setWriteBatchBytes(64 * 1024);
+    coalescing.setWriteLingerMicros(50);
+
+    for (int round = 0; round < 3; round++) {
+      System.out.printf("round %d: plain %.0f req/s, coalescing %.0f req/s%n", round,
+          run(new Client(plain), img, threads, perThread),
+          run(new Client(coalescing), img, threads, perThread));
+    }
+    System.exit(0);
+  }
+
+  private static double run(Client client, byte[] img, int threads, int perThread)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> workers = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      workers.add(executor.submit(() -> {
+        for (int i = 0; i < perThread; i++) {
+          client.getFeatures(img, true, false, false).get();
+        }
+      }));
+    }
+    for (Future<?> f : workers) {
+      f.get();
+    }
+    long cost = System.nanoTime() - start;
+    executor.shutdown();
+    return threads * perThread / (cost / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+}
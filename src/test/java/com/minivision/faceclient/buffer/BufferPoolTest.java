@@ -0,0 +1,89 @@
+package com.minivision.faceclient.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * 缓冲区的复用和泄漏检测
+ *
+ * @author PanXinmiao
+ *
+ */
+public class BufferPoolTest {
+
+  @Test
+  public void leakDetectionIsOnInTests() {
+    assertTrue(Boolean.getBoolean("faceclient.buffer.leakDetection"));
+  }
+
+  @Test
+  public void releasedBufferIsReusedBySameSizeClass() {
+    BufferPool pool = new BufferPool(false, true);
+    PooledBuffer first = pool.acquire(1000);
+    ByteBuffer buffer = first.buffer();
+    assertEquals(1024, buffer.capacity());
+    buffer.put((byte) 1);
+    assertEquals(1, pool.getOutstanding());
+    first.release();
+    assertEquals(0, pool.getOutstanding());
+
+    PooledBuffer second = pool.acquire(600);
+    assertSame(buffer, second.buffer());
+    // 复用时已clear
+    assertEquals(0, second.buffer().position());
+    assertEquals(1024, second.buffer().limit());
+    second.release();
+    assertEquals(0, pool.getLeakCount());
+  }
+
+  @Test
+  public void oversizedBufferIsNotPooled() {
+    BufferPool pool = new BufferPool(true, false);
+    PooledBuffer big = pool.acquire((1 << 20) + 1);
+    ByteBuffer buffer = big.buffer();
+    assertTrue(buffer.isDirect());
+    big.release();
+    PooledBuffer again = pool.acquire((1 << 20) + 1);
+    assertNotSame(buffer, again.buffer());
+    again.release();
+  }
+
+  @Test
+  public void doubleReleaseFails() {
+    PooledBuffer b = new BufferPool(false, false).acquire(16);
+    b.release();
+    try {
+      b.release();
+      fail("Second release should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void unreleasedBufferIsReported() throws Exception {
+    BufferPool pool = new BufferPool(false, true);
+    leak(pool);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (pool.getLeakCount() == 0) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Leak not reported");
+      }
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.getLeakCount());
+    assertEquals(1, pool.getOutstanding());
+  }
+
+  private static void leak(BufferPool pool) {
+    pool.acquire(256).buffer().put((byte) 1);
+  }
+}
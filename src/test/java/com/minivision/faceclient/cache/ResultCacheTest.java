@@ -0,0 +1,122 @@
+package com.minivision.faceclient.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.Packet.Head;
+
+/**
+ * 按字节数淘汰、过期和命中统计
+ *
+ * @author PanXinmiao
+ *
+ */
+public class ResultCacheTest {
+
+  // 与ResultCache一致
+  private static final int SEGMENTS = 16;
+  private static final int ENTRY_OVERHEAD = 160;
+
+  /**
+   * @return 报文体为bodyBytes字节的响应
+   */
+  private static Packet<FaceFeatures> response(int bodyBytes) {
+    return new Packet<>(new Head(Head.CmdCode.GET_FEATURE),
+        FaceFeatures.wrap(ByteBuffer.allocate(bodyBytes)));
+  }
+
+  /**
+   * @return n个落在同一分段的键
+   */
+  private static List<ImageKey> keysInOneSegment(int n) {
+    List<ImageKey> keys = new ArrayList<>();
+    for (int i = 0; keys.size() < n; i++) {
+      ImageKey key = ImageKey.of(ByteBuffer.allocate(4).putInt(0, i).array(), true, false, false);
+      if ((key.hashCode() & (SEGMENTS - 1)) == 0) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    ResultCache cache = new ResultCache(1 << 20, 0);
+    ImageKey key = ImageKey.of(new byte[] {1, 2, 3}, true, false, false);
+    ImageKey otherFlags = ImageKey.of(new byte[] {1, 2, 3}, true, true, false);
+    assertNull(cache.get(key));
+    Packet<FaceFeatures> response = response(100);
+    cache.put(key, response);
+    assertSame(response, cache.get(key));
+    assertSame(response, cache.get(key));
+    assertNull(cache.get(otherFlags));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0);
+    assertEquals(ENTRY_OVERHEAD + 100, cache.getBytes());
+
+    cache.invalidate(key);
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedOverByteLimit() {
+    // 每个分段1000字节, 每个结果400字节, 一个分段最多两个
+    ResultCache cache = new ResultCache(SEGMENTS * 1000, 0);
+    List<ImageKey> keys = keysInOneSegment(3);
+    int body = 400 - ENTRY_OVERHEAD;
+    cache.put(keys.get(0), response(body));
+    cache.put(keys.get(1), response(body));
+    cache.get(keys.get(0));
+    cache.put(keys.get(2), response(body));
+
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+    assertEquals(800, cache.getBytes());
+    assertNull(cache.get(keys.get(1)));
+    assertEquals(body, cache.get(keys.get(0)).getBody().getSize());
+
+    // 替换已有的结果不算淘汰, 字节数按新结果计
+    cache.put(keys.get(2), response(body - 100));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(700, cache.getBytes());
+  }
+
+  @Test
+  public void doesNotCacheResultLargerThanSegment() {
+    ResultCache cache = new ResultCache(SEGMENTS * 1000, 0);
+    ImageKey key = keysInOneSegment(1).get(0);
+    cache.put(key, response(1000));
+    assertNull(cache.get(key));
+    assertEquals(0, cache.getBytes());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void expiresAfterTtl() throws InterruptedException {
+    ResultCache cache = new ResultCache(1 << 20, 200);
+    ImageKey key = ImageKey.of(new byte[] {1}, true, false, false);
+    cache.put(key, response(10));
+    assertNotNull(cache.get(key));
+    Thread.sleep(250);
+    assertNull(cache.get(key));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+    // 过期不算淘汰
+    assertEquals(0, cache.getEvictionCount());
+  }
+}
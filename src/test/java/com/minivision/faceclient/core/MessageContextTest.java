@@ -0,0 +1,304 @@
+package com.minivision.faceclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import com.minivision.faceclient.AdmissionMode;
+import com.minivision.faceclient.Config;
+import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.Packet.Head;
+
+/**
+ * 槽位分配、许可归还和admissionMode的行为
+ *
+ * @author PanXinmiao
+ *
+ */
+public class MessageContextTest {
+
+  private static final long WAIT_MILLIS = 5000;
+
+  static RequestFuture<FaceFeatures> newFuture() {
+    return new RequestFuture<>(new Packet<>(new Head(Head.CmdCode.GET_FEATURE), null),
+        FaceFeatures.class);
+  }
+
+  static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Condition not reached in " + WAIT_MILLIS + "ms");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * 等待线程进入park, 即已在等待许可或响应
+   */
+  static void awaitParked(Thread t) throws InterruptedException {
+    await(() -> t.getState() == Thread.State.WAITING
+        || t.getState() == Thread.State.TIMED_WAITING);
+  }
+
+  static Throwable failureOf(RequestFuture<?> f) throws InterruptedException {
+    try {
+      f.toCompletableFuture().get();
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    fail("Request should fail");
+    return null;
+  }
+
+  private static Config config(int maxConcurrent, AdmissionMode mode) {
+    Config config = new Config();
+    config.setMaxConcurrent(maxConcurrent);
+    config.setAdmissionMode(mode);
+    return config;
+  }
+
+  @Test
+  public void skipsSerialOfOccupiedSlotAndReusesFreedSlot() {
+    // maxConcurrent=32时槽位数为64
+    MessageContext context = new MessageContext(32);
+    RequestFuture<FaceFeatures> a = newFuture();
+    assertTrue(context.add(a));
+    assertEquals(1, a.getSerialNum());
+
+    // 下一个序列号65落在a的槽位上, 应跳过
+    for (int i = 0; i < 63; i++) {
+      context.nextSerial();
+    }
+    RequestFuture<FaceFeatures> b = newFuture();
+    assertTrue(context.add(b));
+    assertEquals(66, b.getSerialNum());
+
+    assertSame(a, context.remove(1));
+    for (int i = 0; i < 62; i++) {
+      context.nextSerial();
+    }
+    RequestFuture<FaceFeatures> c = newFuture();
+    assertTrue(context.add(c));
+    assertEquals(129, c.getSerialNum());
+
+    // 旧序列号的响应不能移除复用该槽位的请求
+    assertNull(context.remove(1));
+    assertNull(context.remove(65));
+    assertEquals(2, context.size());
+    assertSame(c, context.remove(129));
+    assertSame(b, context.remove(66));
+    assertEquals(0, context.size());
+  }
+
+  @Test
+  public void removeIsIdempotent() {
+    MessageContext context = new MessageContext(1);
+    RequestFuture<FaceFeatures> a = newFuture();
+    assertTrue(context.add(a));
+    assertSame(a, context.remove(a.getSerialNum()));
+    assertNull(context.remove(a.getSerialNum()));
+    // 许可只归还了一次
+    assertTrue(context.add(newFuture()));
+    assertFalse(context.add(newFuture()));
+  }
+
+  @Test
+  public void responseTimeoutAndFailAllReleaseExactlyOnePermit() throws Exception {
+    Config config = config(1, AdmissionMode.REJECT);
+    config.setResponseTimeoutMillis(1);
+    MessageContext context = new MessageContext(config);
+    FaceException closed = new FaceException("closed");
+    for (int round = 0; round < 200; round++) {
+      RequestFuture<FaceFeatures> req = newFuture();
+      assertTrue(context.add(req));
+      int serial = req.getSerialNum();
+      // 已超时, checkExpire和时间轮都会尝试让它超时
+      Thread.sleep(2);
+      CyclicBarrier barrier = new CyclicBarrier(3);
+      AtomicBoolean removed = new AtomicBoolean();
+      Thread response = new Thread(() -> {
+        awaitBarrier(barrier);
+        removed.set(context.remove(serial) != null);
+      });
+      Thread disconnect = new Thread(() -> {
+        awaitBarrier(barrier);
+        context.failAll(closed);
+      });
+      response.start();
+      disconnect.start();
+      awaitBarrier(barrier);
+      context.checkExpire();
+      response.join();
+      disconnect.join();
+
+      assertEquals(0, context.size());
+      if (removed.get()) {
+        // 取走请求的一方负责完成它, 超时和断开都不应再让它失败
+        assertFalse(req.isDone());
+      } else {
+        Throwable cause = failureOf(req);
+        assertTrue(cause == closed || "Request timeout".equals(cause.getMessage()));
+      }
+      // 仍然只有一个许可. 超时只有1ms, 用一次addAll取走所有空闲许可, 不受之后的超时影响
+      List<RequestFuture<FaceFeatures>> probe = new ArrayList<>();
+      probe.add(newFuture());
+      probe.add(newFuture());
+      assertEquals(1, context.addAll(probe));
+      context.failAll(closed);
+    }
+  }
+
+  private static void awaitBarrier(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void rejectFailsImmediately() throws Exception {
+    MessageContext context = new MessageContext(config(1, AdmissionMode.REJECT));
+    assertTrue(context.add(newFuture()));
+    RequestFuture<FaceFeatures> rejected = newFuture();
+    assertFalse(context.add(rejected));
+    assertTrue(rejected.isDone());
+    assertTrue(failureOf(rejected).getMessage().startsWith("Excessive number of concurrent"));
+    assertEquals(1, context.size());
+  }
+
+  @Test
+  public void blockWaitsForReleasedPermit() throws Exception {
+    MessageContext context = new MessageContext(config(1, AdmissionMode.BLOCK));
+    RequestFuture<FaceFeatures> first = newFuture();
+    assertTrue(context.add(first));
+    RequestFuture<FaceFeatures> second = newFuture();
+    AtomicBoolean added = new AtomicBoolean();
+    Thread t = new Thread(() -> added.set(context.add(second)));
+    t.start();
+    awaitParked(t);
+    assertFalse(second.isDone());
+    assertEquals(1, context.size());
+
+    context.remove(first.getSerialNum());
+    t.join(WAIT_MILLIS);
+    assertTrue(added.get());
+    assertFalse(second.isDone());
+    assertSame(second, context.remove(second.getSerialNum()));
+  }
+
+  @Test
+  public void blockedAddFailsWhenInterrupted() throws Exception {
+    MessageContext context = new MessageContext(config(1, AdmissionMode.BLOCK));
+    assertTrue(context.add(newFuture()));
+    RequestFuture<FaceFeatures> second = newFuture();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Thread t = new Thread(() -> {
+      context.add(second);
+      interrupted.set(Thread.currentThread().isInterrupted());
+    });
+    t.start();
+    awaitParked(t);
+    t.interrupt();
+    t.join(WAIT_MILLIS);
+    assertTrue(interrupted.get());
+    assertTrue(failureOf(second).getMessage().startsWith("Interrupted"));
+    assertEquals(1, context.size());
+  }
+
+  @Test
+  public void queueAdmitsWaiterAndRejectsBeyondDepth() throws Exception {
+    Config config = config(1, AdmissionMode.QUEUE);
+    config.setAdmissionQueueDepth(1);
+    config.setAdmissionWaitMillis((int) WAIT_MILLIS);
+    MessageContext context = new MessageContext(config);
+    RequestFuture<FaceFeatures> first = newFuture();
+    assertTrue(context.add(first));
+    RequestFuture<FaceFeatures> queued = newFuture();
+    AtomicBoolean added = new AtomicBoolean();
+    Thread t = new Thread(() -> added.set(context.add(queued)));
+    t.start();
+    await(() -> context.getWaitingCount() == 1);
+
+    RequestFuture<FaceFeatures> overflow = newFuture();
+    assertFalse(context.add(overflow));
+    assertTrue(failureOf(overflow).getMessage().startsWith("Admission queue is full"));
+
+    context.remove(first.getSerialNum());
+    t.join(WAIT_MILLIS);
+    assertTrue(added.get());
+    assertEquals(0, context.getWaitingCount());
+    assertSame(queued, context.remove(queued.getSerialNum()));
+  }
+
+  @Test
+  public void queueFailsAfterWaitTime() throws Exception {
+    Config config = config(1, AdmissionMode.QUEUE);
+    config.setAdmissionWaitMillis(20);
+    MessageContext context = new MessageContext(config);
+    assertTrue(context.add(newFuture()));
+    RequestFuture<FaceFeatures> queued = newFuture();
+    long start = System.nanoTime();
+    assertFalse(context.add(queued));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertTrue(failureOf(queued).getMessage().startsWith("No permit after waiting"));
+    assertEquals(0, context.getWaitingCount());
+  }
+
+  @Test
+  public void tryAddNeverWaits() throws Exception {
+    MessageContext context = new MessageContext(config(1, AdmissionMode.BLOCK));
+    assertTrue(context.add(newFuture()));
+    RequestFuture<FaceFeatures> hedge = newFuture();
+    assertFalse(context.tryAdd(hedge));
+    assertTrue(hedge.isDone());
+    assertEquals(1, context.size());
+  }
+
+  @Test
+  public void addAllTakesOnlyFreePermits() {
+    MessageContext context = new MessageContext(config(3, AdmissionMode.REJECT));
+    assertTrue(context.add(newFuture()));
+    List<RequestFuture<FaceFeatures>> batch = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      batch.add(newFuture());
+    }
+    assertEquals(2, context.addAll(batch));
+    assertFalse(batch.get(0).isDone());
+    assertFalse(batch.get(1).isDone());
+    assertEquals(3, context.size());
+  }
+
+  @Test
+  public void tryAddAllLeavesRequestsUntouchedWithoutPermits() {
+    MessageContext context = new MessageContext(config(2, AdmissionMode.BLOCK));
+    List<RequestFuture<FaceFeatures>> batch = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      batch.add(newFuture());
+    }
+    assertEquals(2, context.tryAddAll(batch));
+    List<RequestFuture<FaceFeatures>> rest = batch.subList(2, 3);
+    assertEquals(0, context.tryAddAll(rest));
+    assertFalse(rest.get(0).isDone());
+    context.remove(batch.get(0).getSerialNum());
+    assertEquals(1, context.tryAddAll(rest));
+    assertEquals(2, context.size());
+  }
+}
@@ -0,0 +1,228 @@
+package com.minivision.faceclient.core;
+
+import static com.minivision.faceclient.core.MessageContextTest.awaitParked;
+import static com.minivision.faceclient.core.MessageContextTest.newFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.minivision.faceclient.ex.FaceException;
+import com.minivision.faceclient.protocol.Packet;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+import com.minivision.faceclient.protocol.Packet.Head;
+
+/**
+ * 等待者的唤醒、第一次完成生效以及监听器的执行顺序
+ *
+ * @author PanXinmiao
+ *
+ */
+public class RequestFutureTest {
+
+  private static Packet<FaceFeatures> newResponse() {
+    return new Packet<>(new Head(Head.CmdCode.GET_FEATURE_ACK), new FaceFeatures());
+  }
+
+  @Test
+  public void wakesAllParkedWaiters() throws Exception {
+    RequestFuture<FaceFeatures> future = newFuture();
+    Packet<FaceFeatures> response = newResponse();
+    List<Thread> threads = new ArrayList<>();
+    List<Packet<FaceFeatures>> results = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 3; i++) {
+      boolean timed = i == 0;
+      Thread t = new Thread(() -> results.add(timed ? future.getResponse(60000)
+          : future.getResponse()));
+      t.start();
+      threads.add(t);
+    }
+    for (Thread t : threads) {
+      awaitParked(t);
+    }
+    future.setResponse(response);
+    for (Thread t : threads) {
+      t.join(5000);
+      assertFalse(t.isAlive());
+    }
+    assertEquals(3, results.size());
+    for (Packet<FaceFeatures> r : results) {
+      assertSame(response, r);
+    }
+  }
+
+  @Test
+  public void firstOutcomeWins() {
+    RequestFuture<FaceFeatures> future = newFuture();
+    Packet<FaceFeatures> response = newResponse();
+    future.setResponse(response);
+    future.fail(new FaceException("late"));
+    future.setResponse(newResponse());
+    assertSame(response, future.getResponseNow());
+    assertSame(response, future.getResponse());
+  }
+
+  @Test
+  public void timedWaitFailsTheRequest() {
+    RequestFuture<FaceFeatures> future = newFuture();
+    try {
+      future.getResponse(10);
+      fail("Request should time out");
+    } catch (FaceException e) {
+      assertTrue(e.getCause().getMessage().startsWith("Request timeout"));
+    }
+    assertTrue(future.isDone());
+    assertNull(future.getResponseNow());
+    // 超时后到达的响应被忽略
+    future.setResponse(newResponse());
+    assertNull(future.getResponseNow());
+  }
+
+  @Test
+  public void interruptedWaiterKeepsInterruptStatus() throws Exception {
+    RequestFuture<FaceFeatures> future = newFuture();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Thread t = new Thread(() -> {
+      try {
+        future.getResponse();
+      } catch (FaceException e) {
+        interrupted.set(Thread.currentThread().isInterrupted());
+      }
+    });
+    t.start();
+    awaitParked(t);
+    t.interrupt();
+    t.join(5000);
+    assertTrue(interrupted.get());
+    assertFalse(future.isDone());
+  }
+
+  @Test
+  public void listenerSeesOutcomeBeforeComplete() throws Exception {
+    RequestFuture<FaceFeatures> future = newFuture();
+    int n = 16;
+    CountDownLatch done = new CountDownLatch(n);
+    List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < n; i++) {
+      future.addListener(new FutureListener<FaceFeatures>() {
+        private volatile boolean succeeded;
+
+        @Override
+        public void onSucess(FaceFeatures result) {
+          succeeded = true;
+        }
+
+        @Override
+        public void onFail(Throwable t) {
+          errors.add("onFail " + t);
+        }
+
+        @Override
+        public void onComplete(RequestFuture<FaceFeatures> f) {
+          if (!succeeded) {
+            errors.add("onComplete before onSucess");
+          }
+          if (f != future) {
+            errors.add("wrong future");
+          }
+          done.countDown();
+        }
+      });
+    }
+    future.setResponse(newResponse());
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  public void synchronousActionsRunBeforeListeners() throws Exception {
+    RequestFuture<FaceFeatures> future = newFuture();
+    AtomicBoolean actionRan = new AtomicBoolean();
+    AtomicReference<Boolean> seenByListener = new AtomicReference<>();
+    CountDownLatch done = new CountDownLatch(1);
+    Thread completer = Thread.currentThread();
+    AtomicReference<Thread> actionThread = new AtomicReference<>();
+    future.addListener(new FutureListenerAdapter<FaceFeatures>() {
+      @Override
+      public void onComplete(RequestFuture<FaceFeatures> f) {
+        seenByListener.set(actionRan.get());
+        done.countDown();
+      }
+    });
+    future.whenComplete((r, t) -> {
+      actionThread.set(Thread.currentThread());
+      actionRan.set(true);
+    });
+    future.setResponse(newResponse());
+    // whenComplete在完成的线程中执行, 完成后才提交监听器
+    assertSame(completer, actionThread.get());
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(seenByListener.get());
+  }
+
+  @Test
+  public void lateListenerAndCancelledListener() throws Exception {
+    RequestFuture<FaceFeatures> future = newFuture();
+    AtomicBoolean cancelledRan = new AtomicBoolean();
+    FutureListener<FaceFeatures> cancelled = new FutureListenerAdapter<FaceFeatures>() {
+      @Override
+      public void onComplete(RequestFuture<FaceFeatures> f) {
+        cancelledRan.set(true);
+      }
+    };
+    CountDownLatch early = new CountDownLatch(1);
+    future.addListener(cancelled);
+    future.addListener(new FutureListenerAdapter<FaceFeatures>() {
+      @Override
+      public void onComplete(RequestFuture<FaceFeatures> f) {
+        early.countDown();
+      }
+    });
+    future.cancelListener(cancelled);
+    FaceException cause = new FaceException("closed");
+    future.fail(cause);
+    assertTrue(early.await(5, TimeUnit.SECONDS));
+
+    // 完成后添加的监听器立即提交
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    CountDownLatch late = new CountDownLatch(1);
+    future.addListener(new FutureListenerAdapter<FaceFeatures>() {
+      @Override
+      public void onFail(Throwable t) {
+        failure.set(t);
+      }
+
+      @Override
+      public void onComplete(RequestFuture<FaceFeatures> f) {
+        late.countDown();
+      }
+    });
+    assertTrue(late.await(5, TimeUnit.SECONDS));
+    assertSame(cause, failure.get());
+    assertFalse(cancelledRan.get());
+  }
+
+  @Test
+  public void callerCannotCompleteTheRequest() {
+    RequestFuture<FaceFeatures> future = newFuture();
+    CompletableFuture<FaceFeatures> handed = future.toCompletableFuture();
+    handed.cancel(false);
+    assertFalse(future.isDone());
+    Packet<FaceFeatures> response = newResponse();
+    future.setResponse(response);
+    assertSame(response.getBody(), future.toCompletableFuture().join());
+  }
+}
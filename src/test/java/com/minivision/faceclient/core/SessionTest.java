@@ -0,0 +1,73 @@
+package com.minivision.faceclient.core;
+
+import static com.minivision.faceclient.core.MessageContextTest.await;
+import static org.junit.Assert.assertFalse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.minivision.faceclient.Config;
+import com.minivision.faceclient.mock.MockFaceServer;
+
+/**
+ * 连接和重连的行为
+ *
+ * @author PanXinmiao
+ *
+ */
+public class SessionTest {
+
+  /**
+   * 接受队列已满的监听端口, 新的连接既不成功也不被拒绝, 直到超时
+   */
+  public static final class Blackhole implements Closeable {
+    private final ServerSocket server;
+    private final List<Socket> backlog = new ArrayList<>();
+
+    public Blackhole() throws IOException {
+      server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      for (int i = 0; i < 2; i++) {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 1000);
+        backlog.add(s);
+      }
+    }
+
+    public int getPort() {
+      return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Socket s : backlog) {
+        s.close();
+      }
+      server.close();
+    }
+  }
+
+  @Test
+  public void hangingConnectDoesNotDelayHeartbeats() throws Exception {
+    Config config = new Config();
+    config.setHeartbeatPeriod(1);
+    // 连接超时等于heartbeatTimeout
+    config.setHeartbeatTimeout(5);
+    try (Blackhole blackhole = new Blackhole();
+        MockFaceServer server = new MockFaceServer().start()) {
+      Session hanging = new Session(config, "127.0.0.1", blackhole.getPort(), false);
+      Session healthy = new Session(config, "127.0.0.1", server.getPort(), true);
+      // 第一次心跳在1秒后, 连接黑洞要阻塞5秒
+      await(() -> healthy.getRttNanos() > 0);
+      assertFalse(hanging.isConnected());
+      healthy.disconnect();
+    }
+  }
+}
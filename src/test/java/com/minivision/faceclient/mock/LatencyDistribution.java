@@ -0,0 +1,54 @@
+package com.minivision.faceclient.mock;
+
+import java.util.Random;
+
+/**
+ * {@link MockFaceServer} 处理一个请求的时间分布: 在latency的基础上加上按jitter分布的偏差, 结果不小于0
+ *
+ * @author PanXinmiao
+ *
+ */
+public enum LatencyDistribution {
+
+  /**
+   * latency ± jitter 之间均匀分布
+   */
+  UNIFORM {
+    @Override
+    long sample(long latency, long jitter, Random random) {
+      return latency + (long) ((random.nextDouble() * 2 - 1) * jitter);
+    }
+  },
+
+  /**
+   * 均值为latency, 标准差为jitter的正态分布
+   */
+  NORMAL {
+    @Override
+    long sample(long latency, long jitter, Random random) {
+      return latency + (long) (random.nextGaussian() * jitter);
+    }
+  },
+
+  /**
+   * latency加上均值为jitter的指数分布, 少数请求的时间远大于平均值, 接近实际服务的长尾
+   */
+  EXPONENTIAL {
+    @Override
+    long sample(long latency, long jitter, Random random) {
+      return latency + (long) (-Math.log(1 - random.nextDouble()) * jitter);
+    }
+  };
+
+  abstract long sample(long latency, long jitter, Random random);
+
+  /**
+   * @return 一次请求的处理时间, 单位与参数相同
+   */
+  long next(long latency, long jitter, Random random) {
+    if (jitter <= 0) {
+      return Math.max(0, latency);
+    }
+    return Math.max(0, sample(latency, jitter, random));
+  }
+}
@@ -0,0 +1,290 @@
+package com.minivision.faceclient.mock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 模拟的人脸算法服务, 实现 {@link com.minivision.faceclient.protocol.Packet} 中的协议: HEATRBEAT返回HEATRBEAT_ACK,
+ * GET_FEATURE返回包含固定人脸的GET_FEATURE_ACK. 用于测试和压测, 也可以通过 {@link #main(String[])} 单独运行
+ *
+ * <p>一个线程接受连接, 多个IO线程各自用一个Selector处理分配给它的连接. 请求按流解析, 图片数据直接跳过而不缓存,
+ * 响应体在启动时生成一次, 所有响应共享, 因此每个连接只占用很少的内存, 可以同时处理数千个连接
+ *
+ * <p>位于测试代码中, 不随faceclient发布; 其它模块通过faceclient的test-jar(classifier为tests)依赖
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+public class MockFaceServer implements Closeable {
+
+  private static final long ACCEPT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final MockServerConfig config;
+  private ServerSocketChannel serverChannel;
+  private MockWorker[] workers;
+  private ByteBuffer featuresBody;
+  private ByteBuffer facesBody;
+
+  final AtomicInteger connections = new AtomicInteger();
+  final LongAdder accepted = new LongAdder();
+  final LongAdder requests = new LongAdder();
+  final LongAdder heartbeats = new LongAdder();
+  final LongAdder stalls = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+
+  public MockFaceServer() {
+    this(new MockServerConfig());
+  }
+
+  public MockFaceServer(MockServerConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * 绑定端口并启动IO线程
+   */
+  public synchronized MockFaceServer start() throws IOException {
+    if (serverChannel != null) {
+      throw new IllegalStateException("MockFaceServer already started.");
+    }
+    featuresBody = buildBody(config.getFaceNum(), config.getFeatureLen());
+    facesBody = buildBody(config.getFaceNum(), 0);
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    MockWorker[] ws = new MockWorker[Math.max(1, config.getWorkers())];
+    try {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(new InetSocketAddress(config.getHost(), config.getPort()), config.getBacklog());
+      for (int i = 0; i < ws.length; i++) {
+        ws[i] = new MockWorker(this, "MockFaceServer-IO-" + i);
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      for (MockWorker w : ws) {
+        if (w != null) {
+          w.shutdown();
+        }
+      }
+      throw e;
+    }
+    workers = ws;
+    serverChannel = channel;
+    Thread acceptor = new Thread(this::accept, "MockFaceServer-Acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    log.info("MockFaceServer listening on {}, {}", channel.getLocalAddress(), config);
+    return this;
+  }
+
+  private void accept() {
+    int next = 0;
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        connections.incrementAndGet();
+        accepted.increment();
+        workers[next].register(channel);
+        next = next + 1 == workers.length ? 0 : next + 1;
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        // 如文件句柄耗尽, 稍后重试
+        log.warn("Failed to accept connection.", e);
+        LockSupport.parkNanos(ACCEPT_RETRY_NANOS);
+      }
+    }
+  }
+
+  /**
+   * @return GET_FEATURE_ACK的报文体(只读), 每个人脸的各字段为随机值
+   */
+  private static ByteBuffer buildBody(int faceNum, int featureLen) {
+    Random random = new Random(faceNum);
+    ByteBuffer body = ByteBuffer.allocateDirect(2 + faceNum * (23 + 4 * featureLen));
+    body.putShort((short) faceNum);
+    for (int i = 0; i < faceNum; i++) {
+      FaceFeature face = new FaceFeature();
+      face.setFaceRectLeft((short) random.nextInt(1000));
+      face.setFaceRectTop((short) random.nextInt(1000));
+      face.setFaceRectWidth((short) (64 + random.nextInt(200)));
+      face.setFaceRectHeight((short) (64 + random.nextInt(200)));
+      face.setAge((short) (18 + random.nextInt(60)));
+      face.setGender((byte) random.nextInt(2));
+      face.setConfidenceAge(random.nextFloat());
+      face.setConfidenceGender(random.nextFloat());
+      face.setFeatureLen((short) featureLen);
+      if (featureLen > 0) {
+        float[] feature = new float[featureLen];
+        for (int j = 0; j < featureLen; j++) {
+          feature[j] = (float) random.nextGaussian();
+        }
+        face.setFeature(feature);
+      }
+      face.encodeTo(body);
+    }
+    body.flip();
+    return body.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return 响应体, 调用方需要duplicate后使用
+   */
+  ByteBuffer getBody(boolean useFeature) {
+    return useFeature ? featuresBody : facesBody;
+  }
+
+  public MockServerConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * @return 实际监听的端口, 未启动时返回-1
+   */
+  public synchronized int getPort() {
+    if (serverChannel == null) {
+      return -1;
+    }
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * @return 当前的连接数
+   */
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+  public long getAcceptedCount() {
+    return accepted.sum();
+  }
+
+  /**
+   * @return 收到的GET_FEATURE请求数
+   */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  public long getHeartbeatCount() {
+    return heartbeats.sum();
+  }
+
+  public long getStallCount() {
+    return stalls.sum();
+  }
+
+  /**
+   * @return 按dropProbability断开的连接数
+   */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * 停止接受连接并关闭所有连接
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (serverChannel == null) {
+      return;
+    }
+    serverChannel.close();
+    for (MockWorker w : workers) {
+      w.shutdown();
+    }
+    for (MockWorker w : workers) {
+      w.awaitTermination();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MockFaceServer(port=" + getPort() + ", connections=" + getConnectionCount()
+        + ", requests=" + getRequestCount() + ", heartbeats=" + getHeartbeatCount() + ", stalls="
+        + getStallCount() + ", dropped=" + getDroppedCount() + ")";
+  }
+
+  /**
+   * 用法: MockFaceServer [key=value ...], key为 {@link MockServerConfig} 的属性名, 如
+   * port=9999 host=0.0.0.0 faceNum=4 latencyMicros=20000 jitterMicros=5000 latencyDistribution=EXPONENTIAL
+   */
+  public static void main(String[] args) throws Exception {
+    MockServerConfig config = new MockServerConfig();
+    config.setPort(9999);
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0) {
+        throw new IllegalArgumentException("Expected key=value: " + arg);
+      }
+      set(config, arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    MockFaceServer server = new MockFaceServer(config).start();
+    System.out.println("MockFaceServer listening on " + config.getHost() + ":" + server.getPort());
+    long last = 0;
+    for (;;) {
+      Thread.sleep(10000);
+      long count = server.getRequestCount();
+      System.out.println(server + ", " + (count - last) / 10 + " req/s");
+      last = count;
+    }
+  }
+
+  private static void set(MockServerConfig config, String key, String value) {
+    switch (key) {
+      case "host":
+        config.setHost(value);
+        break;
+      case "port":
+        config.setPort(Integer.parseInt(value));
+        break;
+      case "backlog":
+        config.setBacklog(Integer.parseInt(value));
+        break;
+      case "workers":
+        config.setWorkers(Integer.parseInt(value));
+        break;
+      case "faceNum":
+        config.setFaceNum(Integer.parseInt(value));
+        break;
+      case "featureLen":
+        config.setFeatureLen(Integer.parseInt(value));
+        break;
+      case "latencyMicros":
+        config.setLatencyMicros(Long.parseLong(value));
+        break;
+      case "jitterMicros":
+        config.setJitterMicros(Long.parseLong(value));
+        break;
+      case "latencyDistribution":
+        config.setLatencyDistribution(LatencyDistribution.valueOf(value.toUpperCase()));
+        break;
+      case "stallProbability":
+        config.setStallProbability(Double.parseDouble(value));
+        break;
+      case "stallMillis":
+        config.setStallMillis(Long.parseLong(value));
+        break;
+      case "dropProbability":
+        config.setDropProbability(Double.parseDouble(value));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown option: " + key);
+    }
+  }
+}
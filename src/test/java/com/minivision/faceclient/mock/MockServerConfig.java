@@ -0,0 +1,65 @@
+package com.minivision.faceclient.mock;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * {@link MockFaceServer} 的配置. 时间、卡顿和断开相关的配置可以在服务运行中修改, 对之后收到的请求生效
+ *
+ * @author PanXinmiao
+ *
+ */
+@Setter
+@Getter
+@ToString
+public class MockServerConfig {
+
+  /**
+   * 监听地址, 默认只监听本机
+   */
+  private String host = "127.0.0.1";
+
+  /**
+   * 监听端口, 0表示由系统分配, 启动后通过 {@link MockFaceServer#getPort()} 获取
+   */
+  private int port = 0;
+  private int backlog = 1024;
+
+  /**
+   * IO线程数, 连接轮流分配到各个线程
+   */
+  private int workers = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * 每个响应中的人脸数, 启动后修改无效
+   */
+  private int faceNum = 1;
+
+  /**
+   * 特征向量的长度, 请求的useFeature为false时返回的人脸不带特征向量. 启动后修改无效
+   */
+  private int featureLen = 512;
+
+  /**
+   * 处理一个请求的时间(微秒). 延迟由IO线程的select超时实现, 精度约为1毫秒
+   */
+  private volatile long latencyMicros = 0;
+
+  /**
+   * 处理时间的偏差(微秒), 分布见latencyDistribution
+   */
+  private volatile long jitterMicros = 0;
+  private volatile LatencyDistribution latencyDistribution = LatencyDistribution.UNIFORM;
+
+  /**
+   * 每个请求触发卡顿的概率. 卡顿期间该连接上的所有响应(包括心跳)都推迟到卡顿结束后发送, 模拟服务端的GC停顿等
+   */
+  private volatile double stallProbability = 0;
+  private volatile long stallMillis = 0;
+
+  /**
+   * 每个请求触发断开连接的概率, 断开时该连接上未发送的响应全部丢弃
+   */
+  private volatile double dropProbability = 0;
+}
@@ -0,0 +1,424 @@
+package com.minivision.faceclient.mock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.minivision.faceclient.protocol.Packet.Head;
+import com.minivision.faceclient.protocol.Packet.Head.CmdCode;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link MockFaceServer} 的IO线程, 负责分配给它的连接的读写以及延迟发送的响应. 除register和shutdown外只在本线程中访问
+ *
+ * @author PanXinmiao
+ *
+ */
+@Slf4j
+class MockWorker implements Runnable {
+
+  private static final int HEAD_SIZE = 12;
+
+  /**
+   * ImageData中useFeature相对报文体的偏移
+   */
+  private static final int USE_FEATURE_OFFSET = 2;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_GATHER = 64;
+
+  private final MockFaceServer server;
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean wakenUp = new AtomicBoolean();
+  private volatile boolean running = true;
+
+  private final PriorityQueue<Reply> replies = new PriorityQueue<>();
+  private long replySeq;
+  private final List<Connection> dirty = new ArrayList<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+  MockWorker(MockFaceServer server, String name) throws IOException {
+    this.server = server;
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * 由接受连接的线程调用, 连接在IO线程中注册
+   */
+  void register(SocketChannel channel) {
+    registrations.offer(channel);
+    if (wakenUp.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  void awaitTermination() {
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        long timeoutNanos = nextTimeoutNanos();
+        if (!registrations.isEmpty() || timeoutNanos == 0) {
+          selector.selectNow();
+        } else if (timeoutNanos < 0) {
+          selector.select();
+        } else {
+          // 向上取整到毫秒, 不足1毫秒的延迟不自旋等待, 以免模拟服务占用客户端的CPU
+          selector.select(TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999999));
+        }
+        wakenUp.set(false);
+        registerChannels();
+        processSelectedKeys();
+        sendDueReplies();
+        flushDirty();
+      } catch (Throwable t) {
+        log.error("Unexpected exception in mock server loop.", t);
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      close((Connection) key.attachment());
+    }
+    SocketChannel channel;
+    while ((channel = registrations.poll()) != null) {
+      closeQuietly(channel);
+      server.connections.decrementAndGet();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      log.warn("Failed to close selector.", e);
+    }
+  }
+
+  /**
+   * @return 距离最早的延迟响应的纳秒数, 没有时返回-1
+   */
+  private long nextTimeoutNanos() {
+    Reply next = replies.peek();
+    if (next == null) {
+      return -1;
+    }
+    return Math.max(0, next.due - System.nanoTime());
+  }
+
+  private void registerChannels() {
+    SocketChannel channel;
+    while ((channel = registrations.poll()) != null) {
+      try {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        log.warn("Failed to register connection.", e);
+        closeQuietly(channel);
+        server.connections.decrementAndGet();
+      }
+    }
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      Connection connection = (Connection) key.attachment();
+      if (key.isValid() && key.isReadable()) {
+        read(connection);
+      }
+      if (key.isValid() && key.isWritable()) {
+        flush(connection);
+      }
+    }
+  }
+
+  private void read(Connection connection) {
+    for (;;) {
+      readBuffer.clear();
+      int n;
+      try {
+        n = connection.channel.read(readBuffer);
+      } catch (IOException e) {
+        close(connection);
+        return;
+      }
+      if (n < 0) {
+        close(connection);
+        return;
+      }
+      readBuffer.flip();
+      if (n == 0 || !connection.parse(readBuffer) || n < READ_BUFFER_SIZE) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * 处理一个完整的请求(图片数据已跳过)
+   *
+   * @return 连接因此关闭时返回false
+   */
+  private boolean handle(Connection connection, Head request, boolean useFeature) {
+    MockServerConfig config = server.getConfig();
+    long now = System.nanoTime();
+    short cmd = request.getCmd();
+    if (cmd == CmdCode.HEATRBEAT) {
+      server.heartbeats.increment();
+      reply(connection, request, CmdCode.HEATRBEAT_ACK, null, now, now);
+      return true;
+    }
+    if (cmd != CmdCode.GET_FEATURE) {
+      log.warn("Unknown cmd {} from {}, closing.", cmd, connection.channel);
+      close(connection);
+      return false;
+    }
+    server.requests.increment();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (config.getDropProbability() > 0 && random.nextDouble() < config.getDropProbability()) {
+      server.dropped.increment();
+      close(connection);
+      return false;
+    }
+    if (config.getStallProbability() > 0 && random.nextDouble() < config.getStallProbability()) {
+      server.stalls.increment();
+      long until = now + TimeUnit.MILLISECONDS.toNanos(config.getStallMillis());
+      if (until - connection.stalledUntil > 0) {
+        connection.stalledUntil = until;
+      }
+    }
+    long delay = config.getLatencyDistribution().next(
+        TimeUnit.MICROSECONDS.toNanos(config.getLatencyMicros()),
+        TimeUnit.MICROSECONDS.toNanos(config.getJitterMicros()), random);
+    reply(connection, request, CmdCode.GET_FEATURE_ACK, server.getBody(useFeature), now + delay,
+        now);
+    return true;
+  }
+
+  private void reply(Connection connection, Head request, short cmd, ByteBuffer body, long due,
+      long now) {
+    Head head = new Head(cmd);
+    head.setVersion(request.getVersion());
+    head.setSerialNum(request.getSerialNum());
+    head.setDataLen(body == null ? 0 : body.remaining());
+    ByteBuffer encoded = ByteBuffer.allocate(HEAD_SIZE);
+    head.encodeTo(encoded);
+    encoded.flip();
+    ByteBuffer payload = body == null ? null : body.duplicate();
+    if (connection.stalledUntil - due > 0) {
+      due = connection.stalledUntil;
+    }
+    if (due - now > 0) {
+      replies.add(new Reply(due, replySeq++, connection, encoded, payload));
+    } else {
+      connection.enqueue(encoded, payload);
+    }
+  }
+
+  private void sendDueReplies() {
+    long now = System.nanoTime();
+    Reply next;
+    while ((next = replies.peek()) != null && next.due - now <= 0) {
+      replies.poll();
+      if (next.connection.open) {
+        next.connection.enqueue(next.head, next.body);
+      }
+    }
+  }
+
+  private void flushDirty() {
+    for (int i = 0; i < dirty.size(); i++) {
+      Connection connection = dirty.get(i);
+      connection.dirty = false;
+      if (connection.open) {
+        flush(connection);
+      }
+    }
+    dirty.clear();
+  }
+
+  /**
+   * 用gathering write写出尽可能多的响应, 写不完时等待OP_WRITE
+   */
+  private void flush(Connection connection) {
+    ArrayDeque<ByteBuffer> out = connection.out;
+    while (!out.isEmpty()) {
+      int n = 0;
+      long size = 0;
+      for (ByteBuffer b : out) {
+        if (n == MAX_GATHER) {
+          break;
+        }
+        gather[n++] = b;
+        size += b.remaining();
+      }
+      long written;
+      try {
+        written = connection.channel.write(gather, 0, n);
+      } catch (IOException e) {
+        close(connection);
+        return;
+      } finally {
+        Arrays.fill(gather, 0, n, null);
+      }
+      while (!out.isEmpty() && !out.peek().hasRemaining()) {
+        out.poll();
+      }
+      if (written < size) {
+        break;
+      }
+    }
+    int ops = out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    if (connection.key.interestOps() != ops) {
+      connection.key.interestOps(ops);
+    }
+  }
+
+  private void close(Connection connection) {
+    if (!connection.open) {
+      return;
+    }
+    connection.open = false;
+    connection.key.cancel();
+    closeQuietly(connection.channel);
+    connection.out.clear();
+    server.connections.decrementAndGet();
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private final class Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private boolean open = true;
+    private boolean dirty;
+    private long stalledUntil = System.nanoTime();
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+    // 正在读取的请求: 报文头读完之前head为null
+    private final ByteBuffer headBuffer = ByteBuffer.allocate(HEAD_SIZE);
+    private Head head;
+    private int bodyRead;
+    private boolean useFeature;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * 解析in中的数据, 每读完一个请求处理一次
+     *
+     * @return 连接已关闭时返回false
+     */
+    boolean parse(ByteBuffer in) {
+      while (in.hasRemaining()) {
+        if (head == null) {
+          int n = Math.min(in.remaining(), headBuffer.remaining());
+          ByteBuffer src = in.duplicate();
+          src.limit(src.position() + n);
+          headBuffer.put(src);
+          in.position(in.position() + n);
+          if (headBuffer.hasRemaining()) {
+            return true;
+          }
+          headBuffer.flip();
+          head = new Head().decode(headBuffer);
+          headBuffer.clear();
+          if (head.getDataLen() < 0) {
+            log.warn("Invalid dataLen {} from {}, closing.", head.getDataLen(), channel);
+            close(this);
+            return false;
+          }
+          bodyRead = 0;
+          useFeature = true;
+        } else {
+          int n = Math.min(in.remaining(), head.getDataLen() - bodyRead);
+          if (bodyRead <= USE_FEATURE_OFFSET && bodyRead + n > USE_FEATURE_OFFSET) {
+            useFeature = in.get(in.position() + USE_FEATURE_OFFSET - bodyRead) != 0;
+          }
+          in.position(in.position() + n);
+          bodyRead += n;
+        }
+        if (bodyRead == head.getDataLen()) {
+          Head request = head;
+          head = null;
+          if (!handle(this, request, useFeature)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    void enqueue(ByteBuffer encodedHead, ByteBuffer body) {
+      out.add(encodedHead);
+      if (body != null) {
+        out.add(body);
+      }
+      if (!dirty) {
+        dirty = true;
+        MockWorker.this.dirty.add(this);
+      }
+    }
+  }
+
+  private static final class Reply implements Comparable<Reply> {
+    private final long due;
+    private final long seq;
+    private final Connection connection;
+    private final ByteBuffer head;
+    private final ByteBuffer body;
+
+    Reply(long due, long seq, Connection connection, ByteBuffer head, ByteBuffer body) {
+      this.due = due;
+      this.seq = seq;
+      this.connection = connection;
+      this.head = head;
+      this.body = body;
+    }
+
+    @Override
+    public int compareTo(Reply o) {
+      long d = due - o.due;
+      if (d != 0) {
+        return d < 0 ? -1 : 1;
+      }
+      return Long.compare(seq, o.seq);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package com.minivision.faceclient.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.minivision.faceclient.Client;
+import com.minivision.faceclient.Config;
+import com.minivision.faceclient.mock.MockFaceServer;
+import com.minivision.faceclient.protocol.Packet.FaceFeatures;
+
+/**
+ * 流水线的结果顺序、窗口和错误处理
+ *
+ * @author PanXinmiao
+ *
+ */
+public class FeaturePipelineTest {
+
+  private static final byte[] IMG = new byte[256];
+
+  private MockFaceServer server;
+  private Client client;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockFaceServer().start();
+    Config config = new Config();
+    config.setIp("127.0.0.1");
+    config.setPort(server.getPort());
+    client = new Client(config);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  /**
+   * 依次返回count张图片, 记录读取的张数; 第failAt张(从0开始)抛出error
+   */
+  private static final class CountingSource implements ImageSource {
+    private final int count;
+    private final int failAt;
+    private final Throwable error;
+    final AtomicInteger read = new AtomicInteger();
+
+    CountingSource(int count, int failAt, Throwable error) {
+      this.count = count;
+      this.failAt = failAt;
+      this.error = error;
+    }
+
+    @Override
+    public SourceImage next() throws IOException {
+      int i = read.get();
+      if (i == failAt) {
+        if (error instanceof IOException) {
+          throw (IOException) error;
+        }
+        throw (Error) error;
+      }
+      if (i == count) {
+        return null;
+      }
+      read.incrementAndGet();
+      return new SourceImage(String.valueOf(i), IMG);
+    }
+  }
+
+  /**
+   * 记录回调的顺序, 以及已读取但尚未推送的图片数的最大值
+   */
+  private static final class RecordingSink implements FeatureSink {
+    private final CountingSource source;
+    final List<String> results = Collections.synchronizedList(new ArrayList<>());
+    final List<String> errorIds = Collections.synchronizedList(new ArrayList<>());
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger active = new AtomicInteger();
+    volatile int maxActive;
+    volatile int maxOutstanding;
+
+    RecordingSink(CountingSource source) {
+      this.source = source;
+    }
+
+    private void enter() {
+      maxActive = Math.max(maxActive, active.incrementAndGet());
+      if (source != null) {
+        int outstanding = source.read.get() - results.size() - errors.size();
+        maxOutstanding = Math.max(maxOutstanding, outstanding);
+      }
+    }
+
+    @Override
+    public void onResult(String sourceId, FaceFeatures features) {
+      enter();
+      results.add(sourceId);
+      active.decrementAndGet();
+    }
+
+    @Override
+    public void onError(String sourceId, Throwable cause) {
+      enter();
+      errorIds.add(sourceId);
+      errors.add(cause);
+      active.decrementAndGet();
+    }
+  }
+
+  private static List<String> ids(int n) {
+    List<String> ids = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      ids.add(String.valueOf(i));
+    }
+    return ids;
+  }
+
+  @Test(timeout = 10000)
+  public void windowOfOneKeepsSourceOrder() throws Exception {
+    CountingSource source = new CountingSource(50, -1, null);
+    RecordingSink sink = new RecordingSink(source);
+    new FeaturePipeline(client, 1).run(source, sink);
+    assertEquals(ids(50), sink.results);
+    assertEquals(1, sink.maxActive);
+  }
+
+  @Test(timeout = 10000)
+  public void readAheadAndRequestsAreBoundedByWindow() throws Exception {
+    server.getConfig().setLatencyMicros(2000);
+    int window = 4;
+    CountingSource source = new CountingSource(200, -1, null);
+    RecordingSink sink = new RecordingSink(source);
+    FeaturePipeline pipeline = new FeaturePipeline(client, window);
+    pipeline.run(source, sink);
+
+    assertEquals(200, sink.results.size());
+    List<String> sorted = new ArrayList<>(sink.results);
+    sorted.sort((a, b) -> Integer.parseInt(a) - Integer.parseInt(b));
+    assertEquals(ids(200), sorted);
+    assertEquals(1, sink.maxActive);
+    // 队列中window张, 未完成的请求window个, 读取线程和发送线程手中各一张
+    assertTrue("outstanding " + sink.maxOutstanding, sink.maxOutstanding <= 2 * window + 2);
+    assertEquals(200, pipeline.getSucceeded());
+  }
+
+  @Test(timeout = 10000)
+  public void failedImageReachesOnErrorWithItsId() throws Exception {
+    List<SourceImage> images = new ArrayList<>();
+    images.add(new SourceImage("a", IMG));
+    IOException broken = new IOException("broken file");
+    images.add(SourceImage.failed("b", broken));
+    images.add(new SourceImage("c", IMG));
+    RecordingSink sink = new RecordingSink(null);
+    FeaturePipeline pipeline = new FeaturePipeline(client, 1);
+    pipeline.run(listSource(images), sink);
+    assertEquals(2, sink.results.size());
+    assertEquals(Collections.singletonList("b"), sink.errorIds);
+    assertEquals(broken, sink.errors.get(0));
+    assertEquals(1, pipeline.getFailed());
+  }
+
+  private static ImageSource listSource(List<SourceImage> images) {
+    return new ImageSource() {
+      private int index;
+
+      @Override
+      public SourceImage next() {
+        return index < images.size() ? images.get(index++) : null;
+      }
+    };
+  }
+
+  @Test(timeout = 10000)
+  public void readerErrorEndsPipeline() throws Exception {
+    OutOfMemoryError oom = new OutOfMemoryError("simulated");
+    CountingSource source = new CountingSource(10, 3, oom);
+    RecordingSink sink = new RecordingSink(source);
+    new FeaturePipeline(client, 2).run(source, sink);
+    assertEquals(3, sink.results.size());
+    assertEquals(1, sink.errors.size());
+    assertNull(sink.errorIds.get(0));
+    assertEquals(oom, sink.errors.get(0));
+  }
+
+  @Test(timeout = 10000)
+  public void readerExceptionEndsPipeline() throws Exception {
+    IOException failure = new IOException("source broken");
+    CountingSource source = new CountingSource(10, 0, failure);
+    RecordingSink sink = new RecordingSink(source);
+    new FeaturePipeline(client, 2).run(source, sink);
+    assertEquals(0, sink.results.size());
+    assertEquals(Collections.singletonList(failure), sink.errors);
+  }
+}
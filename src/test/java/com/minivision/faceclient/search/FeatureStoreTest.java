@@ -0,0 +1,146 @@
+package com.minivision.faceclient.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.minivision.faceclient.protocol.Packet.FaceFeature;
+
+/**
+ * 特征库的崩溃恢复、删除和压缩
+ *
+ * @author PanXinmiao
+ *
+ */
+public class FeatureStoreTest {
+
+  private static final int DIM = 8;
+  // 与StoreSegment的文件格式一致
+  private static final int HEADER = 64;
+  private static final int CRC_OFFSET = 36;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static FaceFeature face(long id) {
+    float[] feature = new float[DIM];
+    for (int i = 0; i < DIM; i++) {
+      feature[i] = id + i;
+    }
+    FaceFeature face = new FaceFeature();
+    face.setFeatureLen((short) DIM);
+    face.setFeature(feature);
+    return face;
+  }
+
+  private static List<Long> liveIds(FeatureStore store) {
+    List<Long> ids = new ArrayList<>();
+    for (long i = 0; i < store.size(); i++) {
+      if (!store.isDeleted(i)) {
+        ids.add(store.getId(i));
+      }
+    }
+    return ids;
+  }
+
+  private static Path onlySegment(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      Object[] all = files.toArray();
+      assertEquals(1, all.length);
+      return (Path) all[0];
+    }
+  }
+
+  @Test
+  public void reopenDropsRecordsFromFirstBadCrcAfterFlush() throws IOException {
+    Path dir = folder.newFolder().toPath();
+    FeatureStore store = FeatureStore.open(dir, DIM);
+    for (int i = 0; i < 5; i++) {
+      store.append(i, face(i));
+    }
+    store.flush();
+    for (int i = 5; i < 8; i++) {
+      store.append(i, face(i));
+    }
+
+    // 模拟崩溃时第6条记录没有完整落盘, 原库不关闭
+    try (FileChannel channel = FileChannel.open(onlySegment(dir), StandardOpenOption.WRITE)) {
+      ByteBuffer junk = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, 12345);
+      channel.write(junk, HEADER + 6L * StoreSegment.stride(DIM) + CRC_OFFSET);
+    }
+    try (FeatureStore reopened = FeatureStore.open(dir, DIM)) {
+      assertEquals(6, reopened.size());
+      assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L), liveIds(reopened));
+      assertArrayEquals(face(5).getFeature(), reopened.getFeature(5).getFeature(), 0);
+    }
+    store.close();
+  }
+
+  @Test
+  public void compactedStoreKeepsIdsAfterReopen() throws IOException {
+    Path dir = folder.newFolder().toPath();
+    try (FeatureStore store = FeatureStore.open(dir, DIM, 4, false)) {
+      for (int i = 0; i < 10; i++) {
+        store.append(i, face(i));
+      }
+      for (long id : new long[] {1, 5, 6, 9}) {
+        assertEquals(1, store.delete(id));
+      }
+      // 最后一个分段仍在追加, 其中的9只标记不移除
+      assertEquals(3, store.compact());
+      assertEquals(Arrays.asList(0L, 2L, 3L, 4L, 7L, 8L), liveIds(store));
+    }
+    try (FeatureStore store = FeatureStore.open(dir, DIM, 4, false)) {
+      assertEquals(7, store.size());
+      assertEquals(Arrays.asList(0L, 2L, 3L, 4L, 7L, 8L), liveIds(store));
+      assertTrue(store.isDeleted(6));
+      assertArrayEquals(face(7).getFeature(), store.getFeature(4).getFeature(), 0);
+      assertEquals(7L, store.search(face(7).getFeature(), 1, Metric.COSINE).get(0).getId());
+    }
+  }
+
+  @Test
+  public void openDeletesUnfinishedCompaction() throws IOException {
+    Path dir = folder.newFolder().toPath();
+    try (FeatureStore store = FeatureStore.open(dir, DIM)) {
+      store.append(1, face(1));
+    }
+    Path stale = dir.resolve("segment-00000000.fcs.compact");
+    Files.write(stale, new byte[100]);
+    try (FeatureStore store = FeatureStore.open(dir, DIM)) {
+      assertFalse(Files.exists(stale));
+      assertEquals(Arrays.asList(1L), liveIds(store));
+    }
+  }
+
+  @Test
+  public void syncedDeleteIsKeptAfterReopen() throws IOException {
+    Path dir = folder.newFolder().toPath();
+    try (FeatureStore store = FeatureStore.open(dir, DIM, 16, true)) {
+      store.append(1, face(1));
+      store.append(2, face(2));
+      assertEquals(1, store.delete(1));
+      assertEquals(0, store.delete(1));
+    }
+    try (FeatureStore store = FeatureStore.open(dir, DIM)) {
+      assertEquals(Arrays.asList(2L), liveIds(store));
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.minivision.faceclient.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 加入与检索并发执行
+ *
+ * @author PanXinmiao
+ *
+ */
+public class HnswIndexTest {
+
+  private static float[][] randomVectors(int n, int dim) {
+    Random random = new Random(7);
+    float[][] data = new float[n][dim];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < dim; j++) {
+        data[i][j] = (float) random.nextGaussian();
+      }
+    }
+    return data;
+  }
+
+  @Test(timeout = 60000)
+  public void searchWhileAdding() throws Exception {
+    // 维数较大时每个分段初始只有32行, 加入过程中分段反复扩容
+    int n = 1000;
+    int dim = 512;
+    int k = 5;
+    float[][] data = randomVectors(n, dim);
+    HnswIndex index = new HnswIndex(dim, Metric.COSINE, 8, 40);
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    AtomicInteger next = new AtomicInteger();
+    AtomicBoolean adding = new AtomicBoolean(true);
+    AtomicInteger searches = new AtomicInteger();
+    try {
+      List<Future<?>> writers = new ArrayList<>();
+      for (int t = 0; t < 3; t++) {
+        writers.add(executor.submit(() -> {
+          int i;
+          while ((i = next.getAndIncrement()) < n) {
+            index.add(i, data[i]);
+          }
+        }));
+      }
+      List<Future<?>> readers = new ArrayList<>();
+      for (int t = 0; t < 2; t++) {
+        int seed = t;
+        readers.add(executor.submit(() -> {
+          Random random = new Random(seed);
+          while (adding.get()) {
+            List<SearchHit> hits = index.search(data[random.nextInt(n)], k);
+            assertTrue(hits.size() <= k);
+            Set<Long> ids = new HashSet<>();
+            for (SearchHit hit : hits) {
+              assertTrue(hit.getId() >= 0 && hit.getId() < n);
+              assertTrue(ids.add(hit.getId()));
+            }
+            searches.incrementAndGet();
+          }
+        }));
+      }
+      for (Future<?> f : writers) {
+        f.get();
+      }
+      adding.set(false);
+      for (Future<?> f : readers) {
+        f.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertTrue(searches.get() > 0);
+    assertEquals(n, index.size());
+
+    // 并发加入后图仍然连通, 检索已加入的向量能找到它自己
+    int found = 0;
+    for (int i = 0; i < n; i += 10) {
+      if (index.search(data[i], 1).get(0).getId() == i) {
+        found++;
+      }
+    }
+    assertTrue("found " + found, found >= n / 10 * 95 / 100);
+  }
+}
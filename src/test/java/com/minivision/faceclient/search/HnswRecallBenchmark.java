@@ -0,0 +1,120 @@
+package com.minivision.faceclient.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HNSW的召回率与延迟, 以 {@link FaceGallery} 的精确结果为基准. 数据为模拟人脸特征的聚簇向量:
+ * 每个身份一个中心, 特征为中心加噪声
+ *
+ * <p>用法: HnswRecallBenchmark [底库大小] [维数] [查询数] [M] [efConstruction] [加入线程数]
+ */
+public class HnswRecallBenchmark {
+
+  private static final int K = 10;
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int dim = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    int m = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+    int efConstruction = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+    int threads = args.length > 5 ? Integer.parseInt(args[5])
+        : Runtime.getRuntime().availableProcessors();
+
+    Random random = new Random(42);
+    int identities = Math.max(1, n / 10);
+    float[][] centers = new float[identities][];
+    for (int i = 0; i < identities; i++) {
+      centers[i] = gaussian(random, dim, 1);
+    }
+
+    FaceGallery exact = new FaceGallery(dim);
+    HnswIndex index = new HnswIndex(dim, Metric.COSINE, m, efConstruction);
+    float[][] data = new float[n][];
+    for (int i = 0; i < n; i++) {
+      data[i] = sample(random, centers[i % identities], 0.5f);
+      exact.add(i, data[i]);
+    }
+
+    // 多线程并发加入
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    AtomicInteger next = new AtomicInteger();
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      workers.add(executor.submit(() -> {
+        int i;
+        while ((i = next.getAndIncrement()) < n) {
+          index.add(i, data[i]);
+        }
+      }));
+    }
+    for (Future<?> f : workers) {
+      f.get();
+    }
+    executor.shutdown();
+    long build = System.nanoTime() - start;
+    System.out.printf("n=%d dim=%d M=%d efConstruction=%d threads=%d build %.1fs (%.0f inserts/s)%n",
+        n, dim, m, efConstruction, threads, build / 1e9, n / (build / 1e9));
+
+    float[][] qs = new float[queries][];
+    List<Set<Long>> truth = new ArrayList<>();
+    long exactNanos = 0;
+    for (int i = 0; i < queries; i++) {
+      qs[i] = sample(random, centers[random.nextInt(identities)], 0.5f);
+      long s = System.nanoTime();
+      List<SearchHit> hits = exact.search(qs[i], K);
+      exactNanos += System.nanoTime() - s;
+      Set<Long> ids = new HashSet<>();
+      for (SearchHit hit : hits) {
+        ids.add(hit.getId());
+      }
+      truth.add(ids);
+    }
+    System.out.printf("exact: %.3f ms/query%n", exactNanos / 1e6 / queries);
+
+    for (int ef : new int[] {10, 20, 40, 80, 160, 320}) {
+      index.setEfSearch(ef);
+      // 预热
+      for (int i = 0; i < Math.min(queries, 50); i++) {
+        index.search(qs[i], K);
+      }
+      int found = 0;
+      long s = System.nanoTime();
+      for (int i = 0; i < queries; i++) {
+        for (SearchHit hit : index.search(qs[i], K)) {
+          if (truth.get(i).contains(hit.getId())) {
+            found++;
+          }
+        }
+      }
+      long cost = System.nanoTime() - s;
+      System.out.printf("efSearch=%-4d recall@%d %.4f  %.3f ms/query%n", ef, K,
+          found / (double) (queries * K), cost / 1e6 / queries);
+    }
+  }
+
+  private static float[] gaussian(Random random, int dim, float sigma) {
+    float[] v = new float[dim];
+    for (int i = 0; i < dim; i++) {
+      v[i] = (float) random.nextGaussian() * sigma;
+    }
+    return v;
+  }
+
+  private static float[] sample(Random random, float[] center, float sigma) {
+    float[] v = gaussian(random, center.length, sigma);
+    for (int i = 0; i < v.length; i++) {
+      v[i] += center[i];
+    }
+    return v;
+  }
+}
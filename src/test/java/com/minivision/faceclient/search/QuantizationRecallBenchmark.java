@@ -0,0 +1,126 @@
+package com.minivision.faceclient.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 量化检索的召回率、延迟和内存, 以 {@link FaceGallery} 的精确结果为基准, 数据与 {@link HnswRecallBenchmark} 相同
+ *
+ * <p>用法: QuantizationRecallBenchmark [底库大小] [维数] [查询数] [噪声标准差]
+ */
+public class QuantizationRecallBenchmark {
+
+  private static final int K = 10;
+  private static final int TRAIN_SAMPLES = 10000;
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int dim = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    float noise = args.length > 3 ? Float.parseFloat(args[3]) : 0.5f;
+
+    Random random = new Random(42);
+    int identities = Math.max(1, n / 10);
+    float[][] centers = new float[identities][];
+    for (int i = 0; i < identities; i++) {
+      centers[i] = gaussian(random, dim, 1);
+    }
+    float[][] data = new float[n][];
+    for (int i = 0; i < n; i++) {
+      data[i] = sample(random, centers[i % identities], noise);
+    }
+    List<float[]> training = new ArrayList<>();
+    for (int i = 0; i < Math.min(n, TRAIN_SAMPLES); i++) {
+      training.add(data[random.nextInt(n)]);
+    }
+
+    FaceGallery exact = new FaceGallery(dim);
+    for (int i = 0; i < n; i++) {
+      exact.add(i, data[i]);
+    }
+    float[][] qs = new float[queries][];
+    List<Set<Long>> truth = new ArrayList<>();
+    for (int i = 0; i < queries; i++) {
+      qs[i] = sample(random, centers[random.nextInt(identities)], noise);
+      Set<Long> ids = new HashSet<>();
+      for (SearchHit hit : exact.search(qs[i], K)) {
+        ids.add(hit.getId());
+      }
+      truth.add(ids);
+    }
+    System.out.printf("n=%d dim=%d queries=%d noise=%.2f%n", n, dim, queries, noise);
+    report("float32", (long) n * dim * 4, measure(queries, qs, truth, q -> exact.search(q, K)));
+
+    for (Quantization quantization : Quantization.values()) {
+      for (boolean keepOriginal : new boolean[] {false, true}) {
+        QuantizedGallery gallery =
+            new QuantizedGallery(dim, Metric.COSINE, quantization, keepOriginal);
+        gallery.train(training);
+        for (int i = 0; i < n; i++) {
+          gallery.add(i, data[i]);
+        }
+        long codes = (long) n * (quantization == Quantization.INT8 ? dim : 2 * dim);
+        if (!keepOriginal) {
+          report(quantization.toString(), codes,
+              measure(queries, qs, truth, q -> gallery.search(q, K)));
+          continue;
+        }
+        for (int rerank : new int[] {20, 50, 100}) {
+          gallery.setRerank(rerank);
+          report(quantization + " rerank=" + rerank, codes,
+              measure(queries, qs, truth, q -> gallery.search(q, K)));
+        }
+      }
+    }
+  }
+
+  private interface Searcher {
+    List<SearchHit> search(float[] q);
+  }
+
+  /**
+   * @return {召回率, 每次查询的毫秒数}
+   */
+  private static double[] measure(int queries, float[][] qs, List<Set<Long>> truth,
+      Searcher searcher) {
+    // 预热
+    for (int i = 0; i < Math.min(queries, 50); i++) {
+      searcher.search(qs[i]);
+    }
+    int found = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < queries; i++) {
+      for (SearchHit hit : searcher.search(qs[i])) {
+        if (truth.get(i).contains(hit.getId())) {
+          found++;
+        }
+      }
+    }
+    long cost = System.nanoTime() - start;
+    return new double[] {found / (double) (queries * K), cost / 1e6 / queries};
+  }
+
+  private static void report(String name, long codeBytes, double[] result) {
+    System.out.printf("%-22s recall@%d %.4f  %.3f ms/query  codes %.1f MB%n", name, K,
+        result[0], result[1], codeBytes / 1048576.0);
+  }
+
+  private static float[] gaussian(Random random, int dim, float sigma) {
+    float[] v = new float[dim];
+    for (int i = 0; i < dim; i++) {
+      v[i] = (float) random.nextGaussian() * sigma;
+    }
+    return v;
+  }
+
+  private static float[] sample(Random random, float[] center, float sigma) {
+    float[] v = gaussian(random, center.length, sigma);
+    for (int i = 0; i < v.length; i++) {
+      v[i] += center[i];
+    }
+    return v;
+  }
+}